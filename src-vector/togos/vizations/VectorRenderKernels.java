@@ -0,0 +1,130 @@
+package togos.vizations;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * RenderKernels using the (incubating) Vector API.
+ *
+ * Kept out of src so that the rest of the project builds without it;
+ * compile and run with --add-modules jdk.incubator.vector and this
+ * directory on the source path to use it.  Operations are done in the
+ * same order as in the scalar versions, without fused multiply-adds,
+ * so results are identical.  compositeInterleaved and the gamma
+ * composites are left to the scalar versions (see RenderKernels).
+ */
+class VectorRenderKernels extends RenderKernels
+{
+	static final VectorSpecies<Float> F = FloatVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Integer> I = IntVector.SPECIES_PREFERRED;
+	
+	public VectorRenderKernels() {
+		if( F.length() != I.length() ) throw new UnsupportedOperationException("Float and int vectors have different lane counts");
+		if( F.length() < 4 ) throw new UnsupportedOperationException("Vectors too short to be worth using");
+	}
+	
+	@Override public String getName() {
+		return "vector ("+F.length()+" lanes)";
+	}
+	
+	@Override public void clear( float[] r, float[] g, float[] b, int start, int end ) {
+		FloatVector zero = FloatVector.zero(F);
+		int i = start, upper = start + F.loopBound(end-start);
+		for( ; i<upper; i += F.length() ) {
+			zero.intoArray(r, i);
+			zero.intoArray(g, i);
+			zero.intoArray(b, i);
+		}
+		super.clear(r, g, b, i, end);
+	}
+	
+	@Override public void copy( float[] srcR, float[] srcG, float[] srcB, float[] r, float[] g, float[] b, int start, int end ) {
+		int i = start, upper = start + F.loopBound(end-start);
+		for( ; i<upper; i += F.length() ) {
+			FloatVector.fromArray(F, srcR, i).intoArray(r, i);
+			FloatVector.fromArray(F, srcG, i).intoArray(g, i);
+			FloatVector.fromArray(F, srcB, i).intoArray(b, i);
+		}
+		super.copy(srcR, srcG, srcB, r, g, b, i, end);
+	}
+	
+	@Override public void addScaled( float[] srcR, float[] srcG, float[] srcB, float scale, float[] r, float[] g, float[] b, int start, int end ) {
+		int i = start, upper = start + F.loopBound(end-start);
+		for( ; i<upper; i += F.length() ) {
+			FloatVector.fromArray(F, r, i).add(FloatVector.fromArray(F, srcR, i).mul(scale)).intoArray(r, i);
+			FloatVector.fromArray(F, g, i).add(FloatVector.fromArray(F, srcG, i).mul(scale)).intoArray(g, i);
+			FloatVector.fromArray(F, b, i).add(FloatVector.fromArray(F, srcB, i).mul(scale)).intoArray(b, i);
+		}
+		super.addScaled(srcR, srcG, srcB, scale, r, g, b, i, end);
+	}
+	
+	@Override public void multiply( float[] r, float[] g, float[] b, float s, int start, int end ) {
+		int i = start, upper = start + F.loopBound(end-start);
+		for( ; i<upper; i += F.length() ) {
+			FloatVector.fromArray(F, r, i).mul(s).intoArray(r, i);
+			FloatVector.fromArray(F, g, i).mul(s).intoArray(g, i);
+			FloatVector.fromArray(F, b, i).mul(s).intoArray(b, i);
+		}
+		super.multiply(r, g, b, s, i, end);
+	}
+	
+	@Override public void clear( float[] data, int start, int end ) {
+		FloatVector zero = FloatVector.zero(F);
+		int i = start, upper = start + F.loopBound(end-start);
+		for( ; i<upper; i += F.length() ) zero.intoArray(data, i);
+		super.clear(data, i, end);
+	}
+	
+	@Override public void addScaled( float[] src, float scale, float[] dest, int start, int end ) {
+		int i = start, upper = start + F.loopBound(end-start);
+		for( ; i<upper; i += F.length() ) {
+			FloatVector.fromArray(F, dest, i).add(FloatVector.fromArray(F, src, i).mul(scale)).intoArray(dest, i);
+		}
+		super.addScaled(src, scale, dest, i, end);
+	}
+	
+	@Override public void multiply( float[] data, float s, int start, int end ) {
+		int i = start, upper = start + F.loopBound(end-start);
+		for( ; i<upper; i += F.length() ) FloatVector.fromArray(F, data, i).mul(s).intoArray(data, i);
+		super.multiply(data, s, i, end);
+	}
+	
+	/**
+	 * Same as RenderKernels.toByte: clamping before truncating
+	 * instead of after gives the same result, including for NaN (0)
+	 */
+	protected static IntVector toBytes( FloatVector c ) {
+		return (IntVector)c.mul(255f).add(0.5f).max(0f).min(255f).convert(VectorOperators.F2I, 0);
+	}
+	
+	protected static FloatVector sum( float[] base, float[] l0, float[] l1, float[] l2, float[] l3, float w0, float w1, float w2, float w3, float s, int i ) {
+		return FloatVector.fromArray(F, base, i)
+			.add(FloatVector.fromArray(F, l0, i).mul(w0))
+			.add(FloatVector.fromArray(F, l1, i).mul(w1))
+			.add(FloatVector.fromArray(F, l2, i).mul(w2))
+			.add(FloatVector.fromArray(F, l3, i).mul(w3))
+			.mul(s);
+	}
+	
+	@Override public void composite(
+		float[] r, float[] g, float[] b,
+		float[][] layerR, float[][] layerG, float[][] layerB, float[] weights, float s,
+		int[] dest, int start, int end
+	) {
+		final float w0 = weights[0], w1 = weights[1], w2 = weights[2], w3 = weights[3];
+		IntVector alpha = IntVector.broadcast(I, 0xFF000000);
+		int i = start, upper = start + F.loopBound(end-start);
+		for( ; i<upper; i += F.length() ) {
+			IntVector ir = toBytes(sum(r, layerR[0], layerR[1], layerR[2], layerR[3], w0, w1, w2, w3, s, i));
+			IntVector ig = toBytes(sum(g, layerG[0], layerG[1], layerG[2], layerG[3], w0, w1, w2, w3, s, i));
+			IntVector ib = toBytes(sum(b, layerB[0], layerB[1], layerB[2], layerB[3], w0, w1, w2, w3, s, i));
+			alpha.or(ir.lanewise(VectorOperators.LSHL, 16))
+				.or(ig.lanewise(VectorOperators.LSHL, 8))
+				.or(ib)
+				.intoArray(dest, i);
+		}
+		super.composite(r, g, b, layerR, layerG, layerB, weights, s, dest, i, end);
+	}
+}
@@ -10,8 +10,6 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.Random;
 
-import javax.imageio.ImageIO;
-
 public class Ants
 {
 	static Random r = new Random();
@@ -314,6 +312,8 @@ public class Ants
 		
 		Color successOverlayColor = new Color(1,1,1,0.5f);
 		BufferedImage img = new BufferedImage(map.w*scale, map.h*scale, BufferedImage.TYPE_INT_ARGB);
+		int[] pixBuf = new int[img.getWidth()*img.getHeight()];
+		AsyncPNGWriter pngWriter = writeImages ? new AsyncPNGWriter(img.getWidth(), img.getHeight(), 2, 4) : null;
 		for( int set=0; set<setCount; ++set ) {
 			initMap(set);
 			feedings = 0;
@@ -328,13 +328,20 @@ public class Ants
 					g.setColor(successOverlayColor);
 					g.fillRect(0, 0, feedings*scale/4, 2*scale);
 					c.setImage(img);
-					if( writeImages ) ImageIO.write(img, "png", new File(setDir, String.format("f%08d.png", frame)));
+					if( writeImages ) {
+						img.getRGB(0, 0, img.getWidth(), img.getHeight(), pixBuf, 0, img.getWidth());
+						pngWriter.write(pixBuf, new File(setDir, String.format("f%08d.png", frame)));
+					}
 				}
 				if( !writeImages ) Thread.sleep(10);
 				updateMap();
 			}
 		}
 		
+		if( pngWriter != null ) {
+			pngWriter.close();
+			System.err.println(pngWriter.getStatusText());
+		}
 		f.dispose();
 	}
 	
@@ -0,0 +1,142 @@
+package togos.vizations;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Encodes ARGB pixel buffers to PNG files on a pool of background threads.
+ *
+ * write copies the pixels into one of a fixed set of recycled buffers
+ * and queues them; when all buffers are queued it blocks until an
+ * encoder takes one off the queue, so a fast renderer can't run arbitrarily far
+ * ahead of the encoders.  Each encoder thread reuses a single
+ * BufferedImage.
+ *
+ * Files are written under a temporary name and renamed when complete so
+ * that 'skip frames that already exist' logic never sees a partial file.
+ */
+class AsyncPNGWriter
+{
+	static class Job {
+		final int[] argb;
+		final File file;
+		
+		public Job( int[] argb, File file ) {
+			this.argb = argb;
+			this.file = file;
+		}
+	}
+	
+	static final Job END = new Job(null, null);
+	
+	final int w, h;
+	final int queueCapacity;
+	final BlockingQueue<int[]> freeBuffers;
+	final BlockingQueue<Job> queue;
+	final List<Thread> encoderThreads = new ArrayList<Thread>();
+	
+	final AtomicLong framesWritten = new AtomicLong();
+	final AtomicLong encodeNanos = new AtomicLong();
+	volatile int maxQueueDepth;
+	volatile Throwable error;
+	
+	public AsyncPNGWriter( int w, int h, int threadCount, int queueCapacity ) {
+		this.w = w;
+		this.h = h;
+		this.queueCapacity = queueCapacity;
+		// Encoders copy into their own image before encoding, so buffers
+		// are only held while queued
+		this.freeBuffers = new ArrayBlockingQueue<int[]>(queueCapacity);
+		for( int i=0; i<queueCapacity; ++i ) freeBuffers.add(new int[w*h]);
+		// Has room for the END markers in addition to every buffer
+		this.queue = new ArrayBlockingQueue<Job>(queueCapacity + threadCount);
+		
+		for( int i=0; i<threadCount; ++i ) {
+			Thread t = new Thread("PNG encoder "+i) {
+				@Override public void run() {
+					encodeLoop();
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+			encoderThreads.add(t);
+		}
+	}
+	
+	protected void encodeLoop() {
+		BufferedImage image = new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
+		int[] imageData = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		try {
+			Job job;
+			while( (job = queue.take()) != END ) {
+				long startTime = System.nanoTime();
+				System.arraycopy(job.argb, 0, imageData, 0, w*h);
+				freeBuffers.add(job.argb);
+				if( error != null ) continue;
+				
+				File tempFile = new File(job.file.getPath()+".temp");
+				try {
+					ImageIO.write( image, "png", tempFile );
+					if( !tempFile.renameTo(job.file) ) {
+						throw new IOException("Failed to rename "+tempFile+" to "+job.file);
+					}
+					encodeNanos.addAndGet(System.nanoTime() - startTime);
+					framesWritten.incrementAndGet();
+				} catch( Throwable e ) {
+					error = e;
+				}
+			}
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	protected void checkError() throws IOException {
+		if( error != null ) throw new IOException("PNG encoding failed", error);
+	}
+	
+	/**
+	 * Queue argb to be written to file.  The pixels are copied, so the
+	 * caller may reuse the array as soon as this returns.
+	 * Blocks while the queue is full.
+	 */
+	public void write( int[] argb, File file ) throws IOException, InterruptedException {
+		assert argb.length >= w*h;
+		checkError();
+		int[] buf = freeBuffers.take();
+		System.arraycopy(argb, 0, buf, 0, w*h);
+		queue.put(new Job(buf, file));
+		int depth = queue.size();
+		if( depth > maxQueueDepth ) maxQueueDepth = depth;
+	}
+	
+	public int getQueueDepth() { return queue.size(); }
+	public int getMaxQueueDepth() { return maxQueueDepth; }
+	public long getFramesWritten() { return framesWritten.get(); }
+	/** Total time spent encoding, summed over all threads */
+	public long getEncodeNanos() { return encodeNanos.get(); }
+	
+	public String getStatusText() {
+		long frames = getFramesWritten();
+		return String.format("PNG writer: %d frames, %.1f ms/frame encode, queue depth %d (max %d) of %d, %d threads",
+			frames, frames == 0 ? 0.0 : getEncodeNanos() / 1e6 / frames,
+			getQueueDepth(), getMaxQueueDepth(), queueCapacity,
+			encoderThreads.size());
+	}
+	
+	/** Wait for all queued images to be written and stop the encoder threads */
+	public void close() throws IOException, InterruptedException {
+		for( int i=0; i<encoderThreads.size(); ++i ) queue.put(END);
+		for( Thread t : encoderThreads ) t.join();
+		checkError();
+	}
+}
@@ -0,0 +1,65 @@
+package togos.vizations;
+
+import togos.vizations.math.FQuaternion;
+import togos.vizations.math.Mat4f;
+
+/**
+ * Position, orientation and field of view to render from.
+ *
+ * In view space the camera looks along +z, with +x to the right and +y
+ * down the screen.  orientation rotates view space directions into
+ * world space, so the identity looks along the world's +z axis.
+ */
+class Camera
+{
+	/** Vertical field of view renderers used before they had cameras, about 82 degrees */
+	static final float DEFAULT_FIELD_OF_VIEW = (float)(2*Math.atan(0.875));
+	
+	float x, y, z;
+	final FQuaternion orientation = new FQuaternion().identity();
+	/** Vertical field of view, in radians */
+	float fieldOfView = DEFAULT_FIELD_OF_VIEW;
+	
+	protected final FQuaternion inverse = new FQuaternion();
+	
+	public Camera setPosition( float x, float y, float z ) {
+		this.x = x; this.y = y; this.z = z;
+		return this;
+	}
+	
+	/**
+	 * Turn the camera yaw radians to the right (about the y axis),
+	 * after tilting it pitch radians up (about the x axis).
+	 */
+	public Camera setYawPitch( float yaw, float pitch ) {
+		FQuaternion pitchRotation = new FQuaternion().setAxisAngle(1, 0, 0, pitch);
+		orientation.setAxisAngle(0, 1, 0, yaw).multiply(orientation, pitchRotation);
+		return this;
+	}
+	
+	public Camera set( Camera c ) {
+		setPosition( c.x, c.y, c.z );
+		orientation.set(c.orientation);
+		fieldOfView = c.fieldOfView;
+		return this;
+	}
+	
+	public boolean isRotated() {
+		return orientation.x != 0 || orientation.y != 0 || orientation.z != 0;
+	}
+	
+	/** Pixels per unit at a distance of 1 for a screen h pixels high */
+	public float focalLength( int h ) {
+		return h/2f/(float)Math.tan(fieldOfView/2);
+	}
+	
+	/** Set dest to the world-to-view transform */
+	public Mat4f viewTransform( Mat4f dest ) {
+		return dest.setRotation(inverse.conjugate(orientation)).translate(-x, -y, -z);
+	}
+	
+	/** Set dest to the rotation part of the world-to-view transform */
+	public Mat4f viewRotation( Mat4f dest ) {
+		return dest.setRotation(inverse.conjugate(orientation));
+	}
+}
@@ -0,0 +1,244 @@
+package togos.vizations;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import togos.vizations.Stars.StarNode;
+import togos.vizations.Stars.StarNodeBinding;
+
+/**
+ * A StarNode DAG flattened into struct-of-arrays tables.
+ *
+ * Each distinct StarNode becomes one entry in the node table, so shared
+ * subtrees stay shared.  Nodes are numbered in post-order (children
+ * before parents), and the bindings to node n's children are entries
+ * bindingStart[n] through bindingStart[n+1]-1 of the binding table.
+ *
+ * Children are sorted by their orbital parameters when compiled, so
+ * unlike iterating over a CompoundNode's HashSet, traversal order
+ * (and therefore float summation order) is the same from run to run.
+ *
+ * Each column is a view of its own little-endian direct ByteBuffer,
+ * so that scenes can be rendered straight out of memory-mapped files
+ * (see SceneFile), and compiled and loaded scenes look the same to
+ * the JIT.  Once built, a CompiledScene is never modified, so any
+ * number of renderers can share one.
+ *
+ * ProceduralNodes are compiled as nodes with no bindings, and listed
+ * in procedural; renderers expand them through a ProceduralCache
+ * when they need to descend into them (see expand).  Expansions come
+ * and go by the thousand, so their tables are on the heap rather than
+ * direct; that only makes the column accessors bimorphic.
+ */
+class CompiledScene
+{
+	// Indexes of tables, in the order SceneFile stores them
+	static final int RADIUS = 0, LUM_R = 1, LUM_G = 2, LUM_B = 3, SOLID = 4, BINDING_START = 5;
+	static final int ORBITAL_SCALE_X = 6, ORBITAL_SCALE_Y = 7, ORBITAL_SCALE_Z = 8;
+	static final int ORBITAL_DISTANCE = 9, ORBITAL_PHASE = 10, ORBITAL_SPEED = 11, CHILD_NODE = 12;
+	static final int TABLE_COUNT = 13;
+	
+	// Node table
+	final int nodeCount;
+	final FloatBuffer radius;
+	final FloatBuffer lumR, lumG, lumB;
+	/** 1 for solid nodes, 0 for others */
+	final ByteBuffer solid;
+	/** Has nodeCount+1 entries so that bindingStart[n+1] is the end of n's bindings */
+	final IntBuffer bindingStart;
+	
+	// Binding table
+	final int bindingCount;
+	final FloatBuffer orbitalScaleX, orbitalScaleY, orbitalScaleZ;
+	final FloatBuffer orbitalDistance, orbitalPhase, orbitalSpeed;
+	final IntBuffer childNode;
+	
+	final int rootNode;
+	/**
+	 * Indexed by node; the ProceduralNode that each node stands for,
+	 * or null for ordinary ones.  Null if there are none at all.
+	 */
+	ProceduralNode[] procedural;
+	/** Backing storage of the above, indexed by RADIUS, LUM_R, etc. */
+	protected final ByteBuffer[] tables;
+	/** See subtreeCosts */
+	protected long[] subtreeCosts;
+	
+	/**
+	 * @param tables TABLE_COUNT buffers, each at least tableSize bytes
+	 *   long and in little-endian order
+	 */
+	protected CompiledScene( int nodeCount, int bindingCount, int rootNode, ByteBuffer[] tables ) {
+		this.nodeCount = nodeCount;
+		this.radius = tables[RADIUS].asFloatBuffer();
+		this.lumR = tables[LUM_R].asFloatBuffer();
+		this.lumG = tables[LUM_G].asFloatBuffer();
+		this.lumB = tables[LUM_B].asFloatBuffer();
+		this.solid = tables[SOLID].duplicate();
+		this.bindingStart = tables[BINDING_START].asIntBuffer();
+		
+		this.bindingCount = bindingCount;
+		this.orbitalScaleX = tables[ORBITAL_SCALE_X].asFloatBuffer();
+		this.orbitalScaleY = tables[ORBITAL_SCALE_Y].asFloatBuffer();
+		this.orbitalScaleZ = tables[ORBITAL_SCALE_Z].asFloatBuffer();
+		this.orbitalDistance = tables[ORBITAL_DISTANCE].asFloatBuffer();
+		this.orbitalPhase = tables[ORBITAL_PHASE].asFloatBuffer();
+		this.orbitalSpeed = tables[ORBITAL_SPEED].asFloatBuffer();
+		this.childNode = tables[CHILD_NODE].asIntBuffer();
+		
+		this.rootNode = rootNode;
+		this.tables = tables;
+	}
+	
+	protected CompiledScene( int nodeCount, int bindingCount, int rootNode, boolean direct ) {
+		this( nodeCount, bindingCount, rootNode, allocateTables(nodeCount, bindingCount, direct) );
+	}
+	
+	/** Size in bytes of the given table for a scene with so many nodes and bindings */
+	static long tableSize( int table, int nodeCount, int bindingCount ) {
+		switch( table ) {
+		case SOLID: return nodeCount;
+		case BINDING_START: return 4L*(nodeCount+1);
+		case RADIUS: case LUM_R: case LUM_G: case LUM_B: return 4L*nodeCount;
+		default: return 4L*bindingCount;
+		}
+	}
+	
+	/**
+	 * @param direct if false, tables are allocated on the heap, where
+	 *   short-lived ones are cheaper to make and to free
+	 */
+	protected static ByteBuffer[] allocateTables( int nodeCount, int bindingCount, boolean direct ) {
+		ByteBuffer[] tables = new ByteBuffer[TABLE_COUNT];
+		for( int t=0; t<TABLE_COUNT; ++t ) {
+			long size = tableSize(t, nodeCount, bindingCount);
+			if( size > Integer.MAX_VALUE ) throw new IllegalArgumentException("Scene too big: "+nodeCount+" nodes, "+bindingCount+" bindings");
+			tables[t] = (direct ? ByteBuffer.allocateDirect((int)size) : ByteBuffer.allocate((int)size)).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return tables;
+	}
+	
+	/**
+	 * Number of nodes in each node's subtree, counting it and every use
+	 * of shared ones, or for procedural nodes their generators' guess
+	 * (see ProceduralNode.Generator.subtreeCost); capped at
+	 * Long.MAX_VALUE/2 so that sums of them don't overflow.  Worked out
+	 * the first time it's asked for.
+	 */
+	public synchronized long[] subtreeCosts() {
+		if( subtreeCosts == null ) {
+			long[] costs = new long[nodeCount];
+			// Children always come before their parents
+			for( int n=0; n<nodeCount; ++n ) {
+				long cost = procedural != null && procedural[n] != null ? procedural[n].subtreeCost() : 1;
+				for( int b=bindingStart.get(n), end=bindingStart.get(n+1); b<end; ++b ) {
+					cost = Math.min(Long.MAX_VALUE/2, cost + costs[childNode.get(b)]);
+				}
+				costs[n] = cost;
+			}
+			subtreeCosts = costs;
+		}
+		return subtreeCosts;
+	}
+	
+	static final Comparator<StarNodeBinding> BINDING_ORDER = new Comparator<StarNodeBinding>() {
+		protected int compare( float a, float b ) {
+			return Float.compare(a, b);
+		}
+		
+		@Override public int compare( StarNodeBinding a, StarNodeBinding b ) {
+			int c;
+			if( (c = compare(a.orbitalDistance, b.orbitalDistance)) != 0 ) return c;
+			if( (c = compare(a.orbitalPhase, b.orbitalPhase)) != 0 ) return c;
+			if( (c = compare(a.orbitalSpeed, b.orbitalSpeed)) != 0 ) return c;
+			if( (c = compare(a.orbitalScaleX, b.orbitalScaleX)) != 0 ) return c;
+			if( (c = compare(a.orbitalScaleY, b.orbitalScaleY)) != 0 ) return c;
+			if( (c = compare(a.orbitalScaleZ, b.orbitalScaleZ)) != 0 ) return c;
+			if( (c = compare(a.child.maximumOuterRadius, b.child.maximumOuterRadius)) != 0 ) return c;
+			if( (c = compare(a.child.totalLuminance.r, b.child.totalLuminance.r)) != 0 ) return c;
+			if( (c = compare(a.child.totalLuminance.g, b.child.totalLuminance.g)) != 0 ) return c;
+			return compare(a.child.totalLuminance.b, b.child.totalLuminance.b);
+		}
+	};
+	
+	static class Compiler {
+		final IdentityHashMap<StarNode,Integer> nodeIndexes = new IdentityHashMap<StarNode,Integer>();
+		final List<StarNode> nodes = new ArrayList<StarNode>();
+		final List<StarNodeBinding> bindings = new ArrayList<StarNodeBinding>();
+		final List<Integer> bindingStarts = new ArrayList<Integer>();
+		/** The one ProceduralNode whose children get generated; others are left as they are */
+		ProceduralNode expanding;
+		boolean hasProcedural;
+		
+		public int add( StarNode n ) {
+			Integer existing = nodeIndexes.get(n);
+			if( existing != null ) return existing.intValue();
+			
+			boolean unexpanded = n instanceof ProceduralNode && n != expanding;
+			hasProcedural |= unexpanded;
+			List<StarNodeBinding> children = unexpanded ?
+				Collections.<StarNodeBinding>emptyList() : new ArrayList<StarNodeBinding>(n.getChildren());
+			Collections.sort(children, BINDING_ORDER);
+			for( StarNodeBinding snb : children ) add(snb.child);
+			
+			int index = nodes.size();
+			nodes.add(n);
+			bindingStarts.add(bindings.size());
+			bindings.addAll(children);
+			nodeIndexes.put(n, index);
+			return index;
+		}
+		
+		public CompiledScene compile( int rootNode, boolean direct ) {
+			CompiledScene cs = new CompiledScene(nodes.size(), bindings.size(), rootNode, direct);
+			if( hasProcedural ) cs.procedural = new ProceduralNode[cs.nodeCount];
+			for( int i=0; i<cs.nodeCount; ++i ) {
+				StarNode n = nodes.get(i);
+				if( n instanceof ProceduralNode && n != expanding ) cs.procedural[i] = (ProceduralNode)n;
+				cs.radius.put(i, n.maximumOuterRadius);
+				cs.lumR.put(i, n.totalLuminance.r);
+				cs.lumG.put(i, n.totalLuminance.g);
+				cs.lumB.put(i, n.totalLuminance.b);
+				cs.solid.put(i, (byte)(n.isSolid() ? 1 : 0));
+				cs.bindingStart.put(i, bindingStarts.get(i).intValue());
+			}
+			cs.bindingStart.put(cs.nodeCount, cs.bindingCount);
+			for( int i=0; i<cs.bindingCount; ++i ) {
+				StarNodeBinding snb = bindings.get(i);
+				cs.orbitalScaleX.put(i, snb.orbitalScaleX);
+				cs.orbitalScaleY.put(i, snb.orbitalScaleY);
+				cs.orbitalScaleZ.put(i, snb.orbitalScaleZ);
+				cs.orbitalDistance.put(i, snb.orbitalDistance);
+				cs.orbitalPhase.put(i, snb.orbitalPhase);
+				cs.orbitalSpeed.put(i, snb.orbitalSpeed);
+				cs.childNode.put(i, nodeIndexes.get(snb.child).intValue());
+			}
+			return cs;
+		}
+	}
+	
+	public static CompiledScene compile( StarNode root ) {
+		Compiler c = new Compiler();
+		int rootNode = c.add(root);
+		return c.compile(rootNode, true);
+	}
+	
+	/**
+	 * Compile one level of a ProceduralNode: a scene whose root is n,
+	 * bound to its freshly generated children, with any procedural
+	 * ones among them left unexpanded.
+	 */
+	public static CompiledScene expand( ProceduralNode n ) {
+		Compiler c = new Compiler();
+		c.expanding = n;
+		int rootNode = c.add(n);
+		return c.compile(rootNode, false);
+	}
+}
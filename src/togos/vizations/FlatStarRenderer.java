@@ -0,0 +1,299 @@
+package togos.vizations;
+
+import java.util.Arrays;
+
+import togos.vizations.Stars.StarNode;
+import togos.vizations.Stars.StarRenderer;
+import togos.vizations.math.Mat4f;
+
+/**
+ * StarRenderer that draws from a CompiledScene's tables instead of
+ * walking StarNode objects, so traversal involves no allocation, no
+ * getChildren calls, and no hash set iteration.  It isn't free of
+ * virtual calls: the tables' columns are buffer views, whose accessors
+ * are bimorphic once procedural expansions' heap buffers turn up
+ * alongside direct ones (see CompiledScene), and with forking on, every
+ * subtree goes past fork.
+ *
+ * draw(t, StarNode) compiles the given scene the first time it sees it
+ * and reuses the result as long as it's given the same root node.
+ * ProceduralNodes are expanded through the renderer's ProceduralCache
+ * as they're descended into.
+ *
+ * When a frame is drawn as several samples, findVisible can do the
+ * culling for all of them at once, and drawVisible then draws each
+ * sample from what's left.
+ */
+class FlatStarRenderer extends StarRenderer
+{
+	protected StarNode compiledRoot;
+	protected CompiledScene compiledScene;
+	/** Binding indexes in a CompiledScene don't match StarNodeBinding.index, so need their own evaluator */
+	final OrbitEvaluator flatOrbits = new OrbitEvaluator();
+	/** If non-null, used to draw small subtrees */
+	ImpostorCache impostors;
+	/** Generated children of the ProceduralNodes drawn so far */
+	ProceduralCache procedural = new ProceduralCache(DEFAULT_PROCEDURAL_BUDGET);
+	
+	static final long DEFAULT_PROCEDURAL_BUDGET = 32L<<20;
+	
+	//// Forking (see ParallelTraversal)
+	
+	static final int FORK_NODE = 0;
+	static final int FORK_VISIBLE = 1;
+	
+	/** If true, fork is asked about every subtree before it's drawn */
+	protected boolean forking = false;
+	
+	/**
+	 * Called with forking on before drawing a subtree (a node with
+	 * drawNode, or with FORK_VISIBLE, a visible set entry) with the
+	 * current transforms, to give it a chance to draw it some other way.
+	 * @return true if it will, so it's to be skipped here
+	 */
+	protected boolean fork( int kind, CompiledScene scene, int index ) {
+		return false;
+	}
+	
+	//// Visible set
+	
+	/** Drawn and descended into at every sample, so needn't be tested */
+	static final byte VISIBLE_DESCEND = 0;
+	/** Culled at some samples, but otherwise descended into */
+	static final byte VISIBLE_TEST = 1;
+	/** Drawn with drawNode (or drawNodeStreaked) as usual, subtree and all */
+	static final byte VISIBLE_DRAW = 2;
+	
+	/**
+	 * Subtrees that aren't culled at some time during the interval given
+	 * to findVisible, in the order traversal would reach them: for each,
+	 * its node, the binding that leads to it (-1 for the root), what to
+	 * do with it, and the index just past the end of its subtree.
+	 * Subtrees culled for the whole interval aren't included at all.
+	 */
+	protected CompiledScene visibleScene;
+	protected int visibleCount;
+	protected int[] visibleNode = new int[256], visibleBinding = new int[256], visibleEnd = new int[256];
+	protected byte[] visibleKind = new byte[256];
+	/** Separate from flatOrbits so that its cached steps aren't disturbed */
+	protected final OrbitEvaluator visibleOrbits = new OrbitEvaluator();
+	
+	protected FlatStarRenderer( int w, int h, PixelLayout layout, boolean allocate ) {
+		super(w, h, layout, allocate);
+	}
+	
+	public FlatStarRenderer( int w, int h, PixelLayout layout ) {
+		this( w, h, layout, true );
+	}
+	
+	public FlatStarRenderer( int w, int h ) {
+		this( w, h, PixelLayout.PLANAR );
+	}
+	
+	public CompiledScene compiled( StarNode root ) {
+		if( root != compiledRoot ) {
+			compiledScene = CompiledScene.compile(root);
+			compiledRoot = root;
+		}
+		return compiledScene;
+	}
+	
+	@Override public void draw( float t, StarNode n ) {
+		draw( t, compiled(n) );
+	}
+	
+	public void draw( float t, CompiledScene scene ) {
+		resolve();
+		drawNode( t, scene, scene.rootNode );
+	}
+	
+	protected final void drawNode( float t, CompiledScene scene, int node ) {
+		if( forking && fork( FORK_NODE, scene, node ) ) return;
+		Mat4f xf = xfStack[xfIndex];
+		++stats.nodesVisited;
+		float radius = scene.radius.get(node);
+		float lumR = scene.lumR.get(node), lumG = scene.lumG.get(node), lumB = scene.lumB.get(node);
+		if( isFaint( xf.m03, xf.m13, xf.m23, radius, lumR, lumG, lumB ) ) return;
+		int result = drawShallow( xf.m03, xf.m13, xf.m23, radius, lumR, lumG, lumB, scene.solid.get(node) != 0 );
+		if( result != DESCEND ) return;
+		
+		if( impostors != null && projPixelDiam <= impostors.pixelThreshold && orthoScale == 0 &&
+			// Sprites can't be split between draw ranges
+			xf.m23 - radius >= nearZ && xf.m23 + radius <= farZ
+		) {
+			// drawShallow's scale is for the node's far edge, but what's
+			// inside it will be drawn closer to the scale at its center
+			float scale = focalLength/xf.m23;
+			ImpostorCache.Sprite sprite = impostors.get(scene, node, xfIndex, t, scale*radius*2, viewRotation, procedural);
+			++stats.impostors;
+			if( splatBins != null ) {
+				splatBins.addSprite(sprite, centerX + scale*xf.m03, centerY + scale*xf.m13, scale);
+			} else {
+				stats.pixelsWritten += ImpostorCache.draw(sprite, centerX + scale*xf.m03, centerY + scale*xf.m13, scale, this);
+			}
+			return;
+		}
+		
+		if( scene.procedural != null && scene.procedural[node] != null ) {
+			ProceduralCache.Expansion e = procedural.get(scene.procedural[node]);
+			drawChildren( t, e.scene, e.orbits, e.scene.rootNode );
+		} else {
+			drawChildren( t, scene, flatOrbits, node );
+		}
+	}
+	
+	protected int addVisible( int node, int binding, byte kind ) {
+		if( visibleCount == visibleNode.length ) {
+			int size = visibleCount*2;
+			visibleNode = Arrays.copyOf(visibleNode, size);
+			visibleBinding = Arrays.copyOf(visibleBinding, size);
+			visibleEnd = Arrays.copyOf(visibleEnd, size);
+			visibleKind = Arrays.copyOf(visibleKind, size);
+		}
+		visibleNode[visibleCount] = node;
+		visibleBinding[visibleCount] = binding;
+		visibleKind[visibleCount] = kind;
+		visibleEnd[visibleCount] = visibleCount + 1;
+		return visibleCount++;
+	}
+	
+	/**
+	 * Find what of scene could be drawn by drawNode or drawNodeStreaked
+	 * at any time within maxTimeOffset of t, given that the camera won't
+	 * be more than cameraSlop from where it is now, or turn or zoom.
+	 * The current camera should be that at t.  Each node is tested as a
+	 * sphere grown by how far it can move in that time: cameraSlop plus,
+	 * for each orbit it's carried by, its distance times the angle it
+	 * sweeps (which is at least as long as the chord).  Its children
+	 * are only looked at if it would be descended into at every sample.
+	 * @param streaked true if drawVisibleStreaked is what will be used
+	 */
+	public void findVisible( float t, float maxTimeOffset, float cameraSlop, CompiledScene scene, boolean streaked ) {
+		visibleScene = scene;
+		visibleCount = 0;
+		// Leave room for rounding, which may put positions a little
+		// differently when they're calculated for the samples
+		Mat4f xf = xfStack[xfIndex];
+		float margin = 1e-5f*(Math.abs(xf.m03) + Math.abs(xf.m13) + Math.abs(xf.m23) + scene.radius.get(scene.rootNode));
+		findVisible( t, maxTimeOffset, scene, scene.rootNode, -1, cameraSlop + margin, streaked );
+	}
+	
+	protected void findVisible( float t, float maxTimeOffset, CompiledScene scene, int node, int binding, float slop, boolean streaked ) {
+		Mat4f xf = xfStack[xfIndex];
+		byte kind = sweptVisibility( xf.m03, xf.m13, xf.m23, slop, scene, node, streaked );
+		if( kind < 0 ) return;
+		int entry = addVisible( node, binding, kind );
+		if( kind == VISIBLE_DRAW ) return;
+		
+		++xfIndex;
+		float sweep = (float)(Math.PI*2)*maxTimeOffset;
+		for( int b=scene.bindingStart.get(node), end=scene.bindingStart.get(node+1); b<end; ++b ) {
+			float speed = scene.orbitalSpeed.get(b), distance = scene.orbitalDistance.get(b);
+			visibleOrbits.evaluate( b, scene.orbitalPhase.get(b), speed, t );
+			orbitTransform( xfIndex, visibleOrbits.sin, visibleOrbits.cos, distance, xfStack[xfIndex-1], xfStack[xfIndex] );
+			findVisible( t, maxTimeOffset, scene, scene.childNode.get(b), b, slop + distance*Math.abs(speed)*sweep, streaked );
+		}
+		--xfIndex;
+		visibleEnd[entry] = visibleCount;
+	}
+	
+	/**
+	 * Classify a node at view-space position x, y, z that may be up to
+	 * slop away from there at any of the samples.  Tests are those of
+	 * drawShallow, isFaint and drawNode (which StreakStarRenderer's are
+	 * no stricter than) with z and the frustum planes' distances pushed
+	 * by slop whichever way makes them pass or fail for sure.  Nothing
+	 * is culled here for being faint, since that has to come out of each
+	 * sample's faintLight, but anything that might be gets tested.
+	 * @return -1 if it'd be culled at every sample, or a VISIBLE_ kind
+	 */
+	protected byte sweptVisibility( float x, float y, float z, float slop, CompiledScene scene, int node, boolean streaked ) {
+		float radius = scene.radius.get(node);
+		float lum = Math.max(scene.lumR.get(node), Math.max(scene.lumG.get(node), scene.lumB.get(node)));
+		boolean solid = scene.solid.get(node) != 0;
+		float k = focalLength;
+		float left = k*x + frustumLeft*z, right = frustumRight*z - k*x;
+		float top = k*y + frustumTop*z, bottom = frustumBottom*z - k*y;
+		
+		if( z + slop + radius <= nearZ || z - slop - radius >= farZ ||
+			solid && z + slop < nearZ ||
+			left <= -(radius + slop)*frustumLeftNorm || right <= -(radius + slop)*frustumRightNorm ||
+			top <= -(radius + slop)*frustumTopNorm || bottom <= -(radius + slop)*frustumBottomNorm
+		) {
+			return -1;
+		}
+		
+		if( solid || scene.procedural != null && scene.procedural[node] != null ) return VISIBLE_DRAW;
+		// Never splatted, or drawn as an impostor, even at its farthest
+		if( z + slop > 0 ) {
+			float minPixelDiam = k/(z + slop + radius)*radius*2;
+			if( minPixelDiam <= splatDiameter ) return VISIBLE_DRAW;
+			if( !streaked && impostors != null && minPixelDiam <= impostors.pixelThreshold ) return VISIBLE_DRAW;
+		}
+		
+		if( z - slop + radius <= nearZ || z + slop - radius >= farZ ||
+			left <= -(radius - slop)*frustumLeftNorm || right <= -(radius - slop)*frustumRightNorm ||
+			top <= -(radius - slop)*frustumTopNorm || bottom <= -(radius - slop)*frustumBottomNorm ||
+			faintLight > 0 && faintBound( z + slop, radius, lum ) <= faintLight
+		) {
+			return VISIBLE_TEST;
+		}
+		return VISIBLE_DESCEND;
+	}
+	
+	/**
+	 * Draw the visible set found by the last findVisible call, at time
+	 * t, which should be within the interval it was found for.  The
+	 * result is the same as drawing its scene with draw.
+	 */
+	public void drawVisible( float t ) {
+		resolve();
+		if( visibleCount > 0 ) drawVisible( t, 0 );
+	}
+	
+	/** @return the index just past entry's subtree */
+	protected int drawVisible( float t, int entry ) {
+		if( forking && fork( FORK_VISIBLE, visibleScene, entry ) ) return visibleEnd[entry];
+		CompiledScene scene = visibleScene;
+		int node = visibleNode[entry];
+		switch( visibleKind[entry] ) {
+		case VISIBLE_DRAW:
+			drawNode( t, scene, node );
+			return visibleEnd[entry];
+		case VISIBLE_TEST:
+			Mat4f xf = xfStack[xfIndex];
+			++stats.nodesVisited;
+			float radius = scene.radius.get(node);
+			float lumR = scene.lumR.get(node), lumG = scene.lumG.get(node), lumB = scene.lumB.get(node);
+			if( isFaint( xf.m03, xf.m13, xf.m23, radius, lumR, lumG, lumB ) ||
+				drawShallow( xf.m03, xf.m13, xf.m23, radius, lumR, lumG, lumB, false ) != DESCEND
+			) {
+				return visibleEnd[entry];
+			}
+			break;
+		default:
+			++stats.nodesVisited;
+		}
+		
+		++xfIndex;
+		for( int e=entry+1, end=visibleEnd[entry]; e<end; ) {
+			int b = visibleBinding[e];
+			flatOrbits.evaluate( b, scene.orbitalPhase.get(b), scene.orbitalSpeed.get(b), t );
+			orbitTransform( xfIndex, flatOrbits.sin, flatOrbits.cos, scene.orbitalDistance.get(b), xfStack[xfIndex-1], xfStack[xfIndex] );
+			e = drawVisible( t, e );
+		}
+		--xfIndex;
+		return visibleEnd[entry];
+	}
+	
+	/** Draw node's children, evaluating scene's orbits with the given evaluator */
+	protected final void drawChildren( float t, CompiledScene scene, OrbitEvaluator orbits, int node ) {
+		++xfIndex;
+		for( int b=scene.bindingStart.get(node), end=scene.bindingStart.get(node+1); b<end; ++b ) {
+			orbits.evaluate( b, scene.orbitalPhase.get(b), scene.orbitalSpeed.get(b), t );
+			orbitTransform( xfIndex, orbits.sin, orbits.cos, scene.orbitalDistance.get(b), xfStack[xfIndex-1], xfStack[xfIndex] );
+			drawNode( t, scene, scene.childNode.get(b) );
+		}
+		--xfIndex;
+	}
+}
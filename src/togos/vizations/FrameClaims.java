@@ -0,0 +1,181 @@
+package togos.vizations;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a range of frames into chunks that any number of processes,
+ * on this or other machines sharing the output directory, can work on
+ * without any coordinator.
+ *
+ * A process claims a chunk by creating its claim file, which fails if
+ * someone else already has it.  Claims are kept fresh by touching them
+ * every staleClaimAge/4 milliseconds; one that hasn't been touched
+ * for staleClaimAge is assumed to belong to a process that died, and is
+ * broken (renamed away, so only one process can break it) and
+ * re-claimed.  staleClaimAge should be well beyond any clock skew
+ * between machines.  If a claim is broken anyway, e.g. by a process
+ * that saw it just before it was re-claimed, its owner recreates it at
+ * the next touch if it can; at worst two processes render the same
+ * frames, which come out the same either way.
+ *
+ * Whether a chunk is done is decided by asking the sink about each of
+ * its frames, so there are no completion markers to get out of sync
+ * with the frames themselves.  Claims are kept until releaseAll is
+ * called, which should be after the sink is closed so that frames
+ * still being written asynchronously aren't taken for missing ones.
+ *
+ * Chunk boundaries should line up with those of any layers that are
+ * reused between frames (see LayeredRenderer.Layer.framesPerRender)
+ * so that no two processes need the same layer renderings; the first
+ * frame of each chunk then renders whatever it needs from scratch.
+ */
+class FrameClaims
+{
+	final File claimDir;
+	final int chunkSize;
+	final String workerId;
+	long staleClaimAge = 10*60*1000;
+	
+	protected final List<File> heldClaims = new ArrayList<File>();
+	protected Thread heartbeat;
+	
+	public FrameClaims( File claimDir, int chunkSize, String workerId ) {
+		this.claimDir = claimDir;
+		this.chunkSize = chunkSize;
+		this.workerId = workerId;
+	}
+	
+	/** Something that identifies this process; pid@hostname on most JVMs */
+	public static String defaultWorkerId() {
+		return ManagementFactory.getRuntimeMXBean().getName();
+	}
+	
+	protected File claimFile( int chunk ) {
+		return new File(claimDir, String.format("chunk%08d.claim", chunk));
+	}
+	
+	protected boolean isStale( File claim ) {
+		long lastModified = claim.lastModified();
+		// 0 means it disappeared, which is as good as stale
+		return lastModified == 0 || System.currentTimeMillis() - lastModified > staleClaimAge;
+	}
+	
+	/**
+	 * Remove a stale claim file.  It's first renamed to a name unique to
+	 * this worker so that if several notice it at once only one of them
+	 * gets to remove it.
+	 * @return true if this worker removed it
+	 */
+	protected boolean breakClaim( File claim ) {
+		File broken = new File(claim.getPath()+".broken-"+workerId.replaceAll("[^A-Za-z0-9.@_-]", "_"));
+		if( !claim.renameTo(broken) ) return false;
+		boolean stale = isStale(broken);
+		broken.delete();
+		// If it's fresh, someone else broke and re-claimed it between
+		// isStale and renameTo.  Renaming it back could clobber a claim
+		// made since by yet another worker, so it's left for its owner
+		// to recreate (see touchHeldClaims), and this worker backs off.
+		return stale;
+	}
+	
+	/** @return true if the chunk is now claimed by this worker */
+	public boolean tryClaim( int chunk ) throws IOException {
+		File claim = claimFile(chunk);
+		if( !claimDir.exists() ) claimDir.mkdirs();
+		if( !claim.createNewFile() ) {
+			if( !isStale(claim) || !breakClaim(claim) ) return false;
+			System.err.println("Breaking stale claim "+claim);
+			if( !claim.createNewFile() ) return false;
+		}
+		FileOutputStream fos = new FileOutputStream(claim);
+		try {
+			fos.write((workerId+"\n").getBytes(Charset.forName("UTF-8")));
+		} finally {
+			fos.close();
+		}
+		synchronized( heldClaims ) {
+			heldClaims.add(claim);
+		}
+		return true;
+	}
+	
+	/** Keep held claims fresh, recreating any that have been broken */
+	protected void touchHeldClaims() {
+		long now = System.currentTimeMillis();
+		synchronized( heldClaims ) {
+			for( File claim : heldClaims ) {
+				if( claim.setLastModified(now) ) continue;
+				try {
+					if( !claim.createNewFile() ) System.err.println("Lost claim "+claim+" to another worker");
+				} catch( IOException e ) {
+					System.err.println("Failed to recreate broken claim "+claim+": "+e.getMessage());
+				}
+			}
+		}
+	}
+	
+	public synchronized void startHeartbeat() {
+		if( heartbeat != null ) return;
+		heartbeat = new Thread("Frame claim heartbeat") {
+			@Override public void run() {
+				try {
+					while( !interrupted() ) {
+						sleep(staleClaimAge/4);
+						touchHeldClaims();
+					}
+				} catch( InterruptedException e ) {
+				}
+			}
+		};
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+	}
+	
+	/** Stop touching claims and delete them */
+	public synchronized void releaseAll() {
+		if( heartbeat != null ) {
+			heartbeat.interrupt();
+			heartbeat = null;
+		}
+		synchronized( heldClaims ) {
+			for( File claim : heldClaims ) claim.delete();
+			heldClaims.clear();
+		}
+	}
+	
+	protected boolean isComplete( int firstFrame, int endFrame, FramePipeline.FrameSink sink ) {
+		for( int frame=firstFrame; frame<endFrame; ++frame ) {
+			if( !sink.hasFrame(frame) ) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Render every chunk overlapping firstFrame (inclusive) to endFrame
+	 * (exclusive) that isn't complete and that this worker can claim,
+	 * repeating until a pass over them claims nothing, so that chunks
+	 * whose claims go stale in the meantime are picked up too.
+	 */
+	public void run( FramePipeline pipeline, int firstFrame, int endFrame, FramePipeline.FrameSink sink ) throws InterruptedException, IOException {
+		startHeartbeat();
+		boolean claimedAny;
+		do {
+			claimedAny = false;
+			for( int chunk = firstFrame / chunkSize; chunk*chunkSize < endFrame; ++chunk ) {
+				int chunkStart = Math.max(firstFrame, chunk*chunkSize);
+				int chunkEnd = Math.min(endFrame, (chunk+1)*chunkSize);
+				if( isComplete(chunkStart, chunkEnd, sink) || !tryClaim(chunk) ) continue;
+				
+				System.err.println(workerId+" claimed frames "+chunkStart+" to "+(chunkEnd-1));
+				claimedAny = true;
+				pipeline.run(chunkStart, chunkEnd, sink);
+			}
+		} while( claimedAny );
+	}
+}
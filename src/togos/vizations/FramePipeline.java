@@ -0,0 +1,116 @@
+package togos.vizations;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Renders several frames at once, one per FrameRenderer,
+ * and hands them to a FrameSink strictly in frame order.
+ */
+class FramePipeline
+{
+	/**
+	 * Renders a single frame at a time.  The pipeline never uses
+	 * the same FrameRenderer for two frames concurrently.
+	 */
+	interface FrameRenderer {
+		/**
+		 * Render the frame, filling in argb.
+		 * @return the buffer holding the unquantized frame, which must
+		 *   be left alone until the next call to renderFrame.
+		 */
+		public RenderBuffer renderFrame( int frame, int[] argb ) throws Exception;
+	}
+	
+	interface FrameSink {
+		/** Return true if the frame's already been output, in which case it is skipped */
+		public boolean hasFrame( int frame );
+		/**
+		 * Called in frame order, from the thread that called run.
+		 * Neither buffer may be held onto after this returns.
+		 */
+		public void putFrame( int frame, RenderBuffer frameData, int[] argb ) throws IOException;
+		public void close() throws IOException;
+	}
+	
+	static class Slot {
+		final FrameRenderer renderer;
+		final int[] argb;
+		
+		public Slot( FrameRenderer renderer, int[] argb ) {
+			this.renderer = renderer;
+			this.argb = argb;
+		}
+	}
+	
+	static class InFlightFrame {
+		final int frame;
+		final Slot slot;
+		final Future<RenderBuffer> result;
+		
+		public InFlightFrame( int frame, Slot slot, Future<RenderBuffer> result ) {
+			this.frame = frame;
+			this.slot = slot;
+			this.result = result;
+		}
+	}
+	
+	final BlockingQueue<Slot> idleSlots;
+	final int slotCount;
+	
+	public FramePipeline( List<? extends FrameRenderer> renderers, int pixelCount ) {
+		this.slotCount = renderers.size();
+		this.idleSlots = new ArrayBlockingQueue<Slot>(slotCount);
+		for( FrameRenderer r : renderers ) idleSlots.add(new Slot(r, new int[pixelCount]));
+	}
+	
+	protected void finish( InFlightFrame f, FrameSink sink ) throws InterruptedException, IOException {
+		RenderBuffer frameData;
+		try {
+			frameData = f.result.get();
+		} catch( ExecutionException e ) {
+			throw new RuntimeException("Failed to render frame "+f.frame, e.getCause());
+		}
+		sink.putFrame(f.frame, frameData, f.slot.argb);
+		idleSlots.add(f.slot);
+	}
+	
+	/**
+	 * Render frames from firstFrame (inclusive) to endFrame (exclusive)
+	 * that the sink doesn't already have.
+	 */
+	public void run( int firstFrame, int endFrame, FrameSink sink ) throws InterruptedException, IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(slotCount);
+		ArrayDeque<InFlightFrame> inFlight = new ArrayDeque<InFlightFrame>();
+		try {
+			for( int frame=firstFrame; frame<endFrame; ++frame ) {
+				if( sink.hasFrame(frame) ) continue;
+				
+				// Output finished frames until a slot frees up
+				while( idleSlots.isEmpty() ) finish( inFlight.removeFirst(), sink );
+				
+				final int _frame = frame;
+				final Slot slot = idleSlots.remove();
+				Future<RenderBuffer> result = executor.submit(new Callable<RenderBuffer>() {
+					@Override public RenderBuffer call() throws Exception {
+						return slot.renderer.renderFrame(_frame, slot.argb);
+					}
+				});
+				inFlight.addLast(new InFlightFrame(frame, slot, result));
+			}
+			while( !inFlight.isEmpty() ) finish( inFlight.removeFirst(), sink );
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package togos.vizations;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import togos.vizations.Stars.FColor;
+import togos.vizations.Stars.SolidNode;
+import togos.vizations.Stars.StarNode;
+import togos.vizations.Stars.StarNodeBinding;
+
+/**
+ * Generates a galaxy of clusters of clusters of stars, every one of
+ * them different, to be expanded lazily as ProceduralNodes.
+ *
+ * A node at level L > 0 has branchingFactor children at level L-1,
+ * each radiusRatio times its radius, at random orbital distances and
+ * phases; level 0 nodes are single stars.  Light is split top-down:
+ * each node's light (luminance times radius squared) is divided among
+ * its children by random weights, separately per channel so that stars
+ * get different colors, which keeps every node's luminance exactly
+ * that of what's inside it without having to look inside.
+ *
+ * With the defaults that's 8^10, or about a billion, stars.
+ */
+class GalaxyGenerator implements ProceduralNode.Generator
+{
+	int levels = 10;
+	int branchingFactor = 8;
+	float radiusRatio = 0.3f;
+	float radius = 80000;
+	/** Pixel color per area of the whole galaxy */
+	FColor luminance = new FColor(0.02f, 0.015f, 0.012f);
+	long seed = 1;
+	
+	public ProceduralNode root() {
+		return new ProceduralNode(radius, luminance, this, seed, levels);
+	}
+	
+	/** SplitMix64's finalizer, to give children well-spread seeds */
+	protected static long mix( long z ) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	@Override public Set<StarNodeBinding> generateChildren( ProceduralNode node ) {
+		Random rand = new Random(node.seed);
+		int n = branchingFactor;
+		float childRadius = node.maximumOuterRadius * radiusRatio;
+		float maxDistance = node.maximumOuterRadius - childRadius;
+		
+		float[] wr = new float[n], wg = new float[n], wb = new float[n];
+		float tr = 0, tg = 0, tb = 0;
+		for( int i=0; i<n; ++i ) {
+			float weight = 0.2f + rand.nextFloat();
+			tr += wr[i] = weight*(0.5f + rand.nextFloat());
+			tg += wg[i] = weight*(0.5f + rand.nextFloat());
+			tb += wb[i] = weight*(0.5f + rand.nextFloat());
+		}
+		// Light per child = parent light * weight / total weight; luminance = light / radius^2
+		float area = node.maximumOuterRadius*node.maximumOuterRadius, childArea = childRadius*childRadius;
+		float lr = node.totalLuminance.r*area/childArea/tr;
+		float lg = node.totalLuminance.g*area/childArea/tg;
+		float lb = node.totalLuminance.b*area/childArea/tb;
+		
+		Set<StarNodeBinding> children = new HashSet<StarNodeBinding>();
+		for( int i=0; i<n; ++i ) {
+			FColor lum = new FColor(wr[i]*lr, wg[i]*lg, wb[i]*lb);
+			StarNode child = node.level == 1 ?
+				new SolidNode(childRadius, lum) :
+				new ProceduralNode(childRadius, lum, this, mix(node.seed*31 + i), node.level - 1);
+			float distance = maxDistance*(0.2f + 0.8f*rand.nextFloat());
+			// Closer in orbits faster, about like the hand-built galaxy
+			float speed = -4/Math.max(distance, 1)*(0.8f + 0.4f*rand.nextFloat());
+			children.add(new StarNodeBinding(
+				rand.nextInt(2), rand.nextInt(2), rand.nextInt(2),
+				distance, rand.nextFloat(), speed, child));
+		}
+		return children;
+	}
+	
+	@Override public long subtreeCost( ProceduralNode node ) {
+		long cost = 1, levelSize = 1;
+		for( int l=node.level; l>0 && cost < Long.MAX_VALUE/(2*branchingFactor); --l ) {
+			levelSize *= branchingFactor;
+			cost += levelSize;
+		}
+		return cost;
+	}
+}
@@ -0,0 +1,262 @@
+package togos.vizations;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import togos.vizations.Stars.RenderBuffer;
+import togos.vizations.math.Mat4f;
+
+/**
+ * Prerendered sprites standing in for subtrees that are too small on
+ * screen to be worth traversing.
+ *
+ * Sprites are keyed by node (a CompiledScene and node index), depth
+ * parity (which decides orbital planes), size (quantized to
+ * quarter-octaves and rendered at the top of the range), and time
+ * (quantized to timeQuantum and rendered at the middle of the range,
+ * or exact if timeQuantum is 0).  Least recently used sprites are
+ * evicted to stay under memoryBudget bytes.  With exact times, sprites
+ * for one time are never used at another, so the cache is cleared
+ * whenever it's asked for a different time.
+ *
+ * Sprites are rendered orthographically, so perspective within the
+ * subtree is ignored; since a subtree no more than pixelThreshold
+ * pixels across is far away relative to its size, the difference is
+ * small.  They're rendered for a particular view rotation, and all
+ * are discarded when asked for one with another, so they're only
+ * worth using while the camera's orientation stays the same.
+ *
+ * Not thread-safe; each renderer should have its own.
+ */
+class ImpostorCache
+{
+	static final int SIZE_STEPS_PER_OCTAVE = 4;
+	
+	static final class Key {
+		CompiledScene scene;
+		int node, parity, sizeBucket;
+		float time;
+		
+		public Key() { }
+		
+		public Key( Key k ) {
+			this.scene = k.scene;
+			this.node = k.node;
+			this.parity = k.parity;
+			this.sizeBucket = k.sizeBucket;
+			this.time = k.time;
+		}
+		
+		@Override public boolean equals( Object o ) {
+			if( !(o instanceof Key) ) return false;
+			Key k = (Key)o;
+			return scene == k.scene && node == k.node && parity == k.parity &&
+				sizeBucket == k.sizeBucket && Float.floatToIntBits(time) == Float.floatToIntBits(k.time);
+		}
+		
+		@Override public int hashCode() {
+			int hash = System.identityHashCode(scene);
+			hash = hash*31 + node;
+			hash = hash*31 + parity;
+			hash = hash*31 + sizeBucket;
+			hash = hash*31 + Float.floatToIntBits(time);
+			return hash;
+		}
+	}
+	
+	static final class Sprite {
+		/** Width and height, in pixels */
+		final int size;
+		/** Pixels per world unit */
+		final float scale;
+		final float[] r, g, b;
+		
+		public Sprite( int size, float scale, float[] r, float[] g, float[] b ) {
+			this.size = size;
+			this.scale = scale;
+			this.r = r; this.g = g; this.b = b;
+		}
+		
+		public long byteCount() {
+			return 64 + 12L*size*size;
+		}
+	}
+	
+	/** Subtrees no bigger than this many pixels across are drawn as sprites */
+	float pixelThreshold = 16;
+	/**
+	 * One frame at Animation's default dt.  Its frames' times are in the
+	 * middle of their buckets, so single-sample layers get sprites for
+	 * exactly their time, but a layer's samples share them, and a cache
+	 * asked for different frames' times in turn (as ParallelTraversal's
+	 * are) keeps them rather than starting over each time.  Longer ones
+	 * let neighbouring frames share sprites too, at the cost of their
+	 * insides lagging behind.
+	 */
+	static final float DEFAULT_TIME_QUANTUM = 0.01f;
+	
+	/** If > 0, sprites are rendered at times quantized to this */
+	float timeQuantum = DEFAULT_TIME_QUANTUM;
+	long memoryBudget;
+	long memoryUsed;
+	
+	public long hits, misses, evictions;
+	
+	final LinkedHashMap<Key,Sprite> sprites = new LinkedHashMap<Key,Sprite>(64, 0.75f, true);
+	final Key probe = new Key();
+	/** View rotation that the cached sprites were rendered for */
+	final Mat4f rotation = new Mat4f();
+	/** Time the cached sprites were rendered for, if timeQuantum isn't > 0 */
+	float time = Float.NaN;
+	/**
+	 * Renders sprites into its top left corner; made as big as the
+	 * biggest so far, and reused for every one.  Its orbits aren't
+	 * stepped, since sprites can be for any time in any order.
+	 */
+	protected FlatStarRenderer spriteRenderer;
+	
+	public ImpostorCache( float pixelThreshold, long memoryBudget ) {
+		this.pixelThreshold = pixelThreshold;
+		this.memoryBudget = memoryBudget;
+	}
+	
+	protected Sprite render( CompiledScene scene, int node, int depth, float time, int sizeBucket, ProceduralCache procedural ) {
+		float diam = (float)Math.pow(2, (double)sizeBucket/SIZE_STEPS_PER_OCTAVE);
+		// Even, so the node lands exactly in the middle, with a pixel of padding
+		int size = 2*(int)Math.ceil(diam/2 + 1);
+		float scale = diam / (scene.radius.get(node)*2);
+		
+		if( spriteRenderer == null || spriteRenderer.w < size ) {
+			spriteRenderer = new FlatStarRenderer(size, size);
+			spriteRenderer.flatOrbits.stepping = spriteRenderer.visibleOrbits.stepping = spriteRenderer.orbits.stepping = false;
+		}
+		FlatStarRenderer sr = spriteRenderer;
+		sr.clear();
+		// Centered on, and with discs spread over, just the sprite
+		sr.setWindow(size, size, 0, 0);
+		sr.orthoScale = scale;
+		sr.procedural = procedural;
+		sr.loadTransform(depth, rotation);
+		sr.drawNode(time, scene, node);
+		
+		float[] r = new float[size*size], g = new float[size*size], b = new float[size*size];
+		for( int y=0; y<size; ++y ) {
+			System.arraycopy(sr.r, y*sr.w, r, y*size, size);
+			System.arraycopy(sr.g, y*sr.w, g, y*size, size);
+			System.arraycopy(sr.b, y*sr.w, b, y*size, size);
+		}
+		return new Sprite(size, scale, r, g, b);
+	}
+	
+	protected void evict() {
+		Iterator<Map.Entry<Key,Sprite>> i = sprites.entrySet().iterator();
+		while( memoryUsed > memoryBudget && i.hasNext() ) {
+			memoryUsed -= i.next().getValue().byteCount();
+			i.remove();
+			++evictions;
+		}
+	}
+	
+	protected static boolean sameRotation( Mat4f a, Mat4f b ) {
+		return
+			a.m00 == b.m00 && a.m01 == b.m01 && a.m02 == b.m02 &&
+			a.m10 == b.m10 && a.m11 == b.m11 && a.m12 == b.m12 &&
+			a.m20 == b.m20 && a.m21 == b.m21 && a.m22 == b.m22;
+	}
+	
+	protected void clear() {
+		evictions += sprites.size();
+		sprites.clear();
+		memoryUsed = 0;
+	}
+	
+	/**
+	 * @param t time to render the subtree at; with exact times, if it's
+	 *   not the same as last time, the cache is cleared
+	 * @param viewRotation rotation part of the view transform;
+	 *   if it's not the same as last time, the cache is cleared
+	 * @param procedural used to expand any ProceduralNodes in the subtree
+	 */
+	public Sprite get( CompiledScene scene, int node, int depth, float t, float pixelDiam, Mat4f viewRotation, ProceduralCache procedural ) {
+		if( !sameRotation(rotation, viewRotation) ) {
+			clear();
+			rotation.set(viewRotation);
+		}
+		if( timeQuantum <= 0 && Float.floatToIntBits(t) != Float.floatToIntBits(time) ) {
+			clear();
+			time = t;
+		}
+		
+		probe.scene = scene;
+		probe.node = node;
+		probe.parity = depth % 2;
+		probe.sizeBucket = (int)Math.ceil(Math.log(pixelDiam)/Math.log(2)*SIZE_STEPS_PER_OCTAVE);
+		probe.time = timeQuantum > 0 ? ((float)Math.floor(t/timeQuantum)+0.5f)*timeQuantum : t;
+		
+		Sprite s = sprites.get(probe);
+		if( s != null ) {
+			++hits;
+			return s;
+		}
+		
+		++misses;
+		s = render(scene, node, depth, probe.time, probe.sizeBucket, procedural);
+		sprites.put(new Key(probe), s);
+		memoryUsed += s.byteCount();
+		evict();
+		return s;
+	}
+	
+	/**
+	 * Draw a sprite into dest, centered at cx,cy and scaled to scale
+	 * pixels per unit, sampling it bilinearly.
+	 * @return the number of pixels written
+	 */
+	public static int draw( Sprite s, float cx, float cy, float scale, RenderBuffer dest ) {
+		return draw( s, cx, cy, scale, dest, 0, 0, dest.w, dest.h );
+	}
+	
+	/**
+	 * draw, but only to pixels from clipX0, clipY0 up to but not
+	 * including clipX1, clipY1 (e.g. a SplatBins tile)
+	 */
+	public static int draw( Sprite s, float cx, float cy, float scale, RenderBuffer dest, int clipX0, int clipY0, int clipX1, int clipY1 ) {
+		// Sprite pixels per destination pixel
+		float k = s.scale / scale;
+		float halfExtent = s.size / 2 / k;
+		int minX = Math.max(clipX0, (int)(cx - halfExtent));
+		int maxX = Math.min(clipX1, (int)(cx + halfExtent) + 1);
+		int minY = Math.max(clipY0, (int)(cy - halfExtent));
+		int maxY = Math.min(clipY1, (int)(cy + halfExtent) + 1);
+		int half = s.size / 2, last = s.size - 1;
+		int pixelsWritten = 0;
+		
+		for( int py=minY; py<maxY; ++py ) {
+			float v = (py + 0.5f - cy)*k + half - 0.5f;
+			int v0 = (int)Math.floor(v);
+			float fv = v - v0;
+			if( v0 < -1 || v0 > last ) continue;
+			for( int px=minX, i=py*dest.w+px; px<maxX; ++px, ++i ) {
+				float u = (px + 0.5f - cx)*k + half - 0.5f;
+				int u0 = (int)Math.floor(u);
+				if( u0 < -1 || u0 > last ) continue;
+				float fu = u - u0;
+				
+				float w00 = (1-fu)*(1-fv), w10 = fu*(1-fv), w01 = (1-fu)*fv, w11 = fu*fv;
+				float sr = 0, sg = 0, sb = 0;
+				if( v0 >= 0 ) {
+					if( u0 >= 0 ) { int j = v0*s.size+u0; sr += w00*s.r[j]; sg += w00*s.g[j]; sb += w00*s.b[j]; }
+					if( u0 < last ) { int j = v0*s.size+u0+1; sr += w10*s.r[j]; sg += w10*s.g[j]; sb += w10*s.b[j]; }
+				}
+				if( v0 < last ) {
+					if( u0 >= 0 ) { int j = (v0+1)*s.size+u0; sr += w01*s.r[j]; sg += w01*s.g[j]; sb += w01*s.b[j]; }
+					if( u0 < last ) { int j = (v0+1)*s.size+u0+1; sr += w11*s.r[j]; sg += w11*s.g[j]; sb += w11*s.b[j]; }
+				}
+				dest.addPixel( i, sr, sg, sb );
+				++pixelsWritten;
+			}
+		}
+		return pixelsWritten;
+	}
+}
@@ -0,0 +1,427 @@
+package togos.vizations;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import togos.vizations.Stars.Animation;
+import togos.vizations.Stars.RenderBuffer;
+import togos.vizations.Stars.StarRenderer;
+import togos.vizations.math.Mat4f;
+import togos.vizations.math.Vec4f;
+
+/**
+ * Renders frames of an Animation as a stack of depth layers, each with
+ * its own temporal sampling.  Close stuff moves fast on screen and
+ * needs many samples per frame to blur nicely; far away stuff barely
+ * moves, so can be drawn once and reused for several frames.
+ *
+ * Each layer is drawn into its own buffer, so independent layers can
+ * be drawn in parallel, and then they are all added together and
+ * multiplied by the animation's exposure.
+ */
+class LayeredRenderer
+{
+	static class Layer {
+		final float nearZ, farZ;
+		/** Number of times to draw this layer over the course of the frame's shutter interval */
+		final int samplesPerFrame;
+		/** Number of consecutive frames that can use the same rendering of this layer */
+		final int framesPerRender;
+		/**
+		 * When reusing the layer for a different frame, its contents are
+		 * reprojected as if they were all at this distance from the camera
+		 */
+		float reprojectionDepth;
+		/**
+		 * If true, and the layer's renderer is a StreakStarRenderer, each
+		 * sample is drawn as streaks covering its share of the shutter
+		 * interval instead of as a snapshot.  A sample or two is then
+		 * enough for smooth blur; more only make curved paths more accurate.
+		 */
+		boolean streaked = false;
+		
+		public Layer( float nearZ, float farZ, int samplesPerFrame, int framesPerRender ) {
+			this.nearZ = nearZ;
+			this.farZ = farZ;
+			this.samplesPerFrame = samplesPerFrame;
+			this.framesPerRender = framesPerRender;
+			// Screen-space motion is proportional to 1/z,
+			// so use the harmonic mean of the bounds
+			this.reprojectionDepth = Float.isInfinite(farZ) ? nearZ*2 : 2*nearZ*farZ/(nearZ+farZ);
+		}
+	}
+	
+	interface StarRendererFactory {
+		public StarRenderer create( int w, int h );
+	}
+	
+	/** A layer as rendered for some range of frames */
+	static class RenderedLayer {
+		final RenderBuffer buffer;
+		/** Time at the middle of the shutter interval it was rendered for */
+		final float time;
+		
+		public RenderedLayer( RenderBuffer buffer, float time ) {
+			this.buffer = buffer;
+			this.time = time;
+		}
+	}
+	
+	/**
+	 * Holds renderings of layers that are reused between frames so that
+	 * LayeredRenderers working on different frames can share them.
+	 * Whichever asks for one first renders it; others wait for the result.
+	 * Renderings are a pure function of layer and frame range, so an
+	 * evicted one can always be re-rendered if a straggler needs it.
+	 */
+	static class LayerCache {
+		final int maxRendersPerLayer;
+		final ConcurrentHashMap<Long,FutureTask<RenderedLayer>> renders = new ConcurrentHashMap<Long,FutureTask<RenderedLayer>>();
+		
+		public LayerCache( int maxRendersPerLayer ) {
+			this.maxRendersPerLayer = maxRendersPerLayer;
+		}
+		
+		protected static Long key( int layerIndex, int renderNumber ) {
+			return Long.valueOf(((long)layerIndex << 32) | (renderNumber & 0xFFFFFFFFL));
+		}
+		
+		/**
+		 * Forget the layer's renderings numbered below oldestKept,
+		 * including any left over from before a jump to a later frame.
+		 */
+		protected void evictBefore( int layerIndex, int oldestKept ) {
+			for( Iterator<Long> i = renders.keySet().iterator(); i.hasNext(); ) {
+				long key = i.next().longValue();
+				if( (int)(key >> 32) == layerIndex && (int)key < oldestKept ) i.remove();
+			}
+		}
+		
+		public RenderedLayer get( int layerIndex, int renderNumber, Callable<RenderedLayer> renderer ) throws InterruptedException {
+			FutureTask<RenderedLayer> task = new FutureTask<RenderedLayer>(renderer);
+			FutureTask<RenderedLayer> existing = renders.putIfAbsent(key(layerIndex, renderNumber), task);
+			if( existing == null ) {
+				task.run();
+				evictBefore(layerIndex, renderNumber - maxRendersPerLayer);
+			} else {
+				task = existing;
+			}
+			try {
+				return task.get();
+			} catch( ExecutionException e ) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+	}
+	
+	final Animation animation;
+	final List<Layer> layers;
+	final LayerCache cache;
+	final ExecutorService executor;
+	final int w, h;
+	final StarRenderer[] layerRenderers;
+	final RenderBuffer output;
+	/** If non-null, layers drawn by FlatStarRenderers have their traversal split between its threads */
+	ParallelTraversal parallel;
+	
+	/** Frame that the stats below are for */
+	int statsFrame = -1;
+	/** What was drawn for each layer of the last frame; all zero for reused layers */
+	final RenderStats[] layerStats;
+	/** Wall time spent drawing each layer of the last frame, in nanoseconds */
+	final long[] layerNanos;
+	/** Wall time spent on the whole of the last frame, in nanoseconds */
+	long frameNanos;
+	
+	/**
+	 * @param cache shared between LayeredRenderers of the same animation
+	 * @param executor used to render layers in parallel; may be null,
+	 *   in which case they're rendered one after the other
+	 */
+	public LayeredRenderer( Animation animation, LayerCache cache, ExecutorService executor, StarRendererFactory rendererFactory, int w, int h ) {
+		this.animation = animation;
+		this.layers = animation.layers;
+		this.cache = cache;
+		this.executor = executor;
+		this.w = w;
+		this.h = h;
+		this.layerRenderers = new StarRenderer[layers.size()];
+		for( int i=0; i<layerRenderers.length; ++i ) {
+			layerRenderers[i] = rendererFactory.create(w, h);
+			if( animation.scene == null && !(layerRenderers[i] instanceof FlatStarRenderer) ) {
+				throw new IllegalArgumentException("Scenes loaded from files can only be drawn by FlatStarRenderers");
+			}
+		}
+		this.layerStats = new RenderStats[layers.size()];
+		for( int i=0; i<layerStats.length; ++i ) layerStats[i] = new RenderStats();
+		this.layerNanos = new long[layers.size()];
+		// Layers get added into output, so it needs the same layout as them
+		this.output = new RenderBuffer(w, h, layerRenderers.length > 0 ? layerRenderers[0].layout : PixelLayout.PLANAR);
+	}
+	
+	/**
+	 * Set the ImpostorCache.timeQuantum of every layer renderer that
+	 * has an impostor cache
+	 */
+	public void setImpostorTimeQuantum( float timeQuantum ) {
+		for( StarRenderer renderer : layerRenderers ) {
+			if( renderer instanceof FlatStarRenderer && ((FlatStarRenderer)renderer).impostors != null ) {
+				((FlatStarRenderer)renderer).impostors.timeQuantum = timeQuantum;
+			}
+		}
+	}
+	
+	/** Time at the middle of the shutter interval for the rendering of layer that frame uses */
+	protected float layerTime( Layer layer, int frame ) {
+		int renderNumber = frame / layer.framesPerRender;
+		return (renderNumber*layer.framesPerRender + layer.framesPerRender*0.5f) * animation.dt;
+	}
+	
+	/**
+	 * If the camera only moves (doesn't turn or zoom) at the given
+	 * times, have renderer find what of the scene is visible at any
+	 * time within dt/2 of centerTime (see FlatStarRenderer.findVisible),
+	 * so that samples at those times needn't each cull all of it.
+	 * @return true if it did
+	 */
+	static boolean findVisible( Animation animation, float centerTime, float[] times, FlatStarRenderer renderer, boolean streaked ) {
+		if( renderer.orthoScale > 0 ) return false;
+		Camera center = animation.camera( centerTime, new Camera() ), c = new Camera();
+		float cameraSlop = 0;
+		for( float time : times ) {
+			animation.camera( time, c );
+			if( c.fieldOfView != center.fieldOfView ||
+				c.orientation.w != center.orientation.w || c.orientation.x != center.orientation.x ||
+				c.orientation.y != center.orientation.y || c.orientation.z != center.orientation.z
+			) {
+				return false;
+			}
+			float dx = c.x - center.x, dy = c.y - center.y, dz = c.z - center.z;
+			cameraSlop = Math.max(cameraSlop, (float)Math.sqrt(dx*dx + dy*dy + dz*dz));
+		}
+		renderer.initCamera( center );
+		renderer.findVisible( centerTime, animation.dt/2, cameraSlop, animation.compiledScene, streaked );
+		return true;
+	}
+	
+	/**
+	 * Draw the layer's samples into renderer, replacing its contents.
+	 * Samples are spread evenly over one frame's worth of time centered
+	 * on the given time, each standing for an equal share of it.
+	 * FlatStarRenderers cull for all of a frame's samples at once.
+	 * @param parallel if non-null, and renderer is a FlatStarRenderer,
+	 *   its traversal is split between parallel's threads
+	 */
+	static void drawLayer( Animation animation, Layer layer, float centerTime, StarRenderer renderer, ParallelTraversal parallel ) {
+		renderer.clear();
+		renderer.stats.reset();
+		renderer.setDrawRange(layer.nearZ, layer.farZ);
+		renderer.setFaintLight( animation.faintLight(layer.samplesPerFrame) );
+		int n = layer.samplesPerFrame;
+		ParallelTraversal.Coordinator split = parallel != null && renderer instanceof FlatStarRenderer ?
+			parallel.begin((FlatStarRenderer)renderer, n) : null;
+		// What does the drawing; the coordinator is always a StreakStarRenderer
+		StarRenderer drawer = split != null ? split : renderer;
+		float interval = animation.dt/n;
+		boolean streaked = layer.streaked && renderer instanceof StreakStarRenderer;
+		// Times the camera is set up for: each sample's, or the
+		// opening and closing of its share of the shutter interval
+		float[] times = new float[streaked ? n*2 : n];
+		for( int i=0; i<n; ++i ) {
+			float time = centerTime + ((i+0.5f)/n - 0.5f)*animation.dt;
+			if( streaked ) {
+				times[i*2  ] = time - interval/2;
+				times[i*2+1] = time + interval/2;
+			} else {
+				times[i] = time;
+			}
+		}
+		boolean visibleFound = n > 1 && drawer instanceof FlatStarRenderer &&
+			findVisible( animation, centerTime, times, (FlatStarRenderer)drawer, streaked );
+		for( int i=0; i<n; ++i ) {
+			if( streaked ) {
+				StreakStarRenderer streakRenderer = (StreakStarRenderer)drawer;
+				float openTime = times[i*2], closeTime = times[i*2+1];
+				animation.initCamera( drawer, openTime );
+				streakRenderer.saveShutterOpenCamera();
+				animation.initCamera( drawer, closeTime );
+				if( visibleFound ) streakRenderer.drawVisibleStreaked( openTime, closeTime );
+				else streakRenderer.drawStreaked( openTime, closeTime, animation.compiledScene );
+			} else if( drawer instanceof FlatStarRenderer ) {
+				float time = times[i];
+				animation.initCamera( drawer, time );
+				if( visibleFound ) ((FlatStarRenderer)drawer).drawVisible( time );
+				else ((FlatStarRenderer)drawer).draw( time, animation.compiledScene );
+			} else {
+				float time = times[i];
+				animation.initCamera( drawer, time );
+				drawer.draw( time, animation.scene );
+			}
+		}
+		if( split != null ) split.finish();
+		else renderer.flushSplats();
+		if( n != 1 ) renderer.multiply(1f/n);
+	}
+	
+	protected void drawLayer( Layer layer, float centerTime, StarRenderer renderer ) {
+		drawLayer( animation, layer, centerTime, renderer, parallel );
+	}
+	
+	/** drawLayer, recording the time it took and the renderer's stats */
+	protected void drawLayer( int layerIndex, float centerTime ) {
+		StarRenderer renderer = layerRenderers[layerIndex];
+		long start = System.nanoTime();
+		drawLayer( layers.get(layerIndex), centerTime, renderer );
+		layerNanos[layerIndex] = System.nanoTime() - start;
+		layerStats[layerIndex].set(renderer.stats);
+	}
+	
+	protected RenderedLayer renderLayer( final int layerIndex, int frame ) throws InterruptedException {
+		final Layer layer = layers.get(layerIndex);
+		final StarRenderer renderer = layerRenderers[layerIndex];
+		final float time = layerTime(layer, frame);
+		layerNanos[layerIndex] = 0;
+		layerStats[layerIndex].reset();
+		if( layer.framesPerRender == 1 ) {
+			drawLayer( layerIndex, time );
+			return new RenderedLayer( renderer, time );
+		}
+		return cache.get(layerIndex, frame / layer.framesPerRender, new Callable<RenderedLayer>() {
+			@Override public RenderedLayer call() {
+				drawLayer( layerIndex, time );
+				RenderBuffer copy = new RenderBuffer(w, h, renderer.layout);
+				copy.copyFrom(renderer);
+				// Every frame in flight that uses it reads it at once,
+				// so it has to be left as-is from here on
+				copy.resolve();
+				return new RenderedLayer( copy, time );
+			}
+		});
+	}
+	
+	/**
+	 * Add src to dest, reprojecting it from the camera position at one
+	 * time to that at another, treating everything in it as being at
+	 * the given depth from the new camera position.  The camera's
+	 * orientation is assumed to be the same at both times.  src must
+	 * already be resolved, and is only read, since it may be a cached
+	 * layer being used by other frames at the same time.
+	 */
+	protected void reprojectAdd( RenderBuffer src, float fromTime, float toTime, float depth, RenderBuffer dest ) {
+		Camera from = animation.camera(fromTime, new Camera());
+		Camera to = animation.camera(toTime, new Camera());
+		// How far the camera moved, in view space
+		Vec4f move = to.viewRotation(new Mat4f()).transform(new Vec4f(to.x - from.x, to.y - from.y, to.z - from.z, 0), new Vec4f());
+		float dx = move.x, dy = move.y, dz = move.z;
+		float srcDepth = depth + dz;
+		if( srcDepth <= 0 ) return;
+		assert src.isResolved();
+		dest.resolve();
+		
+		// Inverse of StarRenderer's projection: screen = w/2 + k*x/z
+		float k = to.focalLength(h);
+		// Interleaved buffers have their channels in one array, 3 floats apart
+		final int srcStride = src.rgb != null ? 3 : 1;
+		final float[] srcR = src.rgb != null ? src.rgb : src.r;
+		final float[] srcG = src.rgb != null ? src.rgb : src.g;
+		final float[] srcB = src.rgb != null ? src.rgb : src.b;
+		final int offG = src.rgb != null ? 1 : 0, offB = src.rgb != null ? 2 : 0;
+		// Scaling is separable, so work out source rows and columns once
+		int[] col0 = new int[w];
+		float[] colFrac = new float[w];
+		for( int px=0; px<w; ++px ) {
+			float x = (px + 0.5f - w/2) * depth / k + dx;
+			float sx = w/2 + k*x/srcDepth - 0.5f;
+			col0[px] = (int)Math.floor(sx);
+			colFrac[px] = sx - col0[px];
+		}
+		
+		for( int py=0; py<h; ++py ) {
+			float y = (py + 0.5f - h/2) * depth / k + dy;
+			float sy = h/2 + k*y/srcDepth - 0.5f;
+			int r0 = (int)Math.floor(sy);
+			float fy = sy - r0;
+			for( int px=0, i=py*w; px<w; ++px, ++i ) {
+				int c0 = col0[px];
+				float fx = colFrac[px];
+				dest.addPixel( i,
+					bilinear(srcR, srcStride, 0, c0, r0, fx, fy),
+					bilinear(srcG, srcStride, offG, c0, r0, fx, fy),
+					bilinear(srcB, srcStride, offB, c0, r0, fx, fy) );
+			}
+		}
+	}
+	
+	/**
+	 * Bilinear sample, treating everything outside the buffer as black.
+	 * Pixel i's value is at data[i*stride+offset].
+	 */
+	protected float bilinear( float[] data, int stride, int offset, int x0, int y0, float fx, float fy ) {
+		float v = 0;
+		if( y0 >= 0 && y0 < h ) {
+			if( x0   >= 0 && x0   < w ) v += data[(y0*w+x0  )*stride+offset]*(1-fx)*(1-fy);
+			if( x0+1 >= 0 && x0+1 < w ) v += data[(y0*w+x0+1)*stride+offset]*   fx *(1-fy);
+		}
+		if( y0+1 >= 0 && y0+1 < h ) {
+			if( x0   >= 0 && x0   < w ) v += data[((y0+1)*w+x0  )*stride+offset]*(1-fx)*fy;
+			if( x0+1 >= 0 && x0+1 < w ) v += data[((y0+1)*w+x0+1)*stride+offset]*   fx *fy;
+		}
+		return v;
+	}
+	
+	/**
+	 * Render the given frame.
+	 * @return a buffer holding the frame, which is overwritten by the next
+	 *   call.  It references layer buffers (see RenderBuffer.addLayer),
+	 *   which also stay unchanged until then.  Statistics about the frame
+	 *   are left in layerStats, layerNanos, and frameNanos.
+	 */
+	public RenderBuffer renderFrame( final int frame ) throws InterruptedException {
+		long start = System.nanoTime();
+		RenderedLayer[] rendered = new RenderedLayer[layers.size()];
+		if( executor == null ) {
+			for( int i=0; i<rendered.length; ++i ) rendered[i] = renderLayer(i, frame);
+		} else {
+			List<Future<RenderedLayer>> futures = new ArrayList<Future<RenderedLayer>>();
+			for( int i=0; i<rendered.length; ++i ) {
+				final int layerIndex = i;
+				futures.add(executor.submit(new Callable<RenderedLayer>() {
+					@Override public RenderedLayer call() throws InterruptedException {
+						return renderLayer(layerIndex, frame);
+					}
+				}));
+			}
+			try {
+				for( int i=0; i<rendered.length; ++i ) rendered[i] = futures.get(i).get();
+			} catch( ExecutionException e ) {
+				throw new RuntimeException("Failed to render layer of frame "+frame, e.getCause());
+			}
+		}
+		
+		// Reprojected layers have to be added to output's own pixels right
+		// away; the rest, and exposure, are left for toRGB to apply
+		float frameTime = (frame+0.5f)*animation.dt;
+		output.clear();
+		for( int i=0; i<rendered.length; ++i ) {
+			RenderedLayer rl = rendered[i];
+			if( rl.time != frameTime ) {
+				reprojectAdd(rl.buffer, rl.time, frameTime, layers.get(i).reprojectionDepth, output);
+			}
+		}
+		for( int i=0; i<rendered.length; ++i ) {
+			RenderedLayer rl = rendered[i];
+			if( rl.time == frameTime ) output.addLayer(rl.buffer, 1);
+		}
+		output.multiply(animation.exposure);
+		statsFrame = frame;
+		frameNanos = System.nanoTime() - start;
+		return output;
+	}
+}
@@ -0,0 +1,126 @@
+package togos.vizations;
+
+import java.util.Arrays;
+
+/**
+ * Calculates sin and cos of orbital angles, 2pi*(phase + speed*t),
+ * for a set of orbits identified by index, avoiding trig calls where
+ * possible:
+ *
+ * - Repeated evaluation at the same t (very common, since shared
+ *   subtrees visit the same bindings many times per pass) returns
+ *   the cached result.
+ * - When t advances by the same step as last time (as it does across
+ *   miniframes and microframes), the previous result is rotated by the
+ *   step's angle instead of being recalculated.  Sample times are
+ *   floats, so steps that should be the same differ by a few ulps of t,
+ *   which for long animations is far more than any fraction of the step
+ *   we'd want to allow; they count as the same if they're within
+ *   STEP_ULPS of each other, and the difference is rotated by as well
+ *   so that the result is still for exactly t.  The result is
+ *   re-anchored with a direct evaluation every REANCHOR_INTERVAL steps
+ *   to keep rounding error from accumulating.
+ * - Anything else is evaluated directly.
+ *
+ * Stepping makes results depend slightly on what was evaluated before;
+ * renderers that need them to depend only on t (see ParallelTraversal)
+ * turn it off.
+ *
+ * Results are left in sin and cos.  Not thread-safe;
+ * each renderer should have its own.
+ */
+class OrbitEvaluator
+{
+	static final int REANCHOR_INTERVAL = 64;
+	/** How close (relative to the step) a time step must be to the previous one to count as uniform */
+	static final double STEP_TOLERANCE = 1e-4;
+	/** How close (in ulps of t) a time step must be to the previous one to count as uniform, however small the step */
+	static final int STEP_ULPS = 8;
+	
+	boolean[] valid = new boolean[0];
+	float[] lastT = new float[0];
+	double[] lastSin = new double[0], lastCos = new double[0];
+	double[] lastStep = new double[0];
+	boolean[] stepRotationValid = new boolean[0];
+	double[] stepSin = new double[0], stepCos = new double[0];
+	int[] stepsSinceAnchor = new int[0];
+	/** If false, anything not cached is evaluated directly */
+	boolean stepping = true;
+	
+	/** Results of the last evaluate call */
+	public float sin, cos;
+	
+	/** Counters for checking how well this is working */
+	public long cacheHits, incrementalEvaluations, directEvaluations;
+	
+	protected void ensureCapacity( int size ) {
+		if( size <= valid.length ) return;
+		size = Math.max(size, valid.length*2);
+		valid = Arrays.copyOf(valid, size);
+		lastT = Arrays.copyOf(lastT, size);
+		lastSin = Arrays.copyOf(lastSin, size);
+		lastCos = Arrays.copyOf(lastCos, size);
+		lastStep = Arrays.copyOf(lastStep, size);
+		stepRotationValid = Arrays.copyOf(stepRotationValid, size);
+		stepSin = Arrays.copyOf(stepSin, size);
+		stepCos = Arrays.copyOf(stepCos, size);
+		stepsSinceAnchor = Arrays.copyOf(stepsSinceAnchor, size);
+	}
+	
+	protected void evaluateDirectly( int i, float phase, float speed, float t ) {
+		double angle = Math.PI*2*(phase + speed * t);
+		lastSin[i] = Math.sin(angle);
+		lastCos[i] = Math.cos(angle);
+		stepsSinceAnchor[i] = 0;
+		++directEvaluations;
+	}
+	
+	public void evaluate( int i, float phase, float speed, float t ) {
+		ensureCapacity(i+1);
+		
+		if( valid[i] && lastT[i] == t ) {
+			++cacheHits;
+		} else if( valid[i] ) {
+			double step = (double)t - lastT[i];
+			double slip = step - lastStep[i];
+			boolean uniform = stepping && Math.abs(slip) <= STEP_TOLERANCE * Math.abs(step) + STEP_ULPS * Math.ulp(t);
+			if( uniform && stepsSinceAnchor[i] < REANCHOR_INTERVAL ) {
+				if( !stepRotationValid[i] ) {
+					double stepAngle = Math.PI*2*speed*lastStep[i];
+					stepSin[i] = Math.sin(stepAngle);
+					stepCos[i] = Math.cos(stepAngle);
+					stepRotationValid[i] = true;
+				}
+				double s = lastSin[i]*stepCos[i] + lastCos[i]*stepSin[i];
+				double c = lastCos[i]*stepCos[i] - lastSin[i]*stepSin[i];
+				if( slip != 0 ) {
+					// Small enough that sin(a) = a and cos(a) = 1 - a*a/2
+					// to well within double precision
+					double a = Math.PI*2*speed*slip, ca = 1 - a*a/2;
+					double s1 = s;
+					s = s1*ca + c*a;
+					c = c*ca - s1*a;
+				}
+				lastSin[i] = s;
+				lastCos[i] = c;
+				++stepsSinceAnchor[i];
+				++incrementalEvaluations;
+			} else {
+				if( !uniform ) {
+					lastStep[i] = step;
+					stepRotationValid[i] = false;
+				}
+				evaluateDirectly(i, phase, speed, t);
+			}
+		} else {
+			lastStep[i] = Double.NaN;
+			stepRotationValid[i] = false;
+			evaluateDirectly(i, phase, speed, t);
+		}
+		
+		lastT[i] = t;
+		valid[i] = true;
+		sin = (float)lastSin[i];
+		cos = (float)lastCos[i];
+	}
+}
@@ -0,0 +1,51 @@
+package togos.vizations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Writes each frame to its own PNG file through an AsyncPNGWriter.
+ */
+class PNGFrameSink implements FramePipeline.FrameSink
+{
+	final File outputDir;
+	final String filenameFormat;
+	final AsyncPNGWriter writer;
+	/** Print writer status every this many frames */
+	int statusInterval = 100;
+	
+	public PNGFrameSink( File outputDir, String filenameFormat, AsyncPNGWriter writer ) {
+		this.outputDir = outputDir;
+		this.filenameFormat = filenameFormat;
+		this.writer = writer;
+	}
+	
+	protected File outputFile( int frame ) {
+		return new File(outputDir, String.format(filenameFormat, frame));
+	}
+	
+	@Override public boolean hasFrame( int frame ) {
+		return outputFile(frame).exists();
+	}
+	
+	@Override public void putFrame( int frame, RenderBuffer frameData, int[] argb ) throws IOException {
+		try {
+			writer.write( argb, outputFile(frame) );
+		} catch( InterruptedException e ) {
+			throw new InterruptedIOException();
+		}
+		if( frame % statusInterval == 0 ) System.err.println(writer.getStatusText());
+	}
+	
+	@Override public void close() throws IOException {
+		try {
+			writer.close();
+		} catch( InterruptedException e ) {
+			throw new InterruptedIOException();
+		}
+		System.err.println(writer.getStatusText());
+	}
+}
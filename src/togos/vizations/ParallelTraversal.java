@@ -0,0 +1,340 @@
+package togos.vizations;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import togos.vizations.math.Mat4f;
+
+/**
+ * Splits traversal of a CompiledScene between the threads of a
+ * ForkJoinPool, for when there are fewer things to draw at once (frames
+ * in flight, layers, poster tiles) than there are cores.
+ *
+ * The thread drawing a layer traverses the upper levels of the scene
+ * with a Coordinator, which stands in for the layer's renderer.  Any
+ * subtree costing no more than splitCost (see
+ * CompiledScene.subtreeCosts) is handed off as a job instead of being
+ * drawn; splitCost is set so that there are about TASKS_PER_THREAD jobs
+ * per thread, since the galaxy's levels are far too lopsided to split
+ * at a fixed depth.  Once a sample's traversal is done, its jobs are
+ * drawn by pool threads, biggest first, each with its own Worker, which
+ * has its own transform stacks, orbit evaluators and caches.
+ *
+ * Neither coordinator nor workers have pixels of their own: each
+ * records into its own SplatBins, and finish draws everyone's into the
+ * layer's renderer, with the pool's threads each taking whole tiles
+ * (see SplatBins.draw(dest, bins, pool)).  Every job, and every
+ * stretch of the coordinator's traversal between jobs, records into
+ * its own run, numbered in traversal order, so everything is added to
+ * each pixel in the order a single renderer would have added it.  Orbits are
+ * evaluated without stepping (see OrbitEvaluator.stepping), so that
+ * positions don't depend on which thread evaluated what before, and the
+ * result is exactly what a single renderer evaluating orbits the same
+ * way would draw, however the work was split.
+ *
+ * The exception is faint culling, since a culled subtree's light has
+ * to come out of the budget of whoever culled it: the coordinator culls
+ * nothing, and each job gets a share of each sample's faintLight in
+ * proportion to its cost, so the bound still holds, but less is culled.
+ *
+ * One ParallelTraversal can be used by any number of threads at once,
+ * each drawing into its own renderer.
+ */
+class ParallelTraversal
+{
+	/** How many jobs per thread to aim for; more = better balancing, more overhead */
+	static final int TASKS_PER_THREAD = 16;
+	
+	static final class Job {
+		final int kind;
+		/** Run number for the job's splats */
+		final int seq;
+		final CompiledScene scene;
+		/** Node, or for FORK_VISIBLE kinds, visible set entry */
+		final int index;
+		final int depth;
+		final float t0, t1;
+		final Mat4f xf = new Mat4f(), openXf = new Mat4f();
+		final long cost;
+		
+		public Job( int kind, int seq, CompiledScene scene, int index, int depth, float t0, float t1, long cost ) {
+			this.kind = kind;
+			this.seq = seq;
+			this.scene = scene;
+			this.index = index;
+			this.depth = depth;
+			this.t0 = t0;
+			this.t1 = t1;
+			this.cost = cost;
+		}
+	}
+	
+	static final Comparator<Job> BIGGEST_FIRST = new Comparator<Job>() {
+		@Override public int compare( Job a, Job b ) {
+			return Long.compare(b.cost, a.cost);
+		}
+	};
+	
+	/** What the threads drawing one layer recorded */
+	static final class Recording {
+		final SplatBins bins;
+		final RenderStats stats = new RenderStats();
+		
+		public Recording( SplatBins bins ) {
+			this.bins = bins;
+		}
+	}
+	
+	/** Draws jobs, into whatever bins it's given */
+	class Worker extends StreakStarRenderer {
+		public Worker() {
+			super(ParallelTraversal.this.w, ParallelTraversal.this.h, PixelLayout.PLANAR, false);
+			flatOrbits.stepping = openOrbits.stepping = visibleOrbits.stepping = orbits.stepping = false;
+			procedural.steppingOrbits = false;
+		}
+		
+		/** Use renderer's drawing settings (but not its camera) */
+		protected void copySettingsFrom( FlatStarRenderer renderer ) {
+			assert renderer.w == w && renderer.h == h;
+			setWindow(renderer.imageW, renderer.imageH, renderer.windowX, renderer.windowY);
+			setDrawRange(renderer.nearZ, renderer.farZ);
+			orthoScale = renderer.orthoScale;
+			splatDiameter = renderer.splatDiameter;
+			procedural.memoryBudget = renderer.procedural.memoryBudget;
+			if( renderer.impostors == null ) {
+				impostors = null;
+			} else {
+				if( impostors == null ) impostors = new ImpostorCache(renderer.impostors.pixelThreshold, renderer.impostors.memoryBudget);
+				impostors.pixelThreshold = renderer.impostors.pixelThreshold;
+				impostors.memoryBudget = renderer.impostors.memoryBudget;
+				impostors.timeQuantum = renderer.impostors.timeQuantum;
+			}
+		}
+		
+		/** Use the coordinator's camera, and visible set */
+		protected void copyCameraFrom( Coordinator c ) {
+			setFocalLength(c.focalLength);
+			viewRotation.set(c.viewRotation);
+			visibleScene = c.visibleScene;
+			visibleCount = c.visibleCount;
+			visibleNode = c.visibleNode;
+			visibleBinding = c.visibleBinding;
+			visibleEnd = c.visibleEnd;
+			visibleKind = c.visibleKind;
+		}
+		
+		protected void draw( Coordinator c, Job job, float faintLight ) {
+			copySettingsFrom(c.target);
+			copyCameraFrom(c);
+			setFaintLight(faintLight);
+			Recording rec = c.recording();
+			splatBins = rec.bins;
+			splatBins.setRun(job.seq);
+			loadTransform(job.depth, job.xf);
+			openXfStack[job.depth].set(job.openXf);
+			switch( job.kind ) {
+			case FORK_NODE: drawNode(job.t0, job.scene, job.index); break;
+			case FORK_VISIBLE: drawVisible(job.t0, job.index); break;
+			case FORK_NODE_STREAKED: drawNodeStreaked(job.t0, job.t1, job.scene, job.index); break;
+			case FORK_VISIBLE_STREAKED: drawVisibleStreaked(job.t0, job.t1, job.index); break;
+			}
+			splatBins = null;
+			rec.stats.add(stats);
+			stats.reset();
+		}
+	}
+	
+	/**
+	 * Draws the upper levels of a layer for a renderer (see begin),
+	 * leaving the rest to Workers, through the same calls as for
+	 * drawing with the renderer itself (draw, drawVisible, etc.),
+	 * and then finish to get the result into it.
+	 */
+	class Coordinator extends Worker {
+		FlatStarRenderer target;
+		/** Light each sample's jobs get to cull between them */
+		float sampleFaintLight;
+		final Map<Thread,Recording> recordings = new HashMap<Thread,Recording>();
+		final List<Job> jobs = new ArrayList<Job>();
+		/** Last run number used */
+		int seq;
+		/** Subtrees costing no more than this are drawn by a job */
+		long splitCost;
+		/** Times of the sample being drawn */
+		float sampleT0, sampleT1;
+		/** Cost of each visible set entry's subtree */
+		long[] visibleCost = new long[256];
+		
+		protected void begin( FlatStarRenderer target, int samples ) {
+			this.target = target;
+			copySettingsFrom(target);
+			sampleFaintLight = target.faintLight/samples;
+			seq = 0;
+			forking = true;
+			splatBins = recording().bins;
+		}
+		
+		protected Recording recording() {
+			Thread thread = Thread.currentThread();
+			synchronized( recordings ) {
+				Recording rec = recordings.get(thread);
+				if( rec == null ) {
+					SplatBins bins = freeBins.poll();
+					if( bins == null ) bins = new SplatBins(w, h, tileSize);
+					recordings.put(thread, rec = new Recording(bins));
+				}
+				return rec;
+			}
+		}
+		
+		@Override public void findVisible( float t, float maxTimeOffset, float cameraSlop, CompiledScene scene, boolean streaked ) {
+			super.findVisible(t, maxTimeOffset, cameraSlop, scene, streaked);
+			if( visibleCost.length < visibleCount ) visibleCost = new long[visibleNode.length];
+			long[] subtreeCosts = scene.subtreeCosts();
+			// Entries come before those of their subtrees
+			for( int e=visibleCount-1; e>=0; --e ) {
+				if( visibleKind[e] == VISIBLE_DRAW ) {
+					visibleCost[e] = subtreeCosts[visibleNode[e]];
+					continue;
+				}
+				long cost = 1;
+				for( int c=e+1; c<visibleEnd[e]; c=visibleEnd[c] ) cost = Math.min(Long.MAX_VALUE/2, cost + visibleCost[c]);
+				visibleCost[e] = cost;
+			}
+		}
+		
+		protected void startSample( float t0, float t1, long cost ) {
+			sampleT0 = t0;
+			sampleT1 = t1;
+			splitCost = Math.max(1, cost / (pool.getParallelism() * TASKS_PER_THREAD));
+			splatBins.setRun(++seq);
+		}
+		
+		@Override protected boolean fork( int kind, CompiledScene scene, int index ) {
+			long cost = kind == FORK_VISIBLE || kind == FORK_VISIBLE_STREAKED ? visibleCost[index] : scene.subtreeCosts()[index];
+			if( cost > splitCost ) return false;
+			Job job = new Job(kind, ++seq, scene, index, xfIndex, sampleT0, sampleT1, cost);
+			job.xf.set(xfStack[xfIndex]);
+			job.openXf.set(openXfStack[xfIndex]);
+			jobs.add(job);
+			splatBins.setRun(++seq);
+			return true;
+		}
+		
+		protected void runJobs() {
+			if( jobs.isEmpty() ) return;
+			long totalCost = 0;
+			for( Job job : jobs ) totalCost += job.cost;
+			Collections.sort(jobs, BIGGEST_FIRST);
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for( final Job job : jobs ) {
+				final float faintLight = (float)(sampleFaintLight * ((double)job.cost / totalCost));
+				tasks.add(new Callable<Void>() {
+					@Override public Void call() {
+						workers.get().draw(Coordinator.this, job, faintLight);
+						return null;
+					}
+				});
+			}
+			jobs.clear();
+			invokeAll(tasks);
+		}
+		
+		@Override public void draw( float t, CompiledScene scene ) {
+			startSample(t, t, scene.subtreeCosts()[scene.rootNode]);
+			super.draw(t, scene);
+			runJobs();
+		}
+		
+		@Override public void drawVisible( float t ) {
+			startSample(t, t, visibleCount > 0 ? visibleCost[0] : 0);
+			super.drawVisible(t);
+			runJobs();
+		}
+		
+		@Override public void drawStreaked( float openTime, float closeTime, CompiledScene scene ) {
+			startSample(openTime, closeTime, scene.subtreeCosts()[scene.rootNode]);
+			super.drawStreaked(openTime, closeTime, scene);
+			runJobs();
+		}
+		
+		@Override public void drawVisibleStreaked( float t0, float t1 ) {
+			startSample(t0, t1, visibleCount > 0 ? visibleCost[0] : 0);
+			super.drawVisibleStreaked(t0, t1);
+			runJobs();
+		}
+		
+		/**
+		 * Draw everything recorded since begin into the target renderer,
+		 * adding to its pixels and stats.
+		 */
+		public void finish() {
+			List<SplatBins> bins = new ArrayList<SplatBins>();
+			for( Recording rec : recordings.values() ) {
+				bins.add(rec.bins);
+				target.stats.add(rec.stats);
+			}
+			target.stats.add(stats);
+			stats.reset();
+			
+			target.stats.pixelsWritten += SplatBins.draw(target, bins, pool);
+			freeBins.addAll(bins);
+			recordings.clear();
+			splatBins = null;
+			forking = false;
+			target = null;
+		}
+	}
+	
+	final ForkJoinPool pool;
+	final int w, h, tileSize;
+	/** Bins not being recorded into */
+	final ConcurrentLinkedQueue<SplatBins> freeBins = new ConcurrentLinkedQueue<SplatBins>();
+	final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+		@Override protected Worker initialValue() { return new Worker(); }
+	};
+	final ThreadLocal<Coordinator> coordinators = new ThreadLocal<Coordinator>() {
+		@Override protected Coordinator initialValue() { return new Coordinator(); }
+	};
+	
+	/** @param w, h size of the renderers to be drawn for */
+	public ParallelTraversal( ForkJoinPool pool, int w, int h ) {
+		this.pool = pool;
+		this.w = w;
+		this.h = h;
+		this.tileSize = SplatBins.DEFAULT_TILE_SIZE;
+	}
+	
+	protected void invokeAll( List<Callable<Void>> tasks ) {
+		try {
+			for( Future<Void> f : pool.invokeAll(tasks) ) f.get();
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while drawing subtrees", e);
+		} catch( ExecutionException e ) {
+			throw new RuntimeException("Failed to draw subtree", e.getCause());
+		}
+	}
+	
+	/**
+	 * Start drawing a layer for renderer, which should be cleared and
+	 * set up (draw range, faintLight, window) as for drawing it itself.
+	 * @param samples how many samples faintLight is to be shared between
+	 * @return the calling thread's Coordinator, to draw with instead of
+	 *   renderer until its finish is called
+	 */
+	public Coordinator begin( FlatStarRenderer renderer, int samples ) {
+		Coordinator c = coordinators.get();
+		c.begin(renderer, samples);
+		return c;
+	}
+}
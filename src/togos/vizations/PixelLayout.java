@@ -0,0 +1,26 @@
+package togos.vizations;
+
+/**
+ * How a RenderBuffer arranges its float pixel data in memory.
+ */
+enum PixelLayout
+{
+	/**
+	 * Separate r, g, and b arrays.  Whole-buffer operations are simplest
+	 * this way, but each pixel splatted touches three far apart cache lines.
+	 */
+	PLANAR,
+	/**
+	 * A single rgb array holding r, g, b, r, g, b, ..., so that each pixel
+	 * splatted touches one cache line (occasionally two).  Better for
+	 * large frames, where splatting is limited by memory access.
+	 */
+	INTERLEAVED;
+	
+	/** Accepts short names as used on command lines: "planar" or "interleaved" */
+	public static PixelLayout byName( String name ) {
+		if( "planar".equals(name) ) return PLANAR;
+		if( "interleaved".equals(name) ) return INTERLEAVED;
+		throw new IllegalArgumentException("Unrecognized pixel layout: "+name);
+	}
+}
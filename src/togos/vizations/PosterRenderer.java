@@ -0,0 +1,152 @@
+package togos.vizations;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import togos.vizations.Stars.Animation;
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Renders single frames of an Animation at sizes too big to hold in
+ * memory, as full-width horizontal tiles that are handed to a RowSink
+ * top to bottom as they're finished.
+ *
+ * Each tile is drawn by a renderer whose window (see
+ * StarRenderer.setWindow) covers just that tile, so subtrees outside it
+ * are culled as they would be at the edge of the screen.  Several tiles
+ * are rendered at once, each with its own renderer; memory use is
+ * proportional to the number of threads and the tile size, not the
+ * image size.
+ *
+ * Unlike LayeredRenderer, every layer is drawn at the frame's own time,
+ * rather than reusing far layers rendered for neighbouring frames.
+ */
+class PosterRenderer
+{
+	interface RowSink {
+		/**
+		 * Called for each tile in order from top to bottom,
+		 * from the thread that called render.
+		 * @param rows the tile's pixels, of which only the first rowCount
+		 *   rows are part of the image; not to be held onto
+		 * @param argb the quantized version of rows
+		 */
+		public void putRows( int y0, int rowCount, RenderBuffer rows, int[] argb ) throws IOException;
+		public void close() throws IOException;
+	}
+	
+	static class Slot {
+		final StreakStarRenderer renderer;
+		/** All of the tile's layers, added together */
+		final RenderBuffer tile;
+		final int[] argb;
+		/** What was drawn for the last tile */
+		final RenderStats stats = new RenderStats();
+		
+		public Slot( StreakStarRenderer renderer ) {
+			this.renderer = renderer;
+			this.tile = new RenderBuffer(renderer.w, renderer.h, renderer.layout);
+			this.argb = new int[renderer.w*renderer.h];
+		}
+	}
+	
+	static class InFlightTile {
+		final int y0;
+		final Slot slot;
+		final Future<Slot> result;
+		
+		public InFlightTile( int y0, Slot slot, Future<Slot> result ) {
+			this.y0 = y0;
+			this.slot = slot;
+			this.result = result;
+		}
+	}
+	
+	final Animation animation;
+	final int w, h, tileHeight;
+	final BlockingQueue<Slot> idleSlots;
+	final int slotCount;
+	/** What was drawn for the last image, summed over all tiles */
+	final RenderStats stats = new RenderStats();
+	/**
+	 * If non-null, each tile's traversal is split between its threads;
+	 * must be for w by tileHeight renderers
+	 */
+	ParallelTraversal parallel;
+	
+	public PosterRenderer( Animation animation, int w, int h, int tileHeight, int threadCount, PixelLayout layout ) {
+		this.animation = animation;
+		this.w = w;
+		this.h = h;
+		this.tileHeight = Math.min(tileHeight, h);
+		// One spare, so a tile can be drawn while another waits its turn to be output
+		this.slotCount = threadCount + 1;
+		this.idleSlots = new ArrayBlockingQueue<Slot>(slotCount);
+		for( int i=0; i<slotCount; ++i ) {
+			idleSlots.add(new Slot(new StreakStarRenderer(w, this.tileHeight, layout)));
+		}
+	}
+	
+	/**
+	 * Draw the tile starting at row y0 into slot.  The last tile may
+	 * extend past the bottom of the image; those rows are drawn too,
+	 * but not output.
+	 */
+	protected void renderTile( Slot slot, int y0, float time ) {
+		slot.renderer.setWindow(w, h, 0, y0);
+		slot.tile.clear();
+		slot.stats.reset();
+		for( LayeredRenderer.Layer layer : animation.layers ) {
+			LayeredRenderer.drawLayer(animation, layer, time, slot.renderer, parallel);
+			slot.tile.addFrom(slot.renderer, 1);
+			slot.stats.add(slot.renderer.stats);
+		}
+		slot.tile.multiply(animation.exposure);
+		slot.tile.toRGB(slot.argb, animation.gamma);
+	}
+	
+	protected void finish( InFlightTile t, RowSink sink ) throws InterruptedException, IOException {
+		try {
+			t.result.get();
+		} catch( ExecutionException e ) {
+			throw new RuntimeException("Failed to render tile at row "+t.y0, e.getCause());
+		}
+		sink.putRows(t.y0, Math.min(tileHeight, h - t.y0), t.slot.tile, t.slot.argb);
+		stats.add(t.slot.stats);
+		idleSlots.add(t.slot);
+	}
+	
+	/** Render the given frame of the animation to sink, tile by tile */
+	public void render( int frame, RowSink sink ) throws InterruptedException, IOException {
+		final float time = (frame + 0.5f)*animation.dt;
+		stats.reset();
+		ExecutorService executor = Executors.newFixedThreadPool(slotCount - 1);
+		ArrayDeque<InFlightTile> inFlight = new ArrayDeque<InFlightTile>();
+		try {
+			for( int y0=0; y0<h; y0+=tileHeight ) {
+				// Output finished tiles until a slot frees up
+				while( idleSlots.isEmpty() ) finish( inFlight.removeFirst(), sink );
+				
+				final int _y0 = y0;
+				final Slot slot = idleSlots.remove();
+				Future<Slot> result = executor.submit(new Callable<Slot>() {
+					@Override public Slot call() {
+						renderTile(slot, _y0, time);
+						return slot;
+					}
+				});
+				inFlight.addLast(new InFlightTile(y0, slot, result));
+			}
+			while( !inFlight.isEmpty() ) finish( inFlight.removeFirst(), sink );
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package togos.vizations;
+
+import java.awt.Color;
+import java.awt.Frame;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Shows every previewInterval'th frame in a window on its way to
+ * another sink.  Closing the window exits the program.
+ */
+class PreviewFrameSink implements FramePipeline.FrameSink
+{
+	final FramePipeline.FrameSink output;
+	final String title;
+	final int w, h, totalFrameCount, previewInterval;
+	final BufferedImage image;
+	final Frame frame;
+	final ImageCanvas canvas;
+	
+	public PreviewFrameSink( FramePipeline.FrameSink output, String title, int w, int h, int totalFrameCount, int previewInterval ) {
+		this.output = output;
+		this.title = title;
+		this.w = w;
+		this.h = h;
+		this.totalFrameCount = totalFrameCount;
+		this.previewInterval = previewInterval;
+		this.image = new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
+		
+		final Frame f = this.frame = new Frame(title);
+		canvas = new ImageCanvas();
+		canvas.setBackground(Color.BLACK);
+		canvas.setImage(image);
+		f.add(canvas);
+		f.pack();
+		f.setVisible(true);
+		f.addWindowListener(new WindowAdapter() {
+			@Override public void windowClosing(WindowEvent e) {
+				f.dispose();
+				System.exit(0);
+			}
+		});
+	}
+	
+	@Override public boolean hasFrame( int frameNumber ) {
+		return output.hasFrame(frameNumber);
+	}
+	
+	@Override public void putFrame( int frameNumber, RenderBuffer frameData, int[] argb ) throws IOException {
+		if( frameNumber % previewInterval == 0 ) {
+			frame.setTitle(title+" (Rendered frame "+frameNumber+" of "+totalFrameCount+")");
+			synchronized( image ) {
+				image.setRGB(0, 0, w, h, argb, 0, w);
+			}
+			canvas.setImage(image);
+		}
+		output.putFrame(frameNumber, frameData, argb);
+	}
+	
+	@Override public void close() throws IOException {
+		output.close();
+	}
+}
@@ -0,0 +1,89 @@
+package togos.vizations;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generated children of ProceduralNodes, compiled into small
+ * CompiledScenes ("expansions") that FlatStarRenderers can draw
+ * straight from.
+ *
+ * Each expansion is one level deep: its root is the procedural node,
+ * with bindings to the generated children, and any children that are
+ * themselves procedural are left unexpanded until they're descended
+ * into.  So only the parts of the scene near enough to the camera to
+ * be traversed are ever materialized.  Least recently used expansions
+ * are evicted to stay under memoryBudget bytes; since generation is
+ * deterministic, they're regenerated identically if needed again.
+ *
+ * Expansions have their own OrbitEvaluators, since their binding
+ * indexes overlap with those of every other scene.
+ *
+ * Not thread-safe; each renderer should have its own.
+ */
+class ProceduralCache
+{
+	static final class Expansion {
+		final CompiledScene scene;
+		/** For evaluating scene's bindings at the shutter's closing (or only) time */
+		final OrbitEvaluator orbits = new OrbitEvaluator();
+		/** For evaluating scene's bindings at the shutter's opening time, when streaking */
+		final OrbitEvaluator openOrbits = new OrbitEvaluator();
+		
+		public Expansion( CompiledScene scene, boolean stepping ) {
+			this.scene = scene;
+			orbits.stepping = openOrbits.stepping = stepping;
+		}
+		
+		public long byteCount() {
+			long tables = 0;
+			for( int t=0; t<CompiledScene.TABLE_COUNT; ++t ) {
+				tables += CompiledScene.tableSize(t, scene.nodeCount, scene.bindingCount);
+			}
+			// Generated node objects, and orbit evaluators' state, roughly
+			return 512 + tables + 64L*scene.nodeCount + 100L*scene.bindingCount;
+		}
+	}
+	
+	long memoryBudget;
+	long memoryUsed;
+	/** Whether expansions' OrbitEvaluators step incrementally (see OrbitEvaluator.stepping) */
+	boolean steppingOrbits = true;
+	
+	public long hits, misses, evictions;
+	
+	final LinkedHashMap<ProceduralNode,Expansion> expansions = new LinkedHashMap<ProceduralNode,Expansion>(64, 0.75f, true);
+	
+	public ProceduralCache( long memoryBudget ) {
+		this.memoryBudget = memoryBudget;
+	}
+	
+	protected void evict() {
+		Iterator<Map.Entry<ProceduralNode,Expansion>> i = expansions.entrySet().iterator();
+		while( memoryUsed > memoryBudget && i.hasNext() ) {
+			memoryUsed -= i.next().getValue().byteCount();
+			i.remove();
+			++evictions;
+		}
+	}
+	
+	/**
+	 * Expansions being drawn when they're evicted stay usable;
+	 * the cache just forgets about them.
+	 */
+	public Expansion get( ProceduralNode n ) {
+		Expansion e = expansions.get(n);
+		if( e != null ) {
+			++hits;
+			return e;
+		}
+		
+		++misses;
+		e = new Expansion(CompiledScene.expand(n), steppingOrbits);
+		expansions.put(n, e);
+		memoryUsed += e.byteCount();
+		evict();
+		return e;
+	}
+}
@@ -0,0 +1,74 @@
+package togos.vizations;
+
+import java.util.Set;
+
+import togos.vizations.Stars.FColor;
+import togos.vizations.Stars.StarNode;
+import togos.vizations.Stars.StarNodeBinding;
+
+/**
+ * StarNode whose children are generated from a seed when asked for
+ * instead of being held in memory, so that scenes can be far bigger
+ * than the heap.
+ *
+ * The node's own radius and luminance are given up front, so it can
+ * be culled or splatted without generating anything; it's up to the
+ * generator to make children that fit inside that radius and whose
+ * light adds up to that luminance.  Generation must be deterministic:
+ * the same generator, seed and level must always give the same
+ * children, so that they can be thrown away and regenerated at will.
+ * Nodes are equal if their generator, seed and level are, which is
+ * what lets a ProceduralCache find a subtree again after its parent
+ * has been regenerated.
+ *
+ * getChildren generates the children anew on every call.  That's fine
+ * for CompiledScene, which stops at procedural nodes, and for
+ * FlatStarRenderers, which expand them through their ProceduralCache,
+ * but renderers that walk StarNodes directly would regenerate (and
+ * StarRenderer's orbit evaluator would grow by) a node's children
+ * every time they visit it, so only use those on small scenes.
+ */
+class ProceduralNode extends StarNode
+{
+	interface Generator {
+		/**
+		 * Bindings to node's children, which must lie within its
+		 * radius, and may themselves be ProceduralNodes
+		 */
+		public Set<StarNodeBinding> generateChildren( ProceduralNode node );
+		/**
+		 * Roughly how many nodes there are in node's subtree,
+		 * counting node itself, for load balancing
+		 */
+		public long subtreeCost( ProceduralNode node );
+	}
+	
+	final Generator generator;
+	final long seed;
+	/** Means whatever the generator wants it to, e.g. how many levels are left below */
+	final int level;
+	
+	public ProceduralNode( float r, FColor l, Generator generator, long seed, int level ) {
+		super(r, l);
+		this.generator = generator;
+		this.seed = seed;
+		this.level = level;
+	}
+	
+	public boolean isSolid() { return false; }
+	public Set<StarNodeBinding> getChildren() { return generator.generateChildren(this); }
+	public long subtreeCost() { return generator.subtreeCost(this); }
+	
+	@Override public boolean equals( Object o ) {
+		if( !(o instanceof ProceduralNode) ) return false;
+		ProceduralNode n = (ProceduralNode)o;
+		return seed == n.seed && level == n.level && generator.equals(n.generator);
+	}
+	
+	@Override public int hashCode() {
+		int hash = generator.hashCode();
+		hash = hash*31 + (int)(seed ^ (seed >>> 32));
+		hash = hash*31 + level;
+		return hash;
+	}
+}
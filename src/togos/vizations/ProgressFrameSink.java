@@ -0,0 +1,64 @@
+package togos.vizations;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Passes frames on to another sink, printing frame rate and
+ * estimated time remaining every reportInterval milliseconds.
+ */
+class ProgressFrameSink implements FramePipeline.FrameSink
+{
+	final FramePipeline.FrameSink output;
+	final PrintStream log;
+	final int endFrame;
+	long reportInterval = 5000;
+	
+	protected long startTime, lastReportTime;
+	protected int framesDone, lastFrame;
+	
+	/**
+	 * @param endFrame one past the last frame that will be rendered,
+	 *   for estimating time remaining
+	 */
+	public ProgressFrameSink( FramePipeline.FrameSink output, PrintStream log, int endFrame ) {
+		this.output = output;
+		this.log = log;
+		this.endFrame = endFrame;
+		this.startTime = this.lastReportTime = System.nanoTime();
+	}
+	
+	protected static String formatDuration( long seconds ) {
+		return String.format("%d:%02d:%02d", seconds/3600, seconds/60%60, seconds%60);
+	}
+	
+	protected void report( long now ) {
+		double seconds = (now - startTime) / 1e9;
+		double fps = seconds == 0 ? 0 : framesDone / seconds;
+		// Assumes frames are rendered in order, and that all the rest need rendering
+		int remaining = endFrame - lastFrame - 1;
+		log.println(String.format("Frame %d; %d frames in %s, %.2f frames/s, ETA %s",
+			lastFrame, framesDone, formatDuration((long)seconds), fps,
+			fps == 0 ? "unknown" : formatDuration((long)(remaining / fps))));
+		lastReportTime = now;
+	}
+	
+	@Override public boolean hasFrame( int frame ) {
+		return output.hasFrame(frame);
+	}
+	
+	@Override public void putFrame( int frame, RenderBuffer frameData, int[] argb ) throws IOException {
+		long now = System.nanoTime();
+		output.putFrame(frame, frameData, argb);
+		++framesDone;
+		lastFrame = frame;
+		if( now - lastReportTime >= reportInterval * 1000000L ) report(now);
+	}
+	
+	@Override public void close() throws IOException {
+		output.close();
+		if( framesDone > 0 ) report(System.nanoTime());
+	}
+}
@@ -0,0 +1,153 @@
+package togos.vizations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Stores a fixed number of uncompressed frames in one preallocated
+ * file.  Frames are written to it in place; only the header and index
+ * are memory-mapped.
+ * 
+ * Layout (all little-endian):
+ * 
+ *   0: "VZRAWFR1"
+ *   8: int format code (see RawFrameFormat)
+ *  12: int width
+ *  16: int height
+ *  20: int frame count
+ *  24: long offset of frame data
+ *  64: frame index; one byte per frame, 1 if that frame has been written
+ *  frame data offset (4096-aligned): frames, in order, each
+ *      format.frameSize(width, height) bytes long
+ * 
+ * A frame's index entry is only set once its data has been written,
+ * so hasFrame can be used to resume a render whose process was
+ * interrupted.  Nothing's forced to disk until close, though, so after
+ * the whole system goes down recently finished frames may need to be
+ * rendered again.
+ */
+class RawFrameFile implements FramePipeline.FrameSink
+{
+	static final byte[] MAGIC = "VZRAWFR1".getBytes(Charset.forName("US-ASCII"));
+	static final int INDEX_OFFSET = 64;
+	static final int DATA_ALIGNMENT = 4096;
+	
+	final RandomAccessFile raf;
+	final FileChannel channel;
+	final RawFrameFormat format;
+	final int w, h, frameCount;
+	final long dataOffset;
+	final MappedByteBuffer header;
+	/** Reused to write each frame's data */
+	ByteBuffer frameBuffer;
+	
+	protected RawFrameFile( RandomAccessFile raf, RawFrameFormat format, int w, int h, int frameCount, long dataOffset ) throws IOException {
+		this.raf = raf;
+		this.channel = raf.getChannel();
+		this.format = format;
+		this.w = w;
+		this.h = h;
+		this.frameCount = frameCount;
+		this.dataOffset = dataOffset;
+		this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset);
+		this.header.order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	protected static long dataOffset( int frameCount ) {
+		long end = INDEX_OFFSET + frameCount;
+		return (end + DATA_ALIGNMENT - 1) / DATA_ALIGNMENT * DATA_ALIGNMENT;
+	}
+	
+	/**
+	 * Open an existing frame file, checking that it matches the given
+	 * parameters, or create and preallocate a new one.
+	 */
+	public static RawFrameFile open( File file, RawFrameFormat format, int w, int h, int frameCount ) throws IOException {
+		boolean existed = file.exists() && file.length() > 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if( existed ) {
+				RawFrameFile rff = openExisting(raf, file);
+				if( rff.format != format || rff.w != w || rff.h != h || rff.frameCount != frameCount ) {
+					throw new IOException(file+" contains "+rff.frameCount+" "+rff.w+"x"+rff.h+" "+rff.format+
+						" frames; expected "+frameCount+" "+w+"x"+h+" "+format);
+				}
+				return rff;
+			}
+			
+			long dataOffset = dataOffset(frameCount);
+			raf.setLength(dataOffset + frameCount * format.frameSize(w, h));
+			RawFrameFile rff = new RawFrameFile(raf, format, w, h, frameCount, dataOffset);
+			rff.header.put(MAGIC);
+			rff.header.putInt(format.code);
+			rff.header.putInt(w);
+			rff.header.putInt(h);
+			rff.header.putInt(frameCount);
+			rff.header.putLong(dataOffset);
+			rff.header.force();
+			return rff;
+		} catch( IOException e ) {
+			raf.close();
+			throw e;
+		} catch( RuntimeException e ) {
+			raf.close();
+			throw e;
+		}
+	}
+	
+	protected static RawFrameFile openExisting( RandomAccessFile raf, File file ) throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		raf.readFully(magic);
+		if( !Arrays.equals(magic, MAGIC) ) {
+			throw new IOException(file+" is not a raw frame file");
+		}
+		MappedByteBuffer hdr = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, INDEX_OFFSET);
+		hdr.order(ByteOrder.LITTLE_ENDIAN);
+		RawFrameFormat format = RawFrameFormat.byCode(hdr.getInt(8));
+		return new RawFrameFile(raf, format, hdr.getInt(12), hdr.getInt(16), hdr.getInt(20), hdr.getLong(24));
+	}
+	
+	protected void checkFrameNumber( int frame ) {
+		if( frame < 0 || frame >= frameCount ) {
+			throw new IndexOutOfBoundsException("Frame "+frame+" out of range [0,"+frameCount+")");
+		}
+	}
+	
+	@Override public boolean hasFrame( int frame ) {
+		checkFrameNumber(frame);
+		return header.get(INDEX_OFFSET + frame) != 0;
+	}
+	
+	@Override public void putFrame( int frame, RenderBuffer frameData, int[] argb ) throws IOException {
+		checkFrameNumber(frame);
+		assert frameData.w == w && frameData.h == h;
+		
+		int frameSize = format.frameBufferSize(w, h);
+		if( frameBuffer == null ) frameBuffer = ByteBuffer.allocateDirect(frameSize);
+		frameBuffer.clear();
+		format.write(frameData, argb, frameBuffer);
+		frameBuffer.flip();
+		long offset = dataOffset + (long)frame * frameSize;
+		while( frameBuffer.hasRemaining() ) offset += channel.write(frameBuffer, offset);
+		
+		header.put(INDEX_OFFSET + frame, (byte)1);
+	}
+	
+	@Override public void close() throws IOException {
+		try {
+			channel.force(false);
+			header.force();
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package togos.vizations;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Pixel layouts for uncompressed frame output.
+ * Everything is little-endian.
+ */
+enum RawFrameFormat
+{
+	/**
+	 * One 32-bit 0xAARRGGBB int per pixel, i.e. bytes B, G, R, A
+	 * ('bgra' to ffmpeg)
+	 */
+	ARGB32( 1, 4, 1 ) {
+		@Override public void write( RenderBuffer frameData, int[] argb, ByteBuffer dest ) {
+			IntBuffer ib = dest.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			ib.put(argb, 0, frameData.w*frameData.h);
+			dest.position(dest.position() + frameBufferSize(frameData.w, frameData.h));
+		}
+		
+		@Override public void writePlaneRows( RenderBuffer frameData, int[] argb, int plane, int rowCount, ByteBuffer dest ) {
+			IntBuffer ib = dest.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			ib.put(argb, 0, frameData.w*rowCount);
+			dest.position(dest.position() + 4*frameData.w*rowCount);
+		}
+	},
+	/**
+	 * Unclamped 32-bit float values, multiplied by exposure but not
+	 * gamma-encoded, as three planes: all red values, then all green,
+	 * then all blue.  Tone mapping can then be done downstream.
+	 */
+	RGB_FLOAT_PLANAR( 2, 12, 3 ) {
+		@Override public void write( RenderBuffer frameData, int[] argb, ByteBuffer dest ) {
+			int n = frameData.w*frameData.h;
+			frameData.resolve();
+			FloatBuffer fb = dest.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			if( frameData.rgb != null ) {
+				float[] rgb = frameData.rgb;
+				for( int c=0; c<3; ++c ) {
+					for( int j=c; j<n*3; j+=3 ) fb.put(rgb[j]);
+				}
+			} else {
+				fb.put(frameData.r, 0, n);
+				fb.put(frameData.g, 0, n);
+				fb.put(frameData.b, 0, n);
+			}
+			dest.position(dest.position() + frameBufferSize(frameData.w, frameData.h));
+		}
+		
+		@Override public void writePlaneRows( RenderBuffer frameData, int[] argb, int plane, int rowCount, ByteBuffer dest ) {
+			int n = frameData.w*rowCount;
+			frameData.resolve();
+			FloatBuffer fb = dest.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			if( frameData.rgb != null ) {
+				float[] rgb = frameData.rgb;
+				for( int j=plane; j<n*3; j+=3 ) fb.put(rgb[j]);
+			} else {
+				fb.put(plane == 0 ? frameData.r : plane == 1 ? frameData.g : frameData.b, 0, n);
+			}
+			dest.position(dest.position() + 4*n);
+		}
+	};
+	
+	/** Identifies the format in file headers */
+	public final int code;
+	public final int bytesPerPixel;
+	/** Frames are stored as this many planes, one after the other, with bytesPerPixel/planeCount bytes per pixel each */
+	public final int planeCount;
+	
+	private RawFrameFormat( int code, int bytesPerPixel, int planeCount ) {
+		this.code = code;
+		this.bytesPerPixel = bytesPerPixel;
+		this.planeCount = planeCount;
+	}
+	
+	public long frameSize( int w, int h ) {
+		return (long)w*h*bytesPerPixel;
+	}
+	
+	/**
+	 * @return frameSize as an int, for buffers holding a whole frame
+	 * @throws IllegalArgumentException if frames are too big for that
+	 *   (2GB or more; use -poster for those)
+	 */
+	public int frameBufferSize( int w, int h ) {
+		long size = frameSize(w, h);
+		if( size > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException(w+"x"+h+" "+this+" frames are "+size+" bytes, too big to buffer");
+		}
+		return (int)size;
+	}
+	
+	/**
+	 * Write a frame to dest at its current position,
+	 * advancing the position past it.
+	 * @param argb the quantized version of frameData
+	 */
+	public abstract void write( RenderBuffer frameData, int[] argb, ByteBuffer dest );
+	
+	/**
+	 * Write the first rowCount rows of one plane of a frame to dest at
+	 * its current position, advancing the position past them.  Used to
+	 * write frames too big for memory a few rows at a time.
+	 */
+	public abstract void writePlaneRows( RenderBuffer frameData, int[] argb, int plane, int rowCount, ByteBuffer dest );
+	
+	public static RawFrameFormat byCode( int code ) {
+		for( RawFrameFormat f : values() ) if( f.code == code ) return f;
+		throw new IllegalArgumentException("Unrecognized raw frame format code: "+code);
+	}
+	
+	/** Accepts short names as used on command lines: "argb" or "float" */
+	public static RawFrameFormat byName( String name ) {
+		if( "argb".equals(name) ) return ARGB32;
+		if( "float".equals(name) ) return RGB_FLOAT_PLANAR;
+		throw new IllegalArgumentException("Unrecognized raw frame format: "+name);
+	}
+}
@@ -0,0 +1,42 @@
+package togos.vizations;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Writes frames back-to-back with no header to a stream,
+ * e.g. stdout piped into a video encoder.
+ * Since a stream can't be inspected, nothing is ever skipped.
+ */
+class RawFrameStream implements FramePipeline.FrameSink
+{
+	final OutputStream out;
+	final RawFrameFormat format;
+	ByteBuffer frameBuffer;
+	
+	public RawFrameStream( OutputStream out, RawFrameFormat format ) {
+		this.out = out;
+		this.format = format;
+	}
+	
+	@Override public boolean hasFrame( int frame ) {
+		return false;
+	}
+	
+	@Override public void putFrame( int frame, RenderBuffer frameData, int[] argb ) throws IOException {
+		int size = format.frameBufferSize(frameData.w, frameData.h);
+		if( frameBuffer == null || frameBuffer.capacity() != size ) {
+			frameBuffer = ByteBuffer.allocate(size);
+		}
+		frameBuffer.clear();
+		format.write(frameData, argb, frameBuffer);
+		out.write(frameBuffer.array(), 0, size);
+	}
+	
+	@Override public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,82 @@
+package togos.vizations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Writes a single uncompressed image a few rows at a time, for images
+ * too big to map or hold in memory all at once.  The file has the same
+ * layout as a RawFrameFile with one frame (and 64-bit sizes, so may be
+ * bigger than 2GB); its index entry is set once every row is written.
+ */
+class RawPosterFile implements PosterRenderer.RowSink
+{
+	final RandomAccessFile raf;
+	final FileChannel channel;
+	final RawFrameFormat format;
+	final int w, h;
+	final long dataOffset;
+	/** Bytes per pixel in each plane */
+	final int planeBytesPerPixel;
+	ByteBuffer rowBuffer;
+	int rowsWritten;
+	
+	public RawPosterFile( File file, RawFrameFormat format, int w, int h ) throws IOException {
+		this.format = format;
+		this.w = w;
+		this.h = h;
+		this.dataOffset = RawFrameFile.dataOffset(1);
+		this.planeBytesPerPixel = format.bytesPerPixel / format.planeCount;
+		this.raf = new RandomAccessFile(file, "rw");
+		this.channel = raf.getChannel();
+		try {
+			raf.setLength(0);
+			raf.setLength(dataOffset + format.frameSize(w, h));
+			ByteBuffer header = ByteBuffer.allocate(RawFrameFile.INDEX_OFFSET + 1).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(RawFrameFile.MAGIC);
+			header.putInt(format.code);
+			header.putInt(w);
+			header.putInt(h);
+			header.putInt(1);
+			header.putLong(dataOffset);
+			header.clear();
+			writeFully(header, 0);
+		} catch( IOException e ) {
+			raf.close();
+			throw e;
+		}
+	}
+	
+	protected void writeFully( ByteBuffer data, long offset ) throws IOException {
+		while( data.hasRemaining() ) offset += channel.write(data, offset);
+	}
+	
+	@Override public void putRows( int y0, int rowCount, RenderBuffer rows, int[] argb ) throws IOException {
+		int size = w*rowCount*planeBytesPerPixel;
+		if( rowBuffer == null || rowBuffer.capacity() < size ) rowBuffer = ByteBuffer.allocateDirect(size);
+		for( int p=0; p<format.planeCount; ++p ) {
+			rowBuffer.clear();
+			format.writePlaneRows(rows, argb, p, rowCount, rowBuffer);
+			rowBuffer.flip();
+			writeFully(rowBuffer, dataOffset + ((long)p*h + y0)*w*planeBytesPerPixel);
+		}
+		rowsWritten += rowCount;
+	}
+	
+	@Override public void close() throws IOException {
+		try {
+			if( rowsWritten == h ) {
+				channel.force(false);
+				writeFully(ByteBuffer.wrap(new byte[] { 1 }), RawFrameFile.INDEX_OFFSET);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package togos.vizations;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Times the scalar RenderKernels against whichever RenderKernels.get()
+ * picks, at a few frame sizes, and checks that each kernel gives the
+ * same results from both, starting from the same data.  To compare
+ * with the vector kernels, compile src and src-vector with
+ * --add-modules jdk.incubator.vector, and run with that and
+ * -Dtogos.vizations.kernels=vector.
+ */
+public class RenderKernelBenchmark
+{
+	interface Kernel {
+		public void run( RenderKernels k, int start, int end );
+	}
+	
+	static final int[][] SIZES = { {640, 360}, {1920, 1080}, {3840, 2160} };
+	
+	final int n;
+	final float[] r, g, b;
+	final float[][] layerR = new float[4][], layerG = new float[4][], layerB = new float[4][];
+	final float[] rgb;
+	final float[][] layers = new float[4][];
+	final float[] weights = { 1, 1, 1, 0.5f };
+	final byte[] gammaTable = RenderKernels.gammaTable(2.2f);
+	final int[] argb;
+	/**
+	 * Pixel range that results are checked over; starting and ending
+	 * off vector boundaries so that leftovers are handled by both
+	 */
+	final int checkStart, checkEnd;
+	/** Copies of everything kernels write to, to reset before checking */
+	final float[] initialR3, initialG3, initialB3, initialLayer3;
+	
+	public RenderKernelBenchmark( int w, int h ) {
+		n = w*h;
+		Random rand = new Random(1234);
+		r = randomPlane(rand, n, 0.5f);
+		g = randomPlane(rand, n, 0.5f);
+		b = randomPlane(rand, n, 0.5f);
+		for( int l=0; l<4; ++l ) {
+			layerR[l] = randomPlane(rand, n, 0.1f);
+			layerG[l] = randomPlane(rand, n, 0.1f);
+			layerB[l] = randomPlane(rand, n, 0.1f);
+		}
+		rgb = randomPlane(rand, n*3, 0.5f);
+		for( int l=0; l<4; ++l ) layers[l] = randomPlane(rand, n*3, 0.1f);
+		argb = new int[n];
+		checkStart = 3;
+		checkEnd = Math.min(n, 100003);
+		initialR3 = Arrays.copyOf(layerR[3], checkEnd);
+		initialG3 = Arrays.copyOf(layerG[3], checkEnd);
+		initialB3 = Arrays.copyOf(layerB[3], checkEnd);
+		initialLayer3 = Arrays.copyOf(layers[3], checkEnd*3);
+	}
+	
+	protected static float[] randomPlane( Random rand, int n, float max ) {
+		float[] plane = new float[n];
+		for( int i=0; i<n; ++i ) plane[i] = rand.nextFloat() * max;
+		return plane;
+	}
+	
+	/** @return the best time of several runs, in milliseconds */
+	protected double time( Kernel kernel, RenderKernels k ) {
+		int iterations = Math.max(1, 200000000 / n / 10);
+		double best = Double.POSITIVE_INFINITY;
+		for( int run=0; run<10; ++run ) {
+			long start = System.nanoTime();
+			for( int i=0; i<iterations; ++i ) kernel.run(k, 0, n);
+			best = Math.min(best, (System.nanoTime() - start) / 1e6 / iterations);
+		}
+		return best;
+	}
+	
+	protected void reset() {
+		System.arraycopy(initialR3, 0, layerR[3], 0, checkEnd);
+		System.arraycopy(initialG3, 0, layerG[3], 0, checkEnd);
+		System.arraycopy(initialB3, 0, layerB[3], 0, checkEnd);
+		System.arraycopy(initialLayer3, 0, layers[3], 0, checkEnd*3);
+		Arrays.fill(argb, 0, checkEnd, 0);
+	}
+	
+	/**
+	 * @return whether one run of kernel over the check range leaves the
+	 *   same results with k as with the scalar kernels
+	 */
+	protected boolean matches( Kernel kernel, RenderKernels k ) {
+		reset();
+		kernel.run(RenderKernels.SCALAR, checkStart, checkEnd);
+		float[] r3 = Arrays.copyOf(layerR[3], checkEnd), g3 = Arrays.copyOf(layerG[3], checkEnd), b3 = Arrays.copyOf(layerB[3], checkEnd);
+		float[] l3 = Arrays.copyOf(layers[3], checkEnd*3);
+		int[] expected = Arrays.copyOf(argb, checkEnd);
+		reset();
+		kernel.run(k, checkStart, checkEnd);
+		return
+			Arrays.equals(r3, Arrays.copyOf(layerR[3], checkEnd)) &&
+			Arrays.equals(g3, Arrays.copyOf(layerG[3], checkEnd)) &&
+			Arrays.equals(b3, Arrays.copyOf(layerB[3], checkEnd)) &&
+			Arrays.equals(l3, Arrays.copyOf(layers[3], checkEnd*3)) &&
+			Arrays.equals(expected, Arrays.copyOf(argb, checkEnd));
+	}
+	
+	protected boolean allMatch = true;
+	
+	protected void compare( String name, Kernel kernel ) {
+		boolean match = matches(kernel, RenderKernels.get());
+		allMatch &= match;
+		double scalar = time(kernel, RenderKernels.SCALAR);
+		double best = time(kernel, RenderKernels.get());
+		System.out.println(String.format("  %-26s %8.3f ms %8.3f ms %6.2fx%s", name, scalar, best, scalar/best, match ? "" : "  RESULTS DIFFER"));
+	}
+	
+	public boolean run() {
+		compare("clear", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.clear(layerR[3], layerG[3], layerB[3], start, end); }
+		});
+		compare("copy", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.copy(layerR[0], layerG[0], layerB[0], layerR[3], layerG[3], layerB[3], start, end); }
+		});
+		compare("addScaled", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.addScaled(layerR[1], layerG[1], layerB[1], 0.5f, layerR[3], layerG[3], layerB[3], start, end); }
+		});
+		compare("multiply", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.multiply(layerR[3], layerG[3], layerB[3], 0.5f, start, end); }
+		});
+		compare("composite", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.composite(r, g, b, layerR, layerG, layerB, weights, 1.5f, argb, start, end); }
+		});
+		compare("compositeGamma", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.compositeGamma(r, g, b, layerR, layerG, layerB, weights, 1.5f, gammaTable, argb, start, end); }
+		});
+		compare("clear (interleaved)", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.clear(layers[3], start*3, end*3); }
+		});
+		compare("copy (interleaved)", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.copy(layers[0], layers[3], start*3, end*3); }
+		});
+		compare("addScaled (interleaved)", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.addScaled(layers[1], 0.5f, layers[3], start*3, end*3); }
+		});
+		compare("multiply (interleaved)", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.multiply(layers[3], 0.5f, start*3, end*3); }
+		});
+		compare("compositeInterleaved", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.compositeInterleaved(rgb, layers, weights, 1.5f, argb, start, end); }
+		});
+		compare("compositeInterleavedGamma", new Kernel() {
+			@Override public void run( RenderKernels k, int start, int end ) { k.compositeInterleavedGamma(rgb, layers, weights, 1.5f, gammaTable, argb, start, end); }
+		});
+		return allMatch;
+	}
+	
+	public static void main( String[] args ) {
+		System.out.println("Comparing scalar kernels to "+RenderKernels.get().getName());
+		boolean allMatch = true;
+		for( int[] size : SIZES ) {
+			System.out.println(size[0]+"x"+size[1]+":");
+			allMatch &= new RenderKernelBenchmark(size[0], size[1]).run();
+		}
+		System.out.println(allMatch ? "All results match" : "Some results DIFFER");
+		if( !allMatch ) System.exit(1);
+	}
+}
@@ -0,0 +1,193 @@
+package togos.vizations;
+
+/**
+ * The per-pixel loops behind RenderBuffer, working on planar RGB
+ * float arrays over the index range [start,end).
+ *
+ * This class is the plain scalar implementation, which HotSpot
+ * auto-vectorizes fairly well.  Setting the togos.vizations.kernels
+ * system property to "vector" makes get() return VectorRenderKernels
+ * instead, if it's on the classpath (it's in src-vector, and needs the
+ * jdk.incubator.vector module to compile and run) and works.  As of
+ * JDK 17 the vector versions are no faster, and float-to-int
+ * conversion is much slower, so they're not the default; use
+ * RenderKernelBenchmark to see how they do on a given JVM.
+ * Implementations must give bit-identical results.
+ *
+ * Only the planar kernels have vector versions.  The interleaved and
+ * gamma composites are scalar everywhere: splitting interleaved
+ * channels apart takes lane shuffles that cost more than they save,
+ * and gamma is a byte table lookup per channel, which has no vector
+ * form short of a gather.
+ */
+class RenderKernels
+{
+	static final RenderKernels SCALAR = new RenderKernels();
+	static final RenderKernels BEST = load(System.getProperty("togos.vizations.kernels", "scalar"));
+	
+	protected static RenderKernels load( String name ) {
+		if( "vector".equals(name) ) {
+			try {
+				return (RenderKernels)Class.forName("togos.vizations.VectorRenderKernels").getDeclaredConstructor().newInstance();
+			} catch( Throwable e ) {
+				System.err.println("Vector kernels unavailable ("+e+"); using scalar ones");
+				return SCALAR;
+			}
+		} else if( !"scalar".equals(name) ) {
+			System.err.println("Unrecognized kernel set '"+name+"'; using scalar");
+		}
+		return SCALAR;
+	}
+	
+	public static RenderKernels get() {
+		return BEST;
+	}
+	
+	public String getName() {
+		return "scalar";
+	}
+	
+	public void clear( float[] r, float[] g, float[] b, int start, int end ) {
+		for( int i=end-1; i>=start; --i ) r[i] = g[i] = b[i] = 0;
+	}
+	
+	public void copy( float[] srcR, float[] srcG, float[] srcB, float[] r, float[] g, float[] b, int start, int end ) {
+		for( int i=end-1; i>=start; --i ) {
+			r[i] = srcR[i];
+			g[i] = srcG[i];
+			b[i] = srcB[i];
+		}
+	}
+	
+	/** Add src times scale to r, g, b */
+	public void addScaled( float[] srcR, float[] srcG, float[] srcB, float scale, float[] r, float[] g, float[] b, int start, int end ) {
+		for( int i=end-1; i>=start; --i ) {
+			r[i] += srcR[i] * scale;
+			g[i] += srcG[i] * scale;
+			b[i] += srcB[i] * scale;
+		}
+	}
+	
+	public void multiply( float[] r, float[] g, float[] b, float s, int start, int end ) {
+		for( int i=end-1; i>=start; --i ) {
+			r[i] *= s;
+			g[i] *= s;
+			b[i] *= s;
+		}
+	}
+	
+	// Single-array versions, for interleaved buffers
+	
+	public void clear( float[] data, int start, int end ) {
+		for( int i=end-1; i>=start; --i ) data[i] = 0;
+	}
+	
+	public void copy( float[] src, float[] dest, int start, int end ) {
+		System.arraycopy(src, start, dest, start, end-start);
+	}
+	
+	public void addScaled( float[] src, float scale, float[] dest, int start, int end ) {
+		for( int i=end-1; i>=start; --i ) dest[i] += src[i] * scale;
+	}
+	
+	public void multiply( float[] data, float s, int start, int end ) {
+		for( int i=end-1; i>=start; --i ) data[i] *= s;
+	}
+	
+	protected static int toByte( float c ) {
+		int x = (int)(c * 255 + 0.5f);
+		return x < 0 ? 0 : x > 255 ? 255 : x;
+	}
+	
+	protected static int rgb( float r, float g, float b ) {
+		return 0xFF000000 | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+	}
+	
+	/** Number of entries in gamma tables, which cover values from 0 to 1 */
+	static final int GAMMA_TABLE_SIZE = 1 << 16;
+	
+	/**
+	 * @return a table for the gamma composites that encodes with the
+	 *   given gamma, i.e. raises values to 1/gamma
+	 */
+	public static byte[] gammaTable( float gamma ) {
+		byte[] table = new byte[GAMMA_TABLE_SIZE+1];
+		for( int i=0; i<=GAMMA_TABLE_SIZE; ++i ) {
+			table[i] = (byte)toByte((float)Math.pow((double)i/GAMMA_TABLE_SIZE, 1/gamma));
+		}
+		return table;
+	}
+	
+	protected static int gammaByte( byte[] table, float c ) {
+		int x = (int)(c * GAMMA_TABLE_SIZE + 0.5f);
+		return table[x < 0 ? 0 : x > GAMMA_TABLE_SIZE ? GAMMA_TABLE_SIZE : x] & 0xFF;
+	}
+	
+	/**
+	 * Quantize s*(base + the sum of 4 layers times their weights) to ARGB.
+	 * Unused layers should have weight 0 and can point at the base arrays.
+	 */
+	public void composite(
+		float[] r, float[] g, float[] b,
+		float[][] layerR, float[][] layerG, float[][] layerB, float[] weights, float s,
+		int[] dest, int start, int end
+	) {
+		final float[] l0r = layerR[0], l0g = layerG[0], l0b = layerB[0];
+		final float[] l1r = layerR[1], l1g = layerG[1], l1b = layerB[1];
+		final float[] l2r = layerR[2], l2g = layerG[2], l2b = layerB[2];
+		final float[] l3r = layerR[3], l3g = layerG[3], l3b = layerB[3];
+		final float w0 = weights[0], w1 = weights[1], w2 = weights[2], w3 = weights[3];
+		for( int i=end-1; i>=start; --i ) {
+			dest[i] = rgb(
+				s*(r[i] + w0*l0r[i] + w1*l1r[i] + w2*l2r[i] + w3*l3r[i]),
+				s*(g[i] + w0*l0g[i] + w1*l1g[i] + w2*l2g[i] + w3*l3g[i]),
+				s*(b[i] + w0*l0b[i] + w1*l1b[i] + w2*l2b[i] + w3*l3b[i]));
+		}
+	}
+	
+	/**
+	 * composite for interleaved buffers; start and end are pixel
+	 * indexes, and the floats for pixel i start at 3*i.
+	 */
+	public void compositeInterleaved( float[] rgb, float[][] layers, float[] weights, float s, int[] dest, int start, int end ) {
+		final float[] l0 = layers[0], l1 = layers[1], l2 = layers[2], l3 = layers[3];
+		final float w0 = weights[0], w1 = weights[1], w2 = weights[2], w3 = weights[3];
+		for( int i=end-1, j=i*3; i>=start; --i, j-=3 ) {
+			dest[i] = rgb(
+				s*(rgb[j  ] + w0*l0[j  ] + w1*l1[j  ] + w2*l2[j  ] + w3*l3[j  ]),
+				s*(rgb[j+1] + w0*l0[j+1] + w1*l1[j+1] + w2*l2[j+1] + w3*l3[j+1]),
+				s*(rgb[j+2] + w0*l0[j+2] + w1*l1[j+2] + w2*l2[j+2] + w3*l3[j+2]));
+		}
+	}
+	
+	/** composite, quantizing through a table from gammaTable */
+	public void compositeGamma(
+		float[] r, float[] g, float[] b,
+		float[][] layerR, float[][] layerG, float[][] layerB, float[] weights, float s, byte[] table,
+		int[] dest, int start, int end
+	) {
+		final float[] l0r = layerR[0], l0g = layerG[0], l0b = layerB[0];
+		final float[] l1r = layerR[1], l1g = layerG[1], l1b = layerB[1];
+		final float[] l2r = layerR[2], l2g = layerG[2], l2b = layerB[2];
+		final float[] l3r = layerR[3], l3g = layerG[3], l3b = layerB[3];
+		final float w0 = weights[0], w1 = weights[1], w2 = weights[2], w3 = weights[3];
+		for( int i=end-1; i>=start; --i ) {
+			dest[i] = 0xFF000000 |
+				(gammaByte(table, s*(r[i] + w0*l0r[i] + w1*l1r[i] + w2*l2r[i] + w3*l3r[i])) << 16) |
+				(gammaByte(table, s*(g[i] + w0*l0g[i] + w1*l1g[i] + w2*l2g[i] + w3*l3g[i])) <<  8) |
+				 gammaByte(table, s*(b[i] + w0*l0b[i] + w1*l1b[i] + w2*l2b[i] + w3*l3b[i]));
+		}
+	}
+	
+	/** compositeInterleaved, quantizing through a table from gammaTable */
+	public void compositeInterleavedGamma( float[] rgb, float[][] layers, float[] weights, float s, byte[] table, int[] dest, int start, int end ) {
+		final float[] l0 = layers[0], l1 = layers[1], l2 = layers[2], l3 = layers[3];
+		final float w0 = weights[0], w1 = weights[1], w2 = weights[2], w3 = weights[3];
+		for( int i=end-1, j=i*3; i>=start; --i, j-=3 ) {
+			dest[i] = 0xFF000000 |
+				(gammaByte(table, s*(rgb[j  ] + w0*l0[j  ] + w1*l1[j  ] + w2*l2[j  ] + w3*l3[j  ])) << 16) |
+				(gammaByte(table, s*(rgb[j+1] + w0*l0[j+1] + w1*l1[j+1] + w2*l2[j+1] + w3*l3[j+1])) <<  8) |
+				 gammaByte(table, s*(rgb[j+2] + w0*l0[j+2] + w1*l1[j+2] + w2*l2[j+2] + w3*l3[j+2]));
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package togos.vizations;
+
+/**
+ * Counts of what a StarRenderer did while drawing, for finding out
+ * where the time goes and tuning draw ranges and sample counts.
+ * Plain fields, so counting costs next to nothing; each renderer has
+ * its own, and they're added together afterwards.
+ */
+class RenderStats
+{
+	/** Nodes considered for drawing */
+	long nodesVisited;
+	/** Subtrees culled for being entirely nearer than the draw range */
+	long culledNear;
+	/** Subtrees culled for being entirely beyond the draw range */
+	long culledFar;
+	/** Subtrees culled for being entirely off screen */
+	long culledScreen;
+	/** Subtrees culled for being too faint to matter (see StarRenderer.faintLight) */
+	long culledFaint;
+	/** Upper bound on the light culledFaint subtrees would have added */
+	double culledLight;
+	/** Discs splatted; each stamp of a streak counts as one */
+	long splats;
+	/** Subtrees drawn from impostor sprites */
+	long impostors;
+	/** Pixel writes by splats and sprites */
+	long pixelsWritten;
+	
+	public void reset() {
+		nodesVisited = 0;
+		culledNear = culledFar = culledScreen = culledFaint = 0;
+		culledLight = 0;
+		splats = impostors = pixelsWritten = 0;
+	}
+	
+	public void set( RenderStats s ) {
+		reset();
+		add( s );
+	}
+	
+	public void add( RenderStats s ) {
+		nodesVisited += s.nodesVisited;
+		culledNear += s.culledNear;
+		culledFar += s.culledFar;
+		culledScreen += s.culledScreen;
+		culledFaint += s.culledFaint;
+		culledLight += s.culledLight;
+		splats += s.splats;
+		impostors += s.impostors;
+		pixelsWritten += s.pixelsWritten;
+	}
+}
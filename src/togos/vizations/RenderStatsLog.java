@@ -0,0 +1,153 @@
+package togos.vizations;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Writes LayeredRenderers' per-frame statistics to a log, and keeps
+ * running totals that can be watched through JMX.
+ *
+ * CSV logs have a row per layer per frame.  JSON logs have an object
+ * per frame, on its own line, with the layers in an array.  Times are
+ * in microseconds; layers that were reused from an earlier frame's
+ * rendering show up with no time and all counts zero.  Each frame's
+ * lines are written all at once, so several processes can append
+ * to the same log.
+ */
+class RenderStatsLog implements RenderStatsMXBean
+{
+	enum Format {
+		CSV,
+		JSON_LINES;
+		
+		/** Accepts short names as used on command lines: "csv" or "json" */
+		public static Format byName( String name ) {
+			if( "csv".equals(name) ) return CSV;
+			if( "json".equals(name) ) return JSON_LINES;
+			throw new IllegalArgumentException("Unrecognized stats format: "+name);
+		}
+		
+		public String fileExtension() {
+			return this == CSV ? "csv" : "jsonl";
+		}
+	}
+	
+	static final String CSV_HEADER =
+		"frame,frameMicros,layer,nearZ,farZ,layerMicros,nodesVisited," +
+		"culledNear,culledFar,culledScreen,culledFaint,culledLight,splats,impostors,pixelsWritten\n";
+	static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/** May be null, in which case only totals are kept */
+	final OutputStream out;
+	final Format format;
+	protected final StringBuilder text = new StringBuilder();
+	
+	protected final RenderStats totals = new RenderStats();
+	protected long frameCount, totalFrameNanos;
+	protected final long[] totalLayerNanos;
+	
+	public RenderStatsLog( OutputStream out, Format format, int layerCount ) {
+		this.out = out;
+		this.format = format;
+		this.totalLayerNanos = new long[layerCount];
+	}
+	
+	/** Append to file, starting it with a header if it's new and needs one */
+	public static RenderStatsLog open( File file, Format format, int layerCount ) throws IOException {
+		boolean isNew = !file.exists() || file.length() == 0;
+		FileOutputStream fos = new FileOutputStream(file, true);
+		if( isNew && format == Format.CSV ) fos.write(CSV_HEADER.getBytes(UTF8));
+		return new RenderStatsLog(fos, format, layerCount);
+	}
+	
+	/** Make the totals visible through JMX as togos.vizations:type=RenderStats */
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("togos.vizations:type=RenderStats"));
+	}
+	
+	protected void appendCSV( LayeredRenderer r ) {
+		for( int l=0; l<r.layerStats.length; ++l ) {
+			LayeredRenderer.Layer layer = r.layers.get(l);
+			RenderStats s = r.layerStats[l];
+			text.append(r.statsFrame).append(',').append(r.frameNanos/1000).append(',');
+			text.append(l).append(',').append(layer.nearZ).append(',').append(layer.farZ).append(',');
+			text.append(r.layerNanos[l]/1000).append(',').append(s.nodesVisited).append(',');
+			text.append(s.culledNear).append(',').append(s.culledFar).append(',').append(s.culledScreen).append(',');
+			text.append(s.culledFaint).append(',').append(s.culledLight).append(',');
+			text.append(s.splats).append(',').append(s.impostors).append(',').append(s.pixelsWritten).append('\n');
+		}
+	}
+	
+	protected void appendJSON( LayeredRenderer r ) {
+		text.append("{\"frame\":").append(r.statsFrame).append(",\"frameMicros\":").append(r.frameNanos/1000);
+		text.append(",\"layers\":[");
+		for( int l=0; l<r.layerStats.length; ++l ) {
+			LayeredRenderer.Layer layer = r.layers.get(l);
+			RenderStats s = r.layerStats[l];
+			if( l > 0 ) text.append(',');
+			text.append("{\"nearZ\":").append(layer.nearZ);
+			// JSON has no infinity
+			text.append(",\"farZ\":");
+			if( Float.isInfinite(layer.farZ) ) text.append("null"); else text.append(layer.farZ);
+			text.append(",\"layerMicros\":").append(r.layerNanos[l]/1000);
+			text.append(",\"nodesVisited\":").append(s.nodesVisited);
+			text.append(",\"culledNear\":").append(s.culledNear);
+			text.append(",\"culledFar\":").append(s.culledFar);
+			text.append(",\"culledScreen\":").append(s.culledScreen);
+			text.append(",\"culledFaint\":").append(s.culledFaint);
+			text.append(",\"culledLight\":").append(s.culledLight);
+			text.append(",\"splats\":").append(s.splats);
+			text.append(",\"impostors\":").append(s.impostors);
+			text.append(",\"pixelsWritten\":").append(s.pixelsWritten).append('}');
+		}
+		text.append("]}\n");
+	}
+	
+	/** Record the stats of the frame r last rendered */
+	public synchronized void log( LayeredRenderer r ) throws IOException {
+		++frameCount;
+		totalFrameNanos += r.frameNanos;
+		for( int l=0; l<r.layerStats.length && l<totalLayerNanos.length; ++l ) {
+			totals.add(r.layerStats[l]);
+			totalLayerNanos[l] += r.layerNanos[l];
+		}
+		if( out == null ) return;
+		
+		text.setLength(0);
+		if( format == Format.CSV ) appendCSV(r); else appendJSON(r);
+		out.write(text.toString().getBytes(UTF8));
+		out.flush();
+	}
+	
+	public synchronized void close() throws IOException {
+		if( out != null ) out.close();
+	}
+	
+	//// MXBean
+	
+	@Override public synchronized long getFrameCount() { return frameCount; }
+	@Override public synchronized double getAverageFrameMillis() {
+		return frameCount == 0 ? 0 : totalFrameNanos / 1e6 / frameCount;
+	}
+	@Override public synchronized double[] getAverageLayerMillis() {
+		double[] millis = new double[totalLayerNanos.length];
+		for( int l=0; l<millis.length; ++l ) millis[l] = frameCount == 0 ? 0 : totalLayerNanos[l] / 1e6 / frameCount;
+		return millis;
+	}
+	@Override public synchronized long getNodesVisited() { return totals.nodesVisited; }
+	@Override public synchronized long getCulledNear() { return totals.culledNear; }
+	@Override public synchronized long getCulledFar() { return totals.culledFar; }
+	@Override public synchronized long getCulledScreen() { return totals.culledScreen; }
+	@Override public synchronized long getCulledFaint() { return totals.culledFaint; }
+	@Override public synchronized double getCulledLight() { return totals.culledLight; }
+	@Override public synchronized long getSplats() { return totals.splats; }
+	@Override public synchronized long getImpostors() { return totals.impostors; }
+	@Override public synchronized long getPixelsWritten() { return totals.pixelsWritten; }
+}
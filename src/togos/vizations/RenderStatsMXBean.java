@@ -0,0 +1,23 @@
+package togos.vizations;
+
+/**
+ * Running totals of render statistics, for watching a render through
+ * JMX (e.g. with jconsole).  See RenderStatsLog.
+ */
+public interface RenderStatsMXBean
+{
+	public long getFrameCount();
+	public double getAverageFrameMillis();
+	/** Average wall time spent drawing each layer per frame, including frames that reused it */
+	public double[] getAverageLayerMillis();
+	public long getNodesVisited();
+	public long getCulledNear();
+	public long getCulledFar();
+	public long getCulledScreen();
+	public long getCulledFaint();
+	/** Upper bound on the light that culling faint subtrees has left out */
+	public double getCulledLight();
+	public long getSplats();
+	public long getImpostors();
+	public long getPixelsWritten();
+}
@@ -0,0 +1,126 @@
+package togos.vizations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Stores a CompiledScene's tables in a file that can be memory-mapped
+ * and rendered from directly, so that scenes of any size can be
+ * generated once, offline, and then opened without parsing anything
+ * or building any objects.  Processes rendering the same scene file
+ * share its pages through the OS's page cache.
+ *
+ * Layout (all little-endian):
+ *
+ *   0: "VZSCENE1"
+ *   8: int node count
+ *  12: int binding count
+ *  16: int root node
+ *  20: int table count (CompiledScene.TABLE_COUNT)
+ *  24: long offset of each table, in CompiledScene's order
+ *  table offsets (TABLE_ALIGNMENT-aligned): tables, each
+ *      CompiledScene.tableSize bytes long
+ *
+ * Nodes are in post-order, so every binding's child node has a
+ * lower index than the node it belongs to.
+ */
+class SceneFile
+{
+	static final byte[] MAGIC = "VZSCENE1".getBytes(Charset.forName("US-ASCII"));
+	static final int TABLE_OFFSETS_OFFSET = 24;
+	static final int HEADER_SIZE = TABLE_OFFSETS_OFFSET + 8*CompiledScene.TABLE_COUNT;
+	/** Tables start on cache line boundaries */
+	static final int TABLE_ALIGNMENT = 64;
+	
+	protected static long align( long offset ) {
+		return (offset + TABLE_ALIGNMENT - 1) / TABLE_ALIGNMENT * TABLE_ALIGNMENT;
+	}
+	
+	public static void write( CompiledScene scene, File file ) throws IOException {
+		if( scene.procedural != null ) {
+			throw new IllegalArgumentException("Scenes with procedural nodes can't be written to scene files");
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.putInt(scene.nodeCount);
+		header.putInt(scene.bindingCount);
+		header.putInt(scene.rootNode);
+		header.putInt(CompiledScene.TABLE_COUNT);
+		long[] offsets = new long[CompiledScene.TABLE_COUNT];
+		long offset = align(HEADER_SIZE);
+		for( int t=0; t<offsets.length; ++t ) {
+			offsets[t] = offset;
+			header.putLong(offset);
+			offset = align(offset + CompiledScene.tableSize(t, scene.nodeCount, scene.bindingCount));
+		}
+		header.flip();
+		
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			writeFully( channel, header, 0 );
+			for( int t=0; t<offsets.length; ++t ) {
+				ByteBuffer table = scene.tables[t].duplicate();
+				table.clear();
+				table.limit((int)CompiledScene.tableSize(t, scene.nodeCount, scene.bindingCount));
+				writeFully( channel, table, offsets[t] );
+			}
+		} finally {
+			raf.close();
+		}
+	}
+	
+	protected static void writeFully( FileChannel channel, ByteBuffer data, long offset ) throws IOException {
+		while( data.hasRemaining() ) offset += channel.write(data, offset);
+	}
+	
+	/**
+	 * Map file's tables into memory and return a CompiledScene backed by
+	 * them.  Only the header is read; the tables' contents are paged in
+	 * as they're drawn.
+	 */
+	public static CompiledScene load( File file ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long fileSize = channel.size();
+			if( fileSize < HEADER_SIZE ) throw new IOException(file+" is not a scene file");
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if( !Arrays.equals(magic, MAGIC) ) throw new IOException(file+" is not a scene file");
+			
+			int nodeCount = header.getInt(8);
+			int bindingCount = header.getInt(12);
+			int rootNode = header.getInt(16);
+			int tableCount = header.getInt(20);
+			if( tableCount != CompiledScene.TABLE_COUNT || nodeCount < 0 || bindingCount < 0 || rootNode < 0 || rootNode >= nodeCount ) {
+				throw new IOException(file+" has a bad header: "+nodeCount+" nodes, "+bindingCount+" bindings, root "+rootNode+", "+tableCount+" tables");
+			}
+			
+			// Each table gets its own mapping, so no mapping need be
+			// bigger than the 2GB a ByteBuffer can address
+			ByteBuffer[] tables = new ByteBuffer[tableCount];
+			for( int t=0; t<tableCount; ++t ) {
+				long offset = header.getLong(TABLE_OFFSETS_OFFSET + 8*t);
+				long size = CompiledScene.tableSize(t, nodeCount, bindingCount);
+				if( offset < HEADER_SIZE || size > Integer.MAX_VALUE || offset + size > fileSize ) {
+					throw new IOException(file+" is truncated or corrupt: table "+t+" ("+size+" bytes at "+offset+") doesn't fit in "+fileSize+" bytes");
+				}
+				tables[t] = channel.map(FileChannel.MapMode.READ_ONLY, offset, size).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			// Mappings stay valid after the channel is closed
+			return new CompiledScene(nodeCount, bindingCount, rootNode, tables);
+		} finally {
+			raf.close();
+		}
+	}
+}
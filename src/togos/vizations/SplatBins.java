@@ -0,0 +1,285 @@
+package togos.vizations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Splats collected while traversing a scene, sorted by which square
+ * tiles of the screen they touch, so that they can be drawn afterwards
+ * a tile at a time.  Drawn straight away, splats land all over the
+ * buffer in whatever order traversal reaches them, and for big frames
+ * nearly every one is a cache miss; drawn by tile, each tile's pixels
+ * stay in cache while all of its splats are added to them.
+ *
+ * Renderers bin when asked to (-splat-tiles), and ParallelTraversal's
+ * threads always do, so that what they drew can be merged afterwards.
+ *
+ * Tiles cover disjoint pixels, so different threads can draw different
+ * tiles into the same buffer without locking; see draw(dest, bins, pool).
+ *
+ * Each splat is a record of RECORD_FLOATS floats: center x and y and
+ * diameter in pixels, and r, g and b luminance, as would have been
+ * passed to SplatFootprints (so light per pixel for discs bigger than
+ * MAX_DIAMETER; see SplatFootprints.disc).  One that straddles tiles
+ * is recorded in each, and clipped to each when drawn.  Impostor
+ * sprites are recorded the same way, as center, -1 minus their index
+ * in sprites, and scale.
+ * Within a tile, splats are drawn in the order they were added, so a
+ * frame drawn by one renderer comes out the same as it would have
+ * without binning.
+ *
+ * Records are also grouped into runs, numbered by setRun, so that
+ * several renderers drawing different parts of one traversal (see
+ * ParallelTraversal) can each record into their own bins, and have
+ * them drawn in the order a single renderer would have drawn them.
+ */
+class SplatBins
+{
+	static final int RECORD_FLOATS = 6;
+	static final int DEFAULT_TILE_SIZE = 64;
+	
+	final int w, h, tileSize;
+	final int tilesX, tilesY;
+	/** Records for each tile, in rows of tiles */
+	protected final float[][] records;
+	/** Number of floats used in each tile's records */
+	protected final int[] used;
+	/** For each tile, pairs of run number and where in its records that run starts */
+	protected final int[][] runs;
+	/** Number of ints used in each tile's runs */
+	protected final int[] runsUsed;
+	/** Run that records are being added to */
+	protected int run = 0;
+	/** Sprites referenced by records */
+	final List<ImpostorCache.Sprite> sprites = new ArrayList<ImpostorCache.Sprite>();
+	
+	public SplatBins( int w, int h, int tileSize ) {
+		this.w = w;
+		this.h = h;
+		this.tileSize = tileSize;
+		this.tilesX = (w + tileSize - 1) / tileSize;
+		this.tilesY = (h + tileSize - 1) / tileSize;
+		this.records = new float[tilesX*tilesY][];
+		this.used = new int[tilesX*tilesY];
+		this.runs = new int[tilesX*tilesY][];
+		this.runsUsed = new int[tilesX*tilesY];
+		for( int i=0; i<records.length; ++i ) {
+			records[i] = new float[RECORD_FLOATS*16];
+			runs[i] = new int[2*4];
+		}
+	}
+	
+	public SplatBins( int w, int h ) {
+		this( w, h, DEFAULT_TILE_SIZE );
+	}
+	
+	public int tileCount() {
+		return records.length;
+	}
+	
+	/**
+	 * Add records to the given run from now on.  Runs are drawn in order
+	 * of their numbers, which mustn't be reused until the bins are drawn.
+	 */
+	public void setRun( int run ) {
+		this.run = run;
+	}
+	
+	protected void append( int tile, float cx, float cy, float pixelDiam, float lumR, float lumG, float lumB ) {
+		float[] rec = records[tile];
+		int i = used[tile];
+		int r = runsUsed[tile];
+		if( r == 0 || runs[tile][r-2] != run ) {
+			if( r == runs[tile].length ) runs[tile] = Arrays.copyOf(runs[tile], r*2);
+			runs[tile][r  ] = run;
+			runs[tile][r+1] = i;
+			runsUsed[tile] = r + 2;
+		}
+		if( i + RECORD_FLOATS > rec.length ) {
+			float[] bigger = new float[rec.length*2];
+			System.arraycopy(rec, 0, bigger, 0, i);
+			records[tile] = rec = bigger;
+		}
+		rec[i  ] = cx;
+		rec[i+1] = cy;
+		rec[i+2] = pixelDiam;
+		rec[i+3] = lumR;
+		rec[i+4] = lumG;
+		rec[i+5] = lumB;
+		used[tile] = i + RECORD_FLOATS;
+	}
+	
+	/**
+	 * Record a disc to be drawn; it's dropped if it's entirely off
+	 * the buffer.  Points only touch the pixel their center is in, and
+	 * other splats pixels between floor(c - radius) and floor(c + radius)
+	 * each way, give or take the footprints' quantization (see
+	 * SplatFootprints) of the center to 1/8 and radius to 1/32 pixel.
+	 */
+	public void add( float cx, float cy, float pixelDiam, float lumR, float lumG, float lumB ) {
+		float radius = pixelDiam < SplatFootprints.POINT_DIAMETER ? 0 : pixelDiam/2 + 0.25f;
+		float minX = cx - radius, maxX = cx + radius;
+		float minY = cy - radius, maxY = cy + radius;
+		if( maxX < 0 || minX >= w || maxY < 0 || minY >= h ) return;
+		
+		int tx0 = minX < 0 ? 0 : (int)minX / tileSize;
+		int tx1 = maxX >= w ? tilesX-1 : (int)maxX / tileSize;
+		int ty0 = minY < 0 ? 0 : (int)minY / tileSize;
+		int ty1 = maxY >= h ? tilesY-1 : (int)maxY / tileSize;
+		if( tx0 == tx1 && ty0 == ty1 ) {
+			// Nearly all of them
+			append( ty0*tilesX + tx0, cx, cy, pixelDiam, lumR, lumG, lumB );
+			return;
+		}
+		for( int ty=ty0; ty<=ty1; ++ty ) {
+			for( int tx=tx0; tx<=tx1; ++tx ) append( ty*tilesX + tx, cx, cy, pixelDiam, lumR, lumG, lumB );
+		}
+	}
+	
+	/**
+	 * Record a sprite to be drawn as by ImpostorCache.draw; it's dropped
+	 * if it's entirely off the buffer.
+	 */
+	public void addSprite( ImpostorCache.Sprite sprite, float cx, float cy, float scale ) {
+		float halfExtent = sprite.size / 2 / (sprite.scale / scale);
+		// Same pixels as ImpostorCache.draw covers
+		int minX = Math.max(0, (int)(cx - halfExtent)), maxX = Math.min(w, (int)(cx + halfExtent) + 1);
+		int minY = Math.max(0, (int)(cy - halfExtent)), maxY = Math.min(h, (int)(cy + halfExtent) + 1);
+		if( minX >= maxX || minY >= maxY ) return;
+		
+		float index = -1 - sprites.size();
+		sprites.add(sprite);
+		for( int ty=minY/tileSize; ty<=(maxY-1)/tileSize; ++ty ) {
+			for( int tx=minX/tileSize; tx<=(maxX-1)/tileSize; ++tx ) append( ty*tilesX + tx, cx, cy, index, scale, 0, 0 );
+		}
+	}
+	
+	public boolean isEmpty( int tile ) {
+		return used[tile] == 0;
+	}
+	
+	/** Draw records start through end-1 of the given tile, clipped to it */
+	protected int drawRecords( RenderBuffer dest, int tile, int start, int end ) {
+		int x0 = (tile % tilesX)*tileSize, y0 = (tile / tilesX)*tileSize;
+		int x1 = Math.min(w, x0 + tileSize), y1 = Math.min(h, y0 + tileSize);
+		float[] rec = records[tile];
+		int pixelsWritten = 0;
+		for( int i=start; i<end; i+=RECORD_FLOATS ) {
+			float pixelDiam = rec[i+2];
+			if( pixelDiam < 0 ) {
+				ImpostorCache.Sprite sprite = sprites.get(-1 - (int)pixelDiam);
+				pixelsWritten += ImpostorCache.draw( sprite, rec[i], rec[i+1], rec[i+3], dest, x0, y0, x1, y1 );
+			} else if( pixelDiam <= SplatFootprints.MAX_DIAMETER ) {
+				pixelsWritten += SplatFootprints.splat( dest, rec[i], rec[i+1], pixelDiam, rec[i+3], rec[i+4], rec[i+5], x0, y0, x1, y1 );
+			} else {
+				pixelsWritten += SplatFootprints.disc( dest, rec[i], rec[i+1], pixelDiam, rec[i+3], rec[i+4], rec[i+5], x0, y0, x1, y1 );
+			}
+		}
+		return pixelsWritten;
+	}
+	
+	protected void forgetTile( int tile ) {
+		used[tile] = 0;
+		runsUsed[tile] = 0;
+	}
+	
+	/**
+	 * Draw the given tile's splats into dest, which must be the
+	 * size these bins are for, and forget them.  Sprites are kept
+	 * until forgetSprites, since other tiles may still need them.
+	 * @return the number of pixels written
+	 */
+	public int drawTile( RenderBuffer dest, int tile ) {
+		assert dest.w == w && dest.h == h;
+		int pixelsWritten = drawRecords( dest, tile, 0, used[tile] );
+		forgetTile( tile );
+		return pixelsWritten;
+	}
+	
+	/**
+	 * Draw the given tile of all of the given bins, which must all be for
+	 * the same size and tiles, into dest, in order of run number, and
+	 * forget them.
+	 * @return the number of pixels written
+	 */
+	public static int drawTile( RenderBuffer dest, int tile, List<SplatBins> bins ) {
+		int runCount = 0;
+		for( SplatBins sb : bins ) runCount += sb.runsUsed[tile]/2;
+		// Run number in the high half, and which bins and run in the low
+		long[] order = new long[runCount];
+		int[] runBins = new int[runCount], runIndex = new int[runCount];
+		for( int b=0, i=0; b<bins.size(); ++b ) {
+			SplatBins sb = bins.get(b);
+			for( int r=0; r<sb.runsUsed[tile]; r+=2, ++i ) {
+				order[i] = ((long)sb.runs[tile][r] << 32) | i;
+				runBins[i] = b;
+				runIndex[i] = r;
+			}
+		}
+		Arrays.sort(order);
+		
+		int pixelsWritten = 0;
+		for( long o : order ) {
+			int i = (int)o;
+			SplatBins sb = bins.get(runBins[i]);
+			int r = runIndex[i];
+			int end = r+2 < sb.runsUsed[tile] ? sb.runs[tile][r+3] : sb.used[tile];
+			pixelsWritten += sb.drawRecords( dest, tile, sb.runs[tile][r+1], end );
+		}
+		for( SplatBins sb : bins ) sb.forgetTile( tile );
+		return pixelsWritten;
+	}
+	
+	/**
+	 * Draw all of the given bins (as by drawTile(dest, tile, bins)) into
+	 * dest, with tiles shared out between pool's threads, and forget them.
+	 * @return the number of pixels written
+	 */
+	public static long draw( final RenderBuffer dest, final List<SplatBins> bins, ExecutorService pool ) {
+		List<Callable<Integer>> tileTasks = new ArrayList<Callable<Integer>>();
+		for( int i=0, tileCount=bins.get(0).tileCount(); i<tileCount; ++i ) {
+			final int tile = i;
+			tileTasks.add(new Callable<Integer>() {
+				@Override public Integer call() {
+					return drawTile(dest, tile, bins);
+				}
+			});
+		}
+		long pixelsWritten = 0;
+		try {
+			for( Future<Integer> f : pool.invokeAll(tileTasks) ) pixelsWritten += f.get();
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while drawing tiles", e);
+		} catch( ExecutionException e ) {
+			throw new RuntimeException("Failed to draw tile", e.getCause());
+		}
+		for( SplatBins sb : bins ) sb.forgetSprites();
+		return pixelsWritten;
+	}
+	
+	/** Forget recorded sprites; only once all tiles have been drawn */
+	public void forgetSprites() {
+		sprites.clear();
+	}
+	
+	/**
+	 * Draw all recorded splats into dest, tile by tile, and forget them.
+	 * @return the number of pixels written
+	 */
+	public int draw( RenderBuffer dest ) {
+		int pixelsWritten = 0;
+		for( int tile=0; tile<records.length; ++tile ) {
+			if( used[tile] != 0 ) pixelsWritten += drawTile( dest, tile );
+		}
+		forgetSprites();
+		return pixelsWritten;
+	}
+}
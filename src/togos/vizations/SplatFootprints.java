@@ -0,0 +1,266 @@
+package togos.vizations;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Precomputed pixel coverage of small discs, so that the millions of
+ * tiny stars in a frame can be splatted without working out their
+ * shapes one scanline at a time.
+ *
+ * Footprints are tabulated by diameter, in steps of 1/DIAMETER_STEPS
+ * pixel up to MAX_DIAMETER, and by where in its pixel the disc's
+ * center falls, in OFFSET_STEPS steps each way.  Each holds the
+ * fraction of each pixel the disc covers, found by supersampling and
+ * then normalized so that each disc gets the light the scanline loop
+ * (see disc) would have given it.  That's its diameter squared (the
+ * area a StarNode's luminance is per) spread evenly over its bounding
+ * box, of which only the pixels the disc covers are written, so discs
+ * get the same light whichever way they're drawn.  Splatting a disc
+ * adds its luminance times those weights, scaled for the difference
+ * between the disc's actual and tabulated diameter so that no light is
+ * gained or lost to quantization.
+ *
+ * Discs less than POINT_DIAMETER across are drawn as points, with all
+ * of their light in the pixel containing their center.  They're most of
+ * what gets drawn, and spreading them over the 2 or 4 pixels they can
+ * straddle makes splatting them memory-bound.
+ */
+class SplatFootprints
+{
+	static final float POINT_DIAMETER = 1;
+	static final float MAX_DIAMETER = 4;
+	static final int DIAMETER_STEPS = 8;
+	static final int OFFSET_STEPS = 4;
+	/** Supersamples per pixel, each way, when working out coverage */
+	static final int SAMPLES = 32;
+	
+	protected static final int DIAMETER_COUNT = (int)(MAX_DIAMETER*DIAMETER_STEPS) + 1;
+	
+	/**
+	 * FOOTPRINT_INTS ints for each footprint: its bounds relative to the
+	 * pixel containing the center (min x, min y, width, height) and
+	 * where its weights (row by row) start in weights.  Footprints are
+	 * indexed by (diameterStep*OFFSET_STEPS + offsetY)*OFFSET_STEPS + offsetX.
+	 * Kept together so that looking one up touches a single cache line.
+	 */
+	static final int[] footprints;
+	static final int FOOTPRINT_INTS = 5;
+	static final float[] weights;
+	
+	static {
+		int count = DIAMETER_COUNT*OFFSET_STEPS*OFFSET_STEPS;
+		footprints = new int[count*FOOTPRINT_INTS];
+		
+		// No footprint is more than this many pixels across
+		int maxSize = (int)Math.ceil(MAX_DIAMETER) + 1;
+		float[] all = new float[count*maxSize*maxSize];
+		float[] coverage = new float[maxSize*maxSize];
+		int used = 0;
+		for( int d=(int)(POINT_DIAMETER*DIAMETER_STEPS); d<DIAMETER_COUNT; ++d ) {
+			float radius = (float)d/DIAMETER_STEPS/2;
+			for( int oy=0; oy<OFFSET_STEPS; ++oy ) {
+				for( int ox=0; ox<OFFSET_STEPS; ++ox ) {
+					int fp = ((d*OFFSET_STEPS + oy)*OFFSET_STEPS + ox)*FOOTPRINT_INTS;
+					float cx = (ox+0.5f)/OFFSET_STEPS, cy = (oy+0.5f)/OFFSET_STEPS;
+					int x0 = (int)Math.floor(cx - radius), y0 = (int)Math.floor(cy - radius);
+					int size = Math.max((int)Math.floor(cx + radius) - x0, (int)Math.floor(cy + radius) - y0) + 1;
+					
+					// Count supersamples in the disc
+					float total = 0;
+					for( int py=0; py<size; ++py ) {
+						for( int px=0; px<size; ++px ) {
+							int inside = 0;
+							for( int sy=0; sy<SAMPLES; ++sy ) {
+								float dy = y0 + py + (sy+0.5f)/SAMPLES - cy;
+								for( int sx=0; sx<SAMPLES; ++sx ) {
+									float dx = x0 + px + (sx+0.5f)/SAMPLES - cx;
+									if( dx*dx + dy*dy < radius*radius ) ++inside;
+								}
+							}
+							total += coverage[py*size+px] = inside;
+						}
+					}
+					// Trim empty rows and columns
+					int fx0 = size, fy0 = size, fx1 = -1, fy1 = -1;
+					for( int py=0; py<size; ++py ) {
+						for( int px=0; px<size; ++px ) {
+							if( coverage[py*size+px] == 0 ) continue;
+							fx0 = Math.min(fx0, px); fx1 = Math.max(fx1, px);
+							fy0 = Math.min(fy0, py); fy1 = Math.max(fy1, py);
+						}
+					}
+					
+					float area = 4*radius*radius*scanlineShare(cx, cy, radius);
+					footprints[fp  ] = x0 + fx0;
+					footprints[fp+1] = y0 + fy0;
+					footprints[fp+2] = fx1 - fx0 + 1;
+					footprints[fp+3] = fy1 - fy0 + 1;
+					footprints[fp+4] = used;
+					for( int py=fy0; py<=fy1; ++py ) {
+						for( int px=fx0; px<=fx1; ++px ) all[used++] = coverage[py*size+px]*area/total;
+					}
+				}
+			}
+		}
+		weights = new float[used];
+		System.arraycopy(all, 0, weights, 0, used);
+	}
+	
+	/**
+	 * The fraction of its bounding box that disc writes for a disc
+	 * centered at cx, cy, i.e. what share of its diameter squared times
+	 * its luminance ends up in the buffer
+	 */
+	protected static float scanlineShare( float cx, float cy, float radius ) {
+		int x0 = (int)Math.floor(cx - radius), x1 = (int)Math.floor(cx + radius + 1);
+		int y0 = (int)Math.floor(cy - radius), y1 = (int)Math.floor(cy + radius + 1);
+		int written = 0;
+		for( int py=y0; py<y1; ++py ) {
+			float sin = Math.abs((cy - (py+0.5f))/radius);
+			if( sin > 1 ) sin = 1;
+			float cos = (float)Math.sqrt(1 - sin*sin);
+			written += (int)Math.floor(cx+cos*radius+1) - (int)Math.floor(cx-cos*radius);
+		}
+		return (float)written / ((x1-x0)*(y1-y0));
+	}
+	
+	/**
+	 * Add a disc with the given diameter (no more than MAX_DIAMETER),
+	 * centered at cx, cy, to dest's pixel data.
+	 * @return the number of pixels written
+	 */
+	public static int splat( RenderBuffer dest, float cx, float cy, float pixelDiam, float lumR, float lumG, float lumB ) {
+		return splat( dest, cx, cy, pixelDiam, lumR, lumG, lumB, 0, 0, dest.w, dest.h );
+	}
+	
+	/**
+	 * splat, writing only pixels within the given rectangle (which must
+	 * be within dest), so that a disc straddling several tiles can be
+	 * drawn a tile at a time (see SplatBins)
+	 */
+	public static int splat( RenderBuffer dest, float cx, float cy, float pixelDiam, float lumR, float lumG, float lumB,
+		int clipX0, int clipY0, int clipX1, int clipY1
+	) {
+		final int w = dest.w;
+		if( pixelDiam < POINT_DIAMETER ) {
+			if( cx >= clipX0 && cx < clipX1 && cy >= clipY0 && cy < clipY1 ) {
+				// scanlineShare, worked out without the sqrt for discs this
+				// small: rows above and below the center's get one pixel each,
+				// and the center's gets one more each side it reaches across
+				float radius = pixelDiam/2;
+				float fx = cx - (int)cx, fy = cy - (int)cy, dy = fy - 0.5f;
+				int rows = 1 + (fy < radius ? 1 : 0) + (fy + radius >= 1 ? 1 : 0);
+				int cols = fx < radius || fx + radius >= 1 ? 2 : 1;
+				int written = rows + (fx*fx + dy*dy < radius*radius ? 1 : 0) + ((1-fx)*(1-fx) + dy*dy <= radius*radius ? 1 : 0);
+				float area = pixelDiam*pixelDiam*written/(rows*cols);
+				dest.addPixel( (int)cy*w+(int)cx, area*lumR, area*lumG, area*lumB );
+				return 1;
+			}
+			return 0;
+		}
+		
+		int d = (int)(pixelDiam*DIAMETER_STEPS + 0.5f);
+		float quantizedDiam = (float)d/DIAMETER_STEPS;
+		float k = pixelDiam/quantizedDiam;
+		k *= k;
+		lumR *= k; lumG *= k; lumB *= k;
+		
+		int ix = (int)Math.floor(cx), iy = (int)Math.floor(cy);
+		int ox = (int)((cx - ix)*OFFSET_STEPS), oy = (int)((cy - iy)*OFFSET_STEPS);
+		// Rounding can put the offset right at the edge
+		if( ox == OFFSET_STEPS ) ox = OFFSET_STEPS-1;
+		if( oy == OFFSET_STEPS ) oy = OFFSET_STEPS-1;
+		int fp = ((d*OFFSET_STEPS + oy)*OFFSET_STEPS + ox)*FOOTPRINT_INTS;
+		
+		int x0 = ix + footprints[fp], y0 = iy + footprints[fp+1];
+		int fw = footprints[fp+2], fh = footprints[fp+3], start = footprints[fp+4];
+		int px0 = Math.max(clipX0, x0), px1 = Math.min(clipX1, x0+fw);
+		int py0 = Math.max(clipY0, y0), py1 = Math.min(clipY1, y0+fh);
+		final float[] rgb = dest.rgb, r = dest.r, g = dest.g, b = dest.b;
+		for( int py=py0; py<py1; ++py ) {
+			int wi = start + (py-y0)*fw + (px0-x0);
+			if( rgb != null ) {
+				for( int j=(py*w+px0)*3, end=(py*w+px1)*3; j<end; j+=3, ++wi ) {
+					float c = weights[wi];
+					rgb[j  ] += c*lumR;
+					rgb[j+1] += c*lumG;
+					rgb[j+2] += c*lumB;
+				}
+			} else {
+				for( int i=py*w+px0, end=py*w+px1; i<end; ++i, ++wi ) {
+					float c = weights[wi];
+					r[i] += c*lumR;
+					g[i] += c*lumG;
+					b[i] += c*lumB;
+				}
+			}
+		}
+		return px1 > px0 && py1 > py0 ? (px1-px0)*(py1-py0) : 0;
+	}
+	
+	/**
+	 * How much of its luminance a disc of the given diameter, centered
+	 * at cx, cy, gets in each pixel that disc draws: its diameter
+	 * squared spread evenly over its bounding box, clipped to the image,
+	 * which spans x0 to x1 and y0 to y1.  Pass the whole image's bounds
+	 * even when drawing into a buffer that holds only part of it, so
+	 * that a disc straddling several parts gets the same light in each.
+	 */
+	public static float discLightPerPixel( float cx, float cy, float pixelDiam, int x0, int y0, int x1, int y1 ) {
+		float radius = pixelDiam/2;
+		float minX = cx - radius, maxX = cx + radius + 1;
+		float minY = cy - radius, maxY = cy + radius + 1;
+		if( minX < x0 ) minX = x0; if( maxX > x1 ) maxX = x1;
+		if( minY < y0 ) minY = y0; if( maxY > y1 ) maxY = y1;
+		int boxW = (int)Math.floor(maxX) - (int)Math.floor(minX);
+		int boxH = (int)Math.floor(maxY) - (int)Math.floor(minY);
+		if( boxW <= 0 || boxH <= 0 ) return 0;
+		return pixelDiam*pixelDiam / (boxW*boxH);
+	}
+	
+	/**
+	 * Add a disc of any size, centered at cx, cy, to dest's pixel data,
+	 * writing only pixels within the given rectangle (which must be
+	 * within dest).  Discs this big are rare enough to just be drawn a
+	 * scanline at a time.  pr, pg and pb are added to each pixel
+	 * covered; see discLightPerPixel.
+	 * @return the number of pixels written
+	 */
+	public static int disc( RenderBuffer dest, float cx, float cy, float pixelDiam, float pr, float pg, float pb,
+		int clipX0, int clipY0, int clipX1, int clipY1
+	) {
+		final int w = dest.w;
+		float radius = pixelDiam/2;
+		int py0 = Math.max((int)Math.floor(cy - radius), clipY0);
+		int py1 = Math.min((int)Math.floor(cy + radius + 1), clipY1);
+		
+		final float[] rgb = dest.rgb, r = dest.r, g = dest.g, b = dest.b;
+		int pixelsWritten = 0;
+		for( int py=py0; py<py1; ++py ) {
+			float ppy = py+0.5f;
+			float sin = Math.abs(2*(cy - ppy)/pixelDiam);
+			if( sin > 1 ) sin = 1;
+			float cos = (float)Math.sqrt(1 - sin*sin);
+			int px0 = (int)(cx-cos*radius  );
+			if( px0 < clipX0 ) px0 = clipX0;
+			int px1 = (int)(cx+cos*radius+1);
+			if( px1 > clipX1 ) px1 = clipX1;
+			if( px1 <= px0 ) continue;
+			pixelsWritten += px1 - px0;
+			if( rgb != null ) {
+				for( int j=(py*w+px0)*3, end=(py*w+px1)*3; j<end; j+=3 ) {
+					rgb[j  ] += pr;
+					rgb[j+1] += pg;
+					rgb[j+2] += pb;
+				}
+			} else {
+				for( int i=py*w+px0, end=py*w+px1; i<end; ++i ) {
+					r[i] += pr;
+					g[i] += pg;
+					b[i] += pb;
+				}
+			}
+		}
+		return pixelsWritten;
+	}
+}
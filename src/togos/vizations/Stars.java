@@ -1,21 +1,25 @@
 package togos.vizations;
 
-import java.awt.Color;
-import java.awt.Frame;
-import java.awt.event.WindowAdapter;
-import java.awt.event.WindowEvent;
-import java.awt.image.BufferedImage;
+import java.awt.GraphicsEnvironment;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
+import javax.management.JMException;
 
 import togos.vizations.math.FAxisAngle;
-import togos.vizations.math.FMatrix;
-import togos.vizations.math.MatrixMath;
+import togos.vizations.math.Mat4f;
 
 public class Stars
 {
@@ -45,6 +49,10 @@ public class Stars
 	}
 	
 	static class StarNodeBinding {
+		static final AtomicInteger nextIndex = new AtomicInteger();
+		
+		/** Unique per binding; lets renderers keep per-binding state in arrays */
+		final int index = nextIndex.getAndIncrement();
 		final float orbitalScaleX, orbitalScaleY, orbitalScaleZ;
 		final float orbitalDistance, orbitalPhase, orbitalSpeed;
 		final StarNode child;
@@ -113,95 +121,387 @@ public class Stars
 	
 	//// Render
 	
+	/**
+	 * Floating-point RGB image.
+	 * 
+	 * To save passes over the pixels, scaling and compositing are lazy:
+	 * the image's value is scale times the sum of r, g and b and any
+	 * layers added with addLayer, each times its weight.  toRGB applies
+	 * all of that as it quantizes; resolve applies it to r, g and b.
+	 * Anything that reads or writes r, g and b directly should call
+	 * resolve first (cheap if there's nothing to apply).
+	 * 
+	 * Pixel data is either in r, g, and b, or, if the buffer's layout is
+	 * INTERLEAVED, all in rgb, with the other three null.  Buffers that
+	 * are combined with each other (copyFrom, addFrom, addLayer) must
+	 * have the same layout.
+	 */
 	static class RenderBuffer {
 		final int w, h;
+		final PixelLayout layout;
 		final float[] r, g, b;
+		/** Pixel data of INTERLEAVED buffers; pixel i is at 3*i, 3*i+1, and 3*i+2 */
+		final float[] rgb;
+		float scale = 1;
+		protected RenderBuffer[] layers = new RenderBuffer[4];
+		protected float[] layerWeights = new float[4];
+		protected int layerCount = 0;
+		protected final RenderKernels kernels = RenderKernels.get();
 		
-		public RenderBuffer( int w, int h ) {
+		/**
+		 * @param allocate if false, the buffer has no pixel data at all,
+		 *   for renderers that only ever draw into SplatBins
+		 */
+		protected RenderBuffer( int w, int h, PixelLayout layout, boolean allocate ) {
 			this.w = w; this.h = h;
-			this.r = new float[w*h];
-			this.g = new float[w*h];
-			this.b = new float[w*h];
+			this.layout = layout;
+			if( !allocate ) {
+				this.r = this.g = this.b = this.rgb = null;
+			} else if( layout == PixelLayout.INTERLEAVED ) {
+				this.r = this.g = this.b = null;
+				this.rgb = new float[w*h*3];
+			} else {
+				this.r = new float[w*h];
+				this.g = new float[w*h];
+				this.b = new float[w*h];
+				this.rgb = null;
+			}
+		}
+		
+		public RenderBuffer( int w, int h, PixelLayout layout ) {
+			this( w, h, layout, true );
+		}
+		
+		public RenderBuffer( int w, int h ) {
+			this( w, h, PixelLayout.PLANAR );
+		}
+		
+		/** Add to pixel i's r, g, and b (whatever the layout) */
+		public final void addPixel( int i, float pr, float pg, float pb ) {
+			if( rgb != null ) {
+				int j = i*3;
+				rgb[j  ] += pr;
+				rgb[j+1] += pg;
+				rgb[j+2] += pb;
+			} else {
+				r[i] += pr;
+				g[i] += pg;
+				b[i] += pb;
+			}
+		}
+		
+		/** Add src's pixel data (not its scale or layers) times scale to this one's */
+		protected void addScaledData( RenderBuffer src, float scale ) {
+			assert src.layout == layout;
+			if( rgb != null ) {
+				kernels.addScaled(src.rgb, scale, rgb, 0, rgb.length);
+			} else {
+				kernels.addScaled(src.r, src.g, src.b, scale, r, g, b, 0, w*h);
+			}
+		}
+		
+		public boolean isResolved() {
+			return scale == 1 && layerCount == 0;
+		}
+		
+		/** Add the first count layers into r, g, and b */
+		protected void foldLayers( int count ) {
+			for( int l=0; l<count; ++l ) {
+				addScaledData( layers[l], layerWeights[l] );
+			}
+			System.arraycopy(layers, count, layers, 0, layerCount-count);
+			System.arraycopy(layerWeights, count, layerWeights, 0, layerCount-count);
+			for( int l=layerCount-count; l<layerCount; ++l ) layers[l] = null;
+			layerCount -= count;
+		}
+		
+		/** Composite layers into and apply scale to r, g, and b */
+		public void resolve() {
+			if( isResolved() ) return;
+			foldLayers( layerCount );
+			if( scale != 1 ) {
+				if( rgb != null ) kernels.multiply(rgb, scale, 0, rgb.length);
+				else kernels.multiply(r, g, b, scale, 0, w*h);
+			}
+			scale = 1;
 		}
 		
 		public void copyFrom( RenderBuffer oth ) {
 			assert oth.w == this.w;
 			assert oth.h == this.h;
+			assert oth.layout == this.layout;
 			
-			for( int i=w*h-1; i>=0; --i ) {
-				r[i] = oth.r[i];
-				g[i] = oth.g[i];
-				b[i] = oth.b[i];
-			}
+			if( rgb != null ) kernels.copy(oth.rgb, rgb, 0, rgb.length);
+			else kernels.copy(oth.r, oth.g, oth.b, r, g, b, 0, w*h);
+			scale = oth.scale;
+			clearLayers();
+			for( int l=0; l<oth.layerCount; ++l ) addLayerUnscaled(oth.layers[l], oth.layerWeights[l]);
 		}
 		
+		/** Add oth times scale into r, g, and b right away */
 		public void addFrom( RenderBuffer oth, float scale ) {
 			assert oth.w == this.w;
 			assert oth.h == this.h;
 			
-			for( int i=w*h-1; i>=0; --i ) {
-				r[i] += oth.r[i] * scale;
-				g[i] += oth.g[i] * scale;
-				b[i] += oth.b[i] * scale;
+			if( oth.layerCount > 0 ) oth.resolve();
+			if( this.scale == 0 ) resolve();
+			// Both scales are still pending, so account for them here
+			addScaledData( oth, scale * oth.scale / this.scale );
+		}
+		
+		protected void addLayerUnscaled( RenderBuffer layer, float weight ) {
+			if( layerCount == layers.length ) {
+				layers = Arrays.copyOf(layers, layerCount*2);
+				layerWeights = Arrays.copyOf(layerWeights, layerCount*2);
 			}
+			layers[layerCount] = layer;
+			layerWeights[layerCount] = weight;
+			++layerCount;
+		}
+		
+		/**
+		 * Add layer times weight, lazily.  Layer is only referenced, so
+		 * must be left alone until this is resolved, quantized, or cleared.
+		 * Its own scale is taken into account, but not any layers of its own.
+		 */
+		public void addLayer( RenderBuffer layer, float weight ) {
+			assert layer.w == this.w;
+			assert layer.h == this.h;
+			assert layer.layout == this.layout;
+			assert layer.layerCount == 0;
+			
+			if( scale == 0 ) resolve();
+			addLayerUnscaled( layer, weight * layer.scale / scale );
 		}
 		
-		protected static int toByte( float c ) {
-			int x = (int)(c * 255 + 0.5f);
-			return x < 0 ? 0 : x > 255 ? 255 : x; 
+		protected void clearLayers() {
+			for( int l=0; l<layerCount; ++l ) layers[l] = null;
+			layerCount = 0;
 		}
 		
-		protected static int rgb( float r, float g, float b ) {
-			// Might someday do gamma correction?
-			return 0xFF000000 | (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+		/**
+		 * Most layers toRGB composites in its single pass; any more
+		 * are added to r, g, and b first
+		 */
+		static final int MAX_FUSED_LAYERS = 4;
+		protected final float[][] fusedR = new float[MAX_FUSED_LAYERS][], fusedG = new float[MAX_FUSED_LAYERS][], fusedB = new float[MAX_FUSED_LAYERS][];
+		protected final float[][] fusedRGB = new float[MAX_FUSED_LAYERS][];
+		protected final float[] fusedWeights = new float[MAX_FUSED_LAYERS];
+		
+		protected float gammaTableGamma = Float.NaN;
+		protected byte[] gammaTable;
+		
+		protected byte[] gammaTable( float gamma ) {
+			if( gamma != gammaTableGamma ) {
+				gammaTable = RenderKernels.gammaTable(gamma);
+				gammaTableGamma = gamma;
+			}
+			return gammaTable;
 		}
 		
 		public void toRGB( int[] buffer ) {
+			toRGB( buffer, 1 );
+		}
+		
+		/**
+		 * Quantize to ARGB, applying scale, layers and, if it's not 1,
+		 * gamma (encoding, i.e. values are raised to 1/gamma)
+		 * in a single pass.
+		 */
+		public void toRGB( int[] buffer, float gamma ) {
 			assert buffer != null;
 			assert buffer.length >= w*h;
-			for( int i=w*h-1; i>=0; --i ) buffer[i] = rgb(r[i], g[i], b[i]);
+			if( layerCount > MAX_FUSED_LAYERS ) foldLayers( layerCount - MAX_FUSED_LAYERS );
+			if( rgb != null ) {
+				toRGBInterleaved( buffer, gamma );
+				return;
+			}
+			
+			// Unused layer slots point at r, g, and b, which are being
+			// read anyway, so cost nothing in memory bandwidth
+			for( int l=0; l<MAX_FUSED_LAYERS; ++l ) {
+				boolean used = l < layerCount;
+				fusedR[l] = used ? layers[l].r : r;
+				fusedG[l] = used ? layers[l].g : g;
+				fusedB[l] = used ? layers[l].b : b;
+				fusedWeights[l] = used ? layerWeights[l] : 0;
+			}
+			
+			if( gamma == 1 ) {
+				kernels.composite(r, g, b, fusedR, fusedG, fusedB, fusedWeights, scale, buffer, 0, w*h);
+			} else {
+				kernels.compositeGamma(r, g, b, fusedR, fusedG, fusedB, fusedWeights, scale, gammaTable(gamma), buffer, 0, w*h);
+			}
+			for( int l=0; l<MAX_FUSED_LAYERS; ++l ) fusedR[l] = fusedG[l] = fusedB[l] = null;
+		}
+		
+		protected void toRGBInterleaved( int[] buffer, float gamma ) {
+			for( int l=0; l<MAX_FUSED_LAYERS; ++l ) {
+				boolean used = l < layerCount;
+				fusedRGB[l] = used ? layers[l].rgb : rgb;
+				fusedWeights[l] = used ? layerWeights[l] : 0;
+			}
+			
+			if( gamma == 1 ) {
+				kernels.compositeInterleaved(rgb, fusedRGB, fusedWeights, scale, buffer, 0, w*h);
+			} else {
+				kernels.compositeInterleavedGamma(rgb, fusedRGB, fusedWeights, scale, gammaTable(gamma), buffer, 0, w*h);
+			}
+			for( int l=0; l<MAX_FUSED_LAYERS; ++l ) fusedRGB[l] = null;
 		}
 		
 		public void clear() {
-			for( int i=w*h-1; i>=0; --i ) r[i] = g[i] = b[i] = 0;
+			if( rgb != null ) kernels.clear(rgb, 0, rgb.length);
+			else kernels.clear(r, g, b, 0, w*h);
+			scale = 1;
+			clearLayers();
 		}
 		
+		/** Multiply by s, lazily */
 		public void multiply( float s ) {
-			for( int i=w*h-1; i>=0; --i ) {
-				r[i] *= s;
-				g[i] *= s;
-				b[i] *= s;
-			}
+			scale *= s;
 		}
 	}
 	
 	static class StarRenderer extends RenderBuffer {
-		static final FMatrix IDENTITY_VECTOR = new FMatrix(1,4);
-		static final FMatrix X_VECTOR = new FMatrix(1,4);
-		static {
-			IDENTITY_VECTOR.put(0,3,1);
-			X_VECTOR.put(0,3,1);
-			X_VECTOR.put(0,0,1);
-		}
-				
-		final FMatrix[] xfStack = new FMatrix[64];
+		final Mat4f[] xfStack = new Mat4f[64];
 		int xfIndex = 0;
-		final FMatrix scratchVector = new FMatrix(1,4);
-		final FMatrix scratchMatrix = new FMatrix(4,4);
+		final OrbitEvaluator orbits = new OrbitEvaluator();
 		final FAxisAngle scratchAxisAngle = new FAxisAngle();
+		/** What's been drawn since stats were last reset */
+		final RenderStats stats = new RenderStats();
+		
+		/** Pixels per unit at a distance of 1 */
+		float focalLength;
+		/** Rotation part of xfStack[0] */
+		final Mat4f viewRotation = new Mat4f();
+		/**
+		 * Where the view axis meets the buffer, in pixels: the middle,
+		 * unless the buffer is a tile of a bigger image (see setWindow)
+		 */
+		float centerX, centerY;
+		/** Size of the whole image, the height of which the field of view spans */
+		int imageW, imageH;
+		/** Where the buffer's top left corner is in the whole image */
+		int windowX, windowY;
+		/**
+		 * Distances in pixels from center to the buffer's left, right, top
+		 * and bottom edges, with a pixel of margin
+		 */
+		protected float frustumLeft, frustumRight, frustumTop, frustumBottom;
+		/**
+		 * Lengths of the normals of the planes through the camera and
+		 * those edges, e.g. k*x + frustumLeft*z = 0 for the left,
+		 * where k is focalLength
+		 */
+		protected float frustumLeftNorm, frustumRightNorm, frustumTopNorm, frustumBottomNorm;
+		
+		protected StarRenderer( int w, int h, PixelLayout layout, boolean allocate ) {
+			super(w, h, layout, allocate);
+			for( int i=0; i<xfStack.length; ++i ) xfStack[i] = new Mat4f();
+			centerX = w/2;
+			centerY = h/2;
+			imageW = w;
+			imageH = h;
+			setFocalLength( h/1.75f );
+		}
+		
+		public StarRenderer( int w, int h, PixelLayout layout ) {
+			this( w, h, layout, true );
+		}
 		
 		public StarRenderer( int w, int h ) {
-			super(w, h);
-			for( int i=0; i<xfStack.length; ++i ) xfStack[i] = new FMatrix(4,4);
+			this( w, h, PixelLayout.PLANAR );
 		}
 		
+		protected void setFocalLength( float k ) {
+			focalLength = k;
+			frustumLeft = centerX + 1;
+			frustumRight = w - centerX + 1;
+			frustumTop = centerY + 1;
+			frustumBottom = h - centerY + 1;
+			frustumLeftNorm = (float)Math.sqrt(k*k + frustumLeft*frustumLeft);
+			frustumRightNorm = (float)Math.sqrt(k*k + frustumRight*frustumRight);
+			frustumTopNorm = (float)Math.sqrt(k*k + frustumTop*frustumTop);
+			frustumBottomNorm = (float)Math.sqrt(k*k + frustumBottom*frustumBottom);
+		}
+		
+		/**
+		 * Make this buffer the part of an imageW by imageH image with its
+		 * top left corner at x0, y0, so that drawing only draws (and only
+		 * traverses subtrees visible in) that part.  Used to render images
+		 * too big to hold in memory at once, a tile at a time.
+		 */
+		public void setWindow( int imageW, int imageH, int x0, int y0 ) {
+			centerX = imageW/2 - x0;
+			centerY = imageH/2 - y0;
+			this.imageW = imageW;
+			this.imageH = imageH;
+			windowX = x0;
+			windowY = y0;
+			setFocalLength( focalLength );
+		}
+		
+		/** Look along +z from x, y, z with the default field of view */
 		public void initCamera( float x, float y, float z ) {
-			// TODO: actually use some camera settings
-			MatrixMath.identity( xfStack[0] );
-			xfStack[0].put(3, 0, -x);
-			xfStack[0].put(3, 1, -y);
-			xfStack[0].put(3, 2, -z);
-			// x is left, y is up, z is backwards
+			xfStack[0].setTranslation( -x, -y, -z );
+			viewRotation.identity();
+			setFocalLength( imageH/1.75f );
+		}
+		
+		public void initCamera( Camera camera ) {
+			camera.viewTransform( xfStack[0] );
+			camera.viewRotation( viewRotation );
+			setFocalLength( camera.focalLength(imageH) );
+		}
+		
+		/**
+		 * Subtrees no more than this many pixels across are splatted as a
+		 * single disc rather than descended into.  Raising it trades detail
+		 * for speed, e.g. for interactive previews.
+		 */
+		float splatDiameter = 1;
+		
+		/**
+		 * Most light that culling faint subtrees may take from any one
+		 * pixel, in total, until the next setFaintLight; 0 culls nothing.
+		 * See isFaint.
+		 */
+		protected float faintLight = 0;
+		/**
+		 * How much of faintLight culled subtrees have taken from each
+		 * FAINT_TILE_SIZE square tile of the buffer, in rows
+		 */
+		protected float[] faintSpent;
+		protected int faintTilesX;
+		static final int FAINT_TILE_SIZE = 16;
+		/** Subtrees that could touch more tiles than this aren't worth tracking */
+		static final int MAX_FAINT_TILES = 64;
+		
+		/** Set faintLight, starting afresh with none of it spent */
+		public void setFaintLight( float light ) {
+			faintLight = light;
+			if( light <= 0 ) return;
+			if( faintSpent == null ) {
+				faintTilesX = (w + FAINT_TILE_SIZE - 1) / FAINT_TILE_SIZE;
+				faintSpent = new float[faintTilesX * ((h + FAINT_TILE_SIZE - 1) / FAINT_TILE_SIZE)];
+			} else {
+				Arrays.fill(faintSpent, 0);
+			}
+		}
+		
+		/**
+		 * If non-null, splats are recorded here instead of being drawn
+		 * right away, and drawn a tile at a time by flushSplats, which
+		 * whoever is drawing must call before using the pixel data
+		 * (LayeredRenderer.drawLayer does).  Off by default; see
+		 * SplatBins.  ParallelTraversal's renderers always use it.
+		 */
+		SplatBins splatBins;
+		
+		/** Draw any splats waiting in splatBins */
+		public void flushSplats() {
+			if( splatBins != null ) stats.pixelsWritten += splatBins.draw( this );
 		}
 		
 		float nearZ = 0.1f, farZ = Float.POSITIVE_INFINITY;
@@ -210,116 +510,220 @@ public class Stars
 			this.farZ = farZ;
 		}
 		
-		// Will need to be refactored for 3D, but hang with me
-		public void draw( float t, StarNode n ) {
-			MatrixMath.multiply( xfStack[xfIndex], IDENTITY_VECTOR, scratchVector );
-			float z = scratchVector.get(0,2); 
-			if( z + n.maximumOuterRadius <= nearZ ) return; // Entirely behind camera
-			if( z - n.maximumOuterRadius >=  farZ ) return; // Entirely outside range
+		/**
+		 * If > 0, ignore depth and project everything with this many
+		 * pixels per unit, looking along -Z.  Used to render impostors.
+		 */
+		float orthoScale = 0;
+		
+		/** Screen diameter of the last node that drawShallow returned DESCEND for */
+		float projPixelDiam;
+		
+		/**
+		 * Make xf the current transform, as if we had descended depth
+		 * levels into the tree.  Depth matters because orbital planes
+		 * alternate between levels.
+		 */
+		public void loadTransform( int depth, Mat4f xf ) {
+			xfIndex = depth;
+			xfStack[xfIndex].set(xf);
+		}
+		
+		/**
+		 * Calculate the transform of a child node at the given depth
+		 * from that of its parent.
+		 */
+		protected void bindingTransform( float t, int depth, StarNodeBinding snb, Mat4f parentXf, Mat4f dest ) {
+			orbits.evaluate( snb.index, snb.orbitalPhase, snb.orbitalSpeed, t );
+			orbitTransform( depth, orbits.sin, orbits.cos, snb.orbitalDistance, parentXf, dest );
+		}
+		
+		/**
+		 * Transform for something orbiting at the given point in its orbit.
+		 * Orbits alternate between the XZ and XY planes by depth.
+		 */
+		protected static void orbitTransform( int depth, float sin, float cos, float distance, Mat4f parentXf, Mat4f dest ) {
+			float dx = sin*distance;
+			float dz = ((depth+0)%2)*cos*distance;
+			float dy = ((depth+1)%2)*cos*distance;
 			
-			if( z < nearZ && n.isSolid() ) return;
+			dest.set(parentXf).translate(dx, dy, dz);
+		}
+		
+		/**
+		 * Most light a subtree at view-space depth z with the given radius
+		 * and luminance (the largest of its r, g and b) can add, however
+		 * far down it's drawn.  Luminance is per unit of projected area,
+		 * and a node's is its children's averaged by their areas, so that's
+		 * 4*lum*radius^2*scale^2, where scale is the biggest any part of it
+		 * will be projected with.  No part is nearer than z - radius, or
+		 * drawn nearer than nearZ.
+		 */
+		protected final float faintBound( float z, float radius, float lum ) {
+			float scale = orthoScale > 0 ? orthoScale : focalLength/Math.max(z - radius, nearZ);
+			float extent = radius*scale;
+			return 4*lum*extent*extent;
+		}
+		
+		/**
+		 * Cull a node at view-space position x, y, z with the given radius
+		 * and luminance if it's too faint to be worth drawing: if what it
+		 * could add fits in what's left of faintLight in every tile it
+		 * could touch, it's taken from all of them.  However many culled
+		 * subtrees overlap, no pixel loses more than faintLight in total.
+		 * @return true if the node was culled
+		 */
+		protected final boolean isFaint( float x, float y, float z, float radius, float lumR, float lumG, float lumB ) {
+			if( faintLight <= 0 ) return false;
+			float light = faintBound( z, radius, Math.max(lumR, Math.max(lumG, lumB)) );
+			return light <= faintLight && spendFaint( light, x, y, z, radius );
+		}
+		
+		/**
+		 * Take light from faintLight in every tile that the sphere at x,
+		 * y, z with the given radius could be drawn in, if it fits.
+		 * @return true if it did
+		 */
+		protected final boolean spendFaint( float light, float x, float y, float z, float radius ) {
+			float minX, maxX, minY, maxY;
+			if( orthoScale > 0 ) {
+				minX = centerX + orthoScale*(x - radius); maxX = centerX + orthoScale*(x + radius);
+				minY = centerY + orthoScale*(y - radius); maxY = centerY + orthoScale*(y + radius);
+			} else {
+				// Everything in it is drawn at some x and y within radius
+				// of the center's divided by some depth in this range
+				float nearest = Math.max(z - radius, nearZ), farthest = z + radius;
+				if( farthest <= nearest ) return false;
+				float k = focalLength;
+				minX = centerX + k*(x - radius)/(x - radius >= 0 ? farthest : nearest);
+				maxX = centerX + k*(x + radius)/(x + radius >= 0 ? nearest : farthest);
+				minY = centerY + k*(y - radius)/(y - radius >= 0 ? farthest : nearest);
+				maxY = centerY + k*(y + radius)/(y + radius >= 0 ? nearest : farthest);
+			}
+			// Splats reach a pixel past their bounds (see drawShallow);
+			// anything entirely off the buffer costs nothing
+			minX -= 1; maxX += 1; minY -= 1; maxY += 1;
+			if( maxX >= 0 && minX < w && maxY >= 0 && minY < h ) {
+				int tx0 = minX < 0 ? 0 : (int)minX / FAINT_TILE_SIZE, tx1 = (int)Math.min(maxX, w-1) / FAINT_TILE_SIZE;
+				int ty0 = minY < 0 ? 0 : (int)minY / FAINT_TILE_SIZE, ty1 = (int)Math.min(maxY, h-1) / FAINT_TILE_SIZE;
+				if( (tx1 - tx0 + 1)*(ty1 - ty0 + 1) > MAX_FAINT_TILES ) return false;
+				for( int ty=ty0; ty<=ty1; ++ty ) {
+					for( int i=ty*faintTilesX+tx0, end=ty*faintTilesX+tx1; i<=end; ++i ) {
+						if( faintSpent[i] + light > faintLight ) return false;
+					}
+				}
+				for( int ty=ty0; ty<=ty1; ++ty ) {
+					for( int i=ty*faintTilesX+tx0, end=ty*faintTilesX+tx1; i<=end; ++i ) faintSpent[i] += light;
+				}
+			}
+			++stats.culledFaint;
+			stats.culledLight += light;
+			return true;
+		}
+		
+		static final int CULLED = 0;
+		static final int SPLATTED = 1;
+		static final int DESCEND = 2;
+		
+		/**
+		 * Cull n against the current transform, view frustum and draw
+		 * range, and splat it if it is solid or small enough to not be
+		 * worth descending into.  Its bounding sphere is tested against
+		 * the frustum before any of its children's transforms are
+		 * calculated, so whole subtrees off to the side or behind the
+		 * camera cost one test.
+		 * @return CULLED, SPLATTED, or DESCEND if n's children need to be drawn
+		 */
+		protected int drawShallow( StarNode n ) {
+			++stats.nodesVisited;
+			// Position is the transform's translation column
+			Mat4f xf = xfStack[xfIndex];
+			if( isFaint( xf.m03, xf.m13, xf.m23, n.maximumOuterRadius, n.totalLuminance.r, n.totalLuminance.g, n.totalLuminance.b ) ) return CULLED;
+			return drawShallow( xf.m03, xf.m13, xf.m23, n.maximumOuterRadius, n.totalLuminance.r, n.totalLuminance.g, n.totalLuminance.b, n.isSolid() );
+		}
+		
+		/**
+		 * drawShallow for a node at view-space position x,y,z described by
+		 * its radius, luminance and solidity.
+		 */
+		protected int drawShallow( float x, float y, float z, float radius, float lumR, float lumG, float lumB, boolean solid ) {
+			boolean ortho = orthoScale > 0;
+			if( !ortho ) {
+				if( z + radius <= nearZ ) { ++stats.culledNear; return CULLED; } // Entirely behind camera
+				if( z - radius >=  farZ ) { ++stats.culledFar;  return CULLED; } // Entirely outside range
+				
+				if( z < nearZ && solid ) { ++stats.culledNear; return CULLED; }
+				
+				// Entirely outside one of the frustum's side planes
+				float k = focalLength;
+				if( k*x + frustumLeft*z <= -radius*frustumLeftNorm ||
+					frustumRight*z - k*x <= -radius*frustumRightNorm ||
+					k*y + frustumTop*z <= -radius*frustumTopNorm ||
+					frustumBottom*z - k*y <= -radius*frustumBottomNorm
+				) {
+					++stats.culledScreen;
+					return CULLED;
+				}
+			}
 			
-			float scale = h/1.75f/(z+n.maximumOuterRadius);
+			float scale = ortho ? orthoScale : focalLength/(z+radius);
 
-			float x = scratchVector.get(0,0);
-			float minX = w/2 + scale*(x-n.maximumOuterRadius);
-			float maxX = w/2 + scale*(x+n.maximumOuterRadius)+1;
-			float y = scratchVector.get(0,1);
-			float minY = h/2 + scale*(y-n.maximumOuterRadius);
-			float maxY = h/2 + scale*(y+n.maximumOuterRadius)+1;
+			float minX = centerX + scale*(x-radius);
+			float maxX = centerX + scale*(x+radius)+1;
+			float minY = centerY + scale*(y-radius);
+			float maxY = centerY + scale*(y+radius)+1;
 			
-			if( z > 0 ) {
-				if( minX >= w ) return;
-				if( maxX <= 0 ) return;
-				if( minY >= h ) return;
-				if( maxY <= 0 ) return;
+			boolean inFront = z > 0 || ortho;
+			// In perspective the frustum test above is exact, whereas these
+			// bounds use the far edge's scale, so are too small for anything
+			// off to the side and would cull things at the edges of windows
+			if( ortho && (minX >= w || maxX <= 0 || minY >= h || maxY <= 0) ) {
+				++stats.culledScreen;
+				return CULLED;
 			}
 			
-			float pixelDiam = scale*n.maximumOuterRadius*2;
-			if( z > 0 && pixelDiam <= 1 || n.isSolid() ) {
-				
-				if( minX < 0 ) minX = 0; if( maxX > w ) maxX = w;
-				if( minY < 0 ) minY = 0; if( maxY > h ) maxY = h;
-				int iMinX = (int)minX; 	int iMaxX = (int)maxX;
-				int iMinY = (int)minY; 	int iMaxY = (int)maxY;
-				
-				float pixelArea = pixelDiam*pixelDiam;
-				float brightnessPerPixel = pixelArea / ((iMaxX-iMinX)*(iMaxY-iMinY));
-				float pr = brightnessPerPixel * n.totalLuminance.r;
-				float pg = brightnessPerPixel * n.totalLuminance.g;
-				float pb = brightnessPerPixel * n.totalLuminance.b;
-				
-				if( pixelArea == 1 ) {
-					int i = iMinY*w+iMinX;
-					r[i] += pr;
-					g[i] += pg;
-					b[i] += pb;
-				} else {
-					// Draw a nice circle!
-					// TODO: Note that this code is awful.
-					float cpx = w/2 + scale*x;
-					float cpy = h/2 + scale*y;
-					for( int py=iMinY; py<iMaxY; ++py ) {
-						float ppy = py+0.5f;
-						float sin = Math.abs(2*(cpy - ppy)/pixelDiam);
-						if( sin > 1 ) sin = 1;
-						float cos = (float)Math.sqrt(1 - sin*sin);
-						iMinX = (int)(cpx-cos*pixelDiam/2  );
-						if( iMinX < 0 ) iMinX = 0;
-						iMaxX = (int)(cpx+cos*pixelDiam/2+1);
-						if( iMaxX > w ) iMaxX = w;
-						for( int px=iMinX, i=py*w+px; px<iMaxX; ++px, ++i ) {
-							r[i] += pr;
-							g[i] += pg;
-							b[i] += pb;
-						}
-					}
+			float pixelDiam = scale*radius*2;
+			if( inFront && pixelDiam <= splatDiameter || solid ) {
+				++stats.splats;
+				float cx = centerX + scale*x, cy = centerY + scale*y;
+				if( pixelDiam > SplatFootprints.MAX_DIAMETER ) {
+					// Spread over the whole image's share of its bounding box,
+					// not this buffer's, so that tiles (see setWindow) agree
+					float k = SplatFootprints.discLightPerPixel( cx, cy, pixelDiam, -windowX, -windowY, imageW - windowX, imageH - windowY );
+					lumR *= k; lumG *= k; lumB *= k;
 				}
-			} else {
-				++xfIndex;
-				for( StarNodeBinding snb : n.getChildren() ) {
-					double phase = Math.PI*2*(snb.orbitalPhase + snb.orbitalSpeed * t);
-					
-					MatrixMath.identity(scratchMatrix);
-					scratchMatrix.put(3, 0, (float)Math.sin(phase)*snb.orbitalDistance);
-					scratchMatrix.put(3, 2, ((xfIndex+0)%2)*(float)Math.cos(phase)*snb.orbitalDistance);
-					scratchMatrix.put(3, 1, ((xfIndex+1)%2)*(float)Math.cos(phase)*snb.orbitalDistance);
-					
-					MatrixMath.multiply( xfStack[xfIndex-1], scratchMatrix, xfStack[xfIndex] );
-					draw( t, snb.child );
+				if( splatBins != null ) {
+					splatBins.add( cx, cy, pixelDiam, lumR, lumG, lumB );
+				} else if( pixelDiam <= SplatFootprints.MAX_DIAMETER ) {
+					stats.pixelsWritten += SplatFootprints.splat( this, cx, cy, pixelDiam, lumR, lumG, lumB );
+				} else {
+					stats.pixelsWritten += SplatFootprints.disc( this, cx, cy, pixelDiam, lumR, lumG, lumB, 0, 0, w, h );
 				}
-				--xfIndex;
+				return SPLATTED;
+			}
+			projPixelDiam = pixelDiam;
+			return DESCEND;
+		}
+		
+		protected void drawChildren( float t, StarNode n ) {
+			++xfIndex;
+			for( StarNodeBinding snb : n.getChildren() ) {
+				bindingTransform( t, xfIndex, snb, xfStack[xfIndex-1], xfStack[xfIndex] );
+				draw( t, snb.child );
 			}
+			--xfIndex;
+		}
+		
+		public void draw( float t, StarNode n ) {
+			if( drawShallow(n) == DESCEND ) drawChildren(t, n);
 		}
 	}
 	
-	//// UI
+	//// Animation
 	
-	public static void main( String[] args ) throws InterruptedException, IOException {
-		final int w = 640, h = 360;
-		//final int w = 320, h = 180;
-		//final int w = 160, h = 90;
-		//final int w = 80, h = 45;
-		final BufferedImage image = new BufferedImage( w, h, BufferedImage.TYPE_INT_ARGB );
-		final int[] pixBuf = new int[w*h];
-		
-		final Frame f = new Frame("Stars");
-		final ImageCanvas ic = new ImageCanvas();
-		ic.setBackground(Color.BLACK);
-		ic.setImage(image);
-		f.add(ic);
-		f.pack();
-		f.setVisible(true);
-		f.addWindowListener(new WindowAdapter() {
-			@Override public void windowClosing(WindowEvent e) {
-				f.dispose();
-				System.exit(0);
-			}
-		});
-		
+	static StarNode buildGalaxy() {
 		StarNode starNode = new SolidNode(0.5f, new FColor(4f, 2f, 1f));
 		StarNode starNode2 = new SolidNode(20f, new FColor(2f, 3f, 4f));
-		StarRenderer renderer = new StarRenderer( w, h );
 		
 		Set<StarNodeBinding> chrilden = new HashSet<StarNodeBinding>();
 		chrilden.add(new StarNodeBinding(1, 0, 0, 2f, 0.00f, 2f, starNode));
@@ -374,80 +778,418 @@ public class Stars
 			starNode = CompoundNode.aggregate(chrilden);
 		}
 		
+		return starNode;
+	}
+	
+	/**
+	 * Describes what to draw for each frame: the scene, the camera path,
+	 * and the layers to draw it in (see LayeredRenderer).
+	 */
+	static class Animation {
+		/** Null if the scene was loaded from a file */
+		final StarNode scene;
+		/** The same scene, shared by all renderers that can draw it */
+		final CompiledScene compiledScene;
 		float dt = 0.01f;
-		final int totalFrameCount = 10*30*60;
-		final int framesPerSuperframe = 3;
-		int lastSuperframe = -1;
-		final int miniframesPerFrame = 5;
-		final int microframesPerFrame = 20;
-		File outputDir = new File("output/stars5");
-		if( !outputDir.exists() ) outputDir.mkdirs();
+		int totalFrameCount = 10*30*60;
+		float camX = 0, camY = 40;
+		/** Orientation and field of view; position comes from cameraX, Y, and Z */
+		final Camera camera = new Camera();
+		float exposure = 10;
+		/** Gamma to encode output with; 1 for none */
+		float gamma = 1;
+		/**
+		 * If > 0, subtrees are culled for being too faint to matter, as
+		 * long as those culled take no more than this many steps (of 255)
+		 * from any pixel of the encoded output, all told
+		 */
+		float faintCull = 0;
+		final List<LayeredRenderer.Layer> layers = new ArrayList<LayeredRenderer.Layer>();
 		
-		final RenderBuffer background = new RenderBuffer(w,h);
+		public Animation( StarNode scene ) {
+			this( scene, CompiledScene.compile(scene) );
+		}
 		
-		for( int frame=0; frame<totalFrameCount; ++frame ) {
-			File outputFile = new File(outputDir, String.format("frame%08d.png", frame));
-			if( outputFile.exists() ) continue;
-			
-			f.setTitle("Stars (Rendering frame "+frame+" of "+totalFrameCount+")");
-			
-			float camX = 0, camY = 40;
-			
+		/** Animate a scene loaded from a file; only FlatStarRenderers can draw it */
+		public Animation( CompiledScene scene ) {
+			this( null, scene );
+		}
+		
+		protected Animation( StarNode scene, CompiledScene compiledScene ) {
+			this.scene = scene;
+			this.compiledScene = compiledScene;
 			// Draw really far away stuff only once per superframe
-			if( lastSuperframe >=0 && frame - lastSuperframe < framesPerSuperframe ) {
-				renderer.copyFrom(background);
-			} else {
-				float time = (frame+framesPerSuperframe/2)*dt;
-				float camZ = time*3000 - 40000;
-				renderer.initCamera( camX, camY, camZ );
-				renderer.clear();
-				renderer.setDrawRange(30000, Float.POSITIVE_INFINITY);
-				renderer.draw(time, starNode);
-				background.copyFrom(renderer);
-				lastSuperframe = frame;
-			}
-			
+			layers.add(new LayeredRenderer.Layer(30000, Float.POSITIVE_INFINITY, 1, 3));
 			// Draw medium-distance stuff once per frame
-			renderer.setDrawRange(1500, 30000);
-			{
-				float time = (frame+0.5f)*dt;
-				float camZ = time*3000 - 40000;
-				renderer.initCamera( camX, camY, camZ );
-				renderer.draw(time, starNode);
+			layers.add(new LayeredRenderer.Layer(1500, 30000, 1, 1));
+			// Close stuff moves fast enough to need motion blur;
+			// draw it as streaks rather than over and over
+			LayeredRenderer.Layer close = new LayeredRenderer.Layer(500, 1500, 1, 1);
+			close.streaked = true;
+			layers.add(close);
+			LayeredRenderer.Layer closer = new LayeredRenderer.Layer(0.1f, 500, 2, 1);
+			closer.streaked = true;
+			layers.add(closer);
+		}
+		
+		/**
+		 * Number of frames after which all layers start fresh renderings
+		 * together; chunks of frames that are multiples of this long
+		 * can be rendered independently without any duplicated work.
+		 */
+		public int superframeLength() {
+			int length = 1;
+			for( LayeredRenderer.Layer layer : layers ) {
+				int a = length, b = layer.framesPerRender;
+				while( b != 0 ) { int r = a % b; a = b; b = r; }
+				length = length / a * layer.framesPerRender;
 			}
-
-			renderer.multiply(miniframesPerFrame);
-			// Draw close stuff over and over
-			renderer.setDrawRange(500f, 1500);
-			for( int i=0; i<miniframesPerFrame; ++i ) {
-				float time = (frame+(float)i/miniframesPerFrame)*dt;
-				float camZ = time*3000 - 40000;
-				renderer.initCamera( camX, camY, camZ );
-				renderer.draw(time, starNode);
+			return length;
+		}
+		
+		/**
+		 * StarRenderer.faintLight for drawing a layer with the given
+		 * number of samples per frame, each of which is divided by that
+		 * before being added up and multiplied by exposure.  Encoding is
+		 * steepest near 0 for gammas over 1, and near 1 otherwise.  Each
+		 * layer gets an equal share, so that together they take no more
+		 * than faintCull steps from any pixel.
+		 */
+		public float faintLight( int samplesPerFrame ) {
+			if( faintCull <= 0 ) return 0;
+			float step = faintCull/255;
+			float linear = gamma >= 1 ? (float)Math.pow(step, gamma) : step*gamma;
+			return linear*samplesPerFrame/exposure/layers.size();
+		}
+		
+		public float cameraX( float time ) { return camX; }
+		public float cameraY( float time ) { return camY; }
+		public float cameraZ( float time ) { return time*3000 - 40000; }
+		
+		public Camera camera( float time, Camera dest ) {
+			return dest.set(camera).setPosition( cameraX(time), cameraY(time), cameraZ(time) );
+		}
+		
+		public void initCamera( StarRenderer renderer, float time ) {
+			renderer.initCamera( camera(time, new Camera()) );
+		}
+	}
+	
+	static class AnimationFrameRenderer implements FramePipeline.FrameRenderer {
+		final LayeredRenderer renderer;
+		/** If non-null, each frame's stats are logged to it */
+		final RenderStatsLog statsLog;
+		
+		public AnimationFrameRenderer( LayeredRenderer renderer, RenderStatsLog statsLog ) {
+			this.renderer = renderer;
+			this.statsLog = statsLog;
+		}
+		
+		@Override public RenderBuffer renderFrame( int frame, int[] argb ) throws InterruptedException, IOException {
+			RenderBuffer frameData = renderer.renderFrame(frame);
+			frameData.toRGB(argb, renderer.animation.gamma);
+			if( statsLog != null ) statsLog.log(renderer);
+			return frameData;
+		}
+	}
+	
+	//// UI
+	
+	static final String USAGE =
+		"Usage: Stars [options]\n" +
+		"Options:\n" +
+		"  -size <w>x<h>        ; frame size (default 640x360)\n" +
+		"  -frames <first>-<last> ; range of frames to render (default all)\n" +
+		"  -output <mode>       ; png (default), raw-argb, raw-float, stream-argb, or stream-float\n" +
+		"  -output-dir <dir>    ; where to put output (default output/stars5)\n" +
+		"  -scene <file>        ; render a scene file (see SceneFile) instead of the built-in galaxy\n" +
+		"  -write-scene <file>  ; write the scene to a scene file and exit without rendering\n" +
+		"  -procedural          ; render a procedurally generated galaxy of about a billion\n" +
+		"                       ; unique stars (see GalaxyGenerator) instead of the built-in one\n" +
+		"  -threads <n>         ; rendering threads (default number of processors)\n" +
+		"  -traversal-threads <n> ; also split each layer's traversal between this many\n" +
+		"                       ; threads (see ParallelTraversal); default -threads if\n" +
+		"                       ; there are fewer frames or poster tiles than that, else 1 (off)\n" +
+		"  -gamma <g>           ; gamma to encode quantized output with (default 1)\n" +
+		"  -faint-cull <steps>  ; skip faint subtrees, as long as all those skipped change no\n" +
+		"                       ; pixel by more than this many 8-bit steps, e.g. 0.25\n" +
+		"                       ; (default 0, off)\n" +
+		"  -yaw <degrees>       ; turn the camera right from the direction of travel\n" +
+		"  -pitch <degrees>     ; tilt the camera up\n" +
+		"  -fov <degrees>       ; vertical field of view (default about 82)\n" +
+		"  -impostor-time-quantum <t> ; length of the time buckets that impostor sprites of small\n" +
+		"                       ; subtrees are rendered for and shared within (default 0.01,\n" +
+		"                       ; one frame); 0 to render them for every exact time\n" +
+		"  -layout <layout>     ; planar (default) or interleaved float pixel data;\n" +
+		"                       ; interleaved is faster for big frames\n" +
+		"  -splat-tiles <size>  ; collect splats and draw them in tiles this many pixels\n" +
+		"                       ; across (see SplatBins); 0 (default) to draw them right away\n" +
+		"  -chunk <n>           ; claim frames in chunks of about n through claim files\n" +
+		"                       ; in the output directory, so that several processes can\n" +
+		"                       ; share the work (see FrameClaims)\n" +
+		"  -preview <n>         ; show every nth frame in a window (default 1)\n" +
+		"  -headless            ; don't show a window at all; same as -preview 0\n" +
+		"  -progress-interval <seconds> ; how often to print progress (default 5)\n" +
+		"  -stats <format>      ; log per-frame, per-layer render statistics to\n" +
+		"                       ; stats.csv (csv) or stats.jsonl (json) in the output directory\n" +
+		"  -jmx                 ; make running totals of render statistics available through JMX\n" +
+		"  -poster <frame>      ; render just that frame, in horizontal tiles streamed to disk,\n" +
+		"                       ; so that it can be far bigger than memory; output is\n" +
+		"                       ; poster<frame>.png or .vzraw (for raw-* modes)\n" +
+		"  -tile-height <rows>  ; height of poster tiles (default 64)";
+	
+	protected static int parseInt( String name, String value ) {
+		try {
+			return Integer.parseInt(value);
+		} catch( NumberFormatException e ) {
+			throw new IllegalArgumentException("Bad value for "+name+": '"+value+"'");
+		}
+	}
+	
+	protected static float parseFloat( String name, String value ) {
+		try {
+			return Float.parseFloat(value);
+		} catch( NumberFormatException e ) {
+			throw new IllegalArgumentException("Bad value for "+name+": '"+value+"'");
+		}
+	}
+	
+	public static void main( String[] args ) throws InterruptedException, IOException {
+		int w = 640, h = 360;
+		int firstFrame = 0, endFrame = -1;
+		String outputMode = "png";
+		File outputDir = new File("output/stars5");
+		File sceneFile = null, writeSceneFile = null;
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		// 0 means the default, which depends on how much else there is to do at once
+		int traversalThreadCount = 0;
+		// If > 0, frames are rendered in chunks claimed through files in
+		// the output directory, so that any number of processes sharing it
+		// can work on the same animation (see FrameClaims)
+		int framesPerChunk = 0;
+		int previewInterval = GraphicsEnvironment.isHeadless() ? 0 : 1;
+		int progressInterval = 5;
+		float gamma = 1, faintCull = 0;
+		float impostorTimeQuantum = ImpostorCache.DEFAULT_TIME_QUANTUM;
+		PixelLayout layout = PixelLayout.PLANAR;
+		int splatTileSize = 0;
+		RenderStatsLog.Format statsFormat = null;
+		boolean jmx = false, procedural = false;
+		// In degrees; fieldOfView = 0 means the default
+		float yaw = 0, pitch = 0, fieldOfView = 0;
+		// If >= 0, render only this frame, as a poster (see PosterRenderer)
+		int posterFrame = -1, tileHeight = 64;
+		try {
+			for( int i=0; i<args.length; ++i ) {
+				String arg = args[i];
+				if( "-headless".equals(arg) ) {
+					previewInterval = 0;
+					continue;
+				} else if( "-jmx".equals(arg) ) {
+					jmx = true;
+					continue;
+				} else if( "-procedural".equals(arg) ) {
+					procedural = true;
+					continue;
+				} else if( "-?".equals(arg) || "-h".equals(arg) || "--help".equals(arg) ) {
+					System.out.println(USAGE);
+					return;
+				}
+				if( !arg.startsWith("-") || i+1 == args.length ) {
+					throw new IllegalArgumentException("Unrecognized argument: "+arg);
+				}
+				String value = args[++i];
+				if( "-size".equals(arg) ) {
+					String[] parts = value.split("x");
+					if( parts.length != 2 ) throw new IllegalArgumentException("Bad value for -size: '"+value+"'");
+					w = parseInt(arg, parts[0]);
+					h = parseInt(arg, parts[1]);
+				} else if( "-frames".equals(arg) ) {
+					String[] parts = value.split("-");
+					if( parts.length != 2 ) throw new IllegalArgumentException("Bad value for -frames: '"+value+"'");
+					firstFrame = parseInt(arg, parts[0]);
+					endFrame = parseInt(arg, parts[1]) + 1;
+				} else if( "-output".equals(arg) ) {
+					outputMode = value;
+				} else if( "-output-dir".equals(arg) ) {
+					outputDir = new File(value);
+				} else if( "-scene".equals(arg) ) {
+					sceneFile = new File(value);
+				} else if( "-write-scene".equals(arg) ) {
+					writeSceneFile = new File(value);
+				} else if( "-threads".equals(arg) ) {
+					threadCount = parseInt(arg, value);
+				} else if( "-traversal-threads".equals(arg) ) {
+					traversalThreadCount = parseInt(arg, value);
+					if( traversalThreadCount <= 0 ) throw new IllegalArgumentException("-traversal-threads must be positive");
+				} else if( "-gamma".equals(arg) ) {
+					gamma = parseFloat(arg, value);
+				} else if( "-faint-cull".equals(arg) ) {
+					faintCull = parseFloat(arg, value);
+					if( faintCull < 0 ) throw new IllegalArgumentException("-faint-cull can't be negative");
+				} else if( "-yaw".equals(arg) ) {
+					yaw = parseFloat(arg, value);
+				} else if( "-pitch".equals(arg) ) {
+					pitch = parseFloat(arg, value);
+				} else if( "-fov".equals(arg) ) {
+					fieldOfView = parseFloat(arg, value);
+					if( fieldOfView <= 0 || fieldOfView >= 180 ) throw new IllegalArgumentException("-fov must be between 0 and 180");
+				} else if( "-impostor-time-quantum".equals(arg) ) {
+					impostorTimeQuantum = parseFloat(arg, value);
+					if( impostorTimeQuantum < 0 ) throw new IllegalArgumentException("-impostor-time-quantum can't be negative");
+				} else if( "-layout".equals(arg) ) {
+					layout = PixelLayout.byName(value);
+				} else if( "-splat-tiles".equals(arg) ) {
+					splatTileSize = parseInt(arg, value);
+					if( splatTileSize < 0 ) throw new IllegalArgumentException("-splat-tiles can't be negative");
+				} else if( "-chunk".equals(arg) ) {
+					framesPerChunk = parseInt(arg, value);
+				} else if( "-preview".equals(arg) ) {
+					previewInterval = parseInt(arg, value);
+				} else if( "-progress-interval".equals(arg) ) {
+					progressInterval = parseInt(arg, value);
+				} else if( "-poster".equals(arg) ) {
+					posterFrame = parseInt(arg, value);
+				} else if( "-tile-height".equals(arg) ) {
+					tileHeight = parseInt(arg, value);
+					if( tileHeight <= 0 ) throw new IllegalArgumentException("-tile-height must be positive");
+				} else if( "-stats".equals(arg) ) {
+					statsFormat = RenderStatsLog.Format.byName(value);
+				} else {
+					throw new IllegalArgumentException("Unrecognized argument: "+arg);
+				}
 			}
-			renderer.multiply(1f/miniframesPerFrame);
-			
-			renderer.multiply(microframesPerFrame);
-			// Draw closer stuff over and overer
-			renderer.setDrawRange(0.1f, 500);
-			for( int i=0; i<microframesPerFrame; ++i ) {
-				float time = (frame+(float)i/microframesPerFrame)*dt;
-				float camZ = time*3000 - 40000;
-				renderer.initCamera( camX, camY, camZ );
-				renderer.draw(time, starNode);
+		} catch( IllegalArgumentException e ) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		// Keep AWT from trying to find a display if we're not going to use one
+		if( previewInterval <= 0 ) System.setProperty("java.awt.headless", "true");
+		
+		final Animation animation =
+			sceneFile != null ? new Animation(SceneFile.load(sceneFile)) :
+			procedural ? new Animation(new GalaxyGenerator().root()) :
+			new Animation(buildGalaxy());
+		if( writeSceneFile != null ) {
+			SceneFile.write(animation.compiledScene, writeSceneFile);
+			return;
+		}
+		animation.gamma = gamma;
+		animation.faintCull = faintCull;
+		animation.camera.setYawPitch( (float)Math.toRadians(yaw), (float)Math.toRadians(pitch) );
+		if( fieldOfView > 0 ) animation.camera.fieldOfView = (float)Math.toRadians(fieldOfView);
+		if( endFrame == -1 ) endFrame = animation.totalFrameCount;
+		if( !outputDir.exists() ) outputDir.mkdirs();
+		
+		if( traversalThreadCount == 0 ) {
+			int jobCount = posterFrame >= 0 ? (h + tileHeight - 1) / tileHeight : endFrame - firstFrame;
+			traversalThreadCount = jobCount < threadCount ? threadCount : 1;
+		}
+		ForkJoinPool traversalPool = traversalThreadCount > 1 ? new ForkJoinPool(traversalThreadCount) : null;
+		
+		if( posterFrame >= 0 ) {
+			String name = String.format("poster%08d", posterFrame);
+			PosterRenderer.RowSink posterOutput;
+			if( "png".equals(outputMode) ) {
+				posterOutput = new StreamingPNGWriter(new File(outputDir, name+".png"), w, h);
+			} else if( outputMode.startsWith("raw-") ) {
+				posterOutput = new RawPosterFile(new File(outputDir, name+".vzraw"), RawFrameFormat.byName(outputMode.substring(4)), w, h);
+			} else {
+				throw new RuntimeException("Output mode "+outputMode+" can't be used for posters");
 			}
-			renderer.multiply(1f/microframesPerFrame);
-			
-			renderer.multiply(10f);
-			
-			renderer.toRGB(pixBuf);
-			synchronized( image ) {
-				image.setRGB(0, 0, w, h, pixBuf, 0, w);
+			long start = System.nanoTime();
+			PosterRenderer poster = new PosterRenderer(animation, w, h, tileHeight, threadCount, layout);
+			if( traversalPool != null ) poster.parallel = new ParallelTraversal(traversalPool, w, poster.tileHeight);
+			poster.render(posterFrame, posterOutput);
+			posterOutput.close();
+			if( traversalPool != null ) traversalPool.shutdown();
+			System.err.println(String.format("Rendered %dx%d poster of frame %d in %.1f s; %d nodes visited, %d pixels written",
+				w, h, posterFrame, (System.nanoTime() - start)/1e9, poster.stats.nodesVisited, poster.stats.pixelsWritten));
+			return;
+		}
+		
+		// Each frame in flight gets its own renderers, and
+		// shares a thread pool for drawing their layers in parallel
+		final int framesInFlight = threadCount;
+		ExecutorService layerExecutor = Executors.newFixedThreadPool(threadCount);
+		LayeredRenderer.LayerCache layerCache = new LayeredRenderer.LayerCache(framesInFlight+1);
+		// Subtrees smaller than this many pixels are drawn from prerendered sprites; 0 to disable
+		final float impostorPixelThreshold = 16;
+		// Generated subtrees of procedural scenes kept per renderer
+		final long proceduralBudget = 64L<<20;
+		final PixelLayout pixelLayout = layout;
+		final int splatTiles = splatTileSize;
+		LayeredRenderer.StarRendererFactory rendererFactory = new LayeredRenderer.StarRendererFactory() {
+			@Override public StarRenderer create( int w, int h ) {
+				FlatStarRenderer renderer = new StreakStarRenderer(w, h, pixelLayout);
+				if( impostorPixelThreshold > 0 ) renderer.impostors = new ImpostorCache(impostorPixelThreshold, 64L<<20);
+				renderer.procedural.memoryBudget = proceduralBudget;
+				if( splatTiles > 0 ) renderer.splatBins = new SplatBins(w, h, splatTiles);
+				return renderer;
 			}
-			ic.setImage(image);
-			
-			ImageIO.write( image, "png", outputFile );
+		};
+		RenderStatsLog statsLog = null;
+		if( statsFormat != null ) {
+			statsLog = RenderStatsLog.open(new File(outputDir, "stats."+statsFormat.fileExtension()), statsFormat, animation.layers.size());
+		} else if( jmx ) {
+			statsLog = new RenderStatsLog(null, null, animation.layers.size());
+		}
+		if( jmx ) {
+			try {
+				statsLog.registerMBean();
+			} catch( JMException e ) {
+				System.err.println("Failed to register render stats MBean: "+e);
+			}
+		}
+		ParallelTraversal parallel = traversalPool != null ? new ParallelTraversal(traversalPool, w, h) : null;
+		List<FramePipeline.FrameRenderer> frameRenderers = new ArrayList<FramePipeline.FrameRenderer>();
+		for( int i=0; i<framesInFlight; ++i ) {
+			LayeredRenderer renderer = new LayeredRenderer(animation, layerCache, layerExecutor, rendererFactory, w, h);
+			renderer.parallel = parallel;
+			renderer.setImpostorTimeQuantum(impostorTimeQuantum);
+			frameRenderers.add(new AnimationFrameRenderer(renderer, statsLog));
+		}
+		
+		// Where frames go: "png" for one file per frame, "raw-argb" or
+		// "raw-float" for a single memory-mapped file (see RawFrameFile),
+		// or "stream-argb" or "stream-float" to pipe them to stdout
+		FramePipeline.FrameSink output;
+		if( "png".equals(outputMode) ) {
+			// PNG encoding gets its own threads so rendering doesn't wait on it
+			int encoderCount = Math.max(1, framesInFlight/4);
+			output = new PNGFrameSink(outputDir, "frame%08d.png", new AsyncPNGWriter(w, h, encoderCount, encoderCount*2));
+		} else if( outputMode.startsWith("raw-") ) {
+			output = RawFrameFile.open(new File(outputDir, "frames.vzraw"),
+				RawFrameFormat.byName(outputMode.substring(4)), w, h, animation.totalFrameCount);
+		} else if( outputMode.startsWith("stream-") ) {
+			output = new RawFrameStream(new FileOutputStream(FileDescriptor.out), RawFrameFormat.byName(outputMode.substring(7)));
+		} else {
+			throw new RuntimeException("Unrecognized output mode: "+outputMode);
+		}
+		
+		ProgressFrameSink progress = new ProgressFrameSink(output, System.err, endFrame);
+		progress.reportInterval = progressInterval * 1000L;
+		output = progress;
+		if( previewInterval > 0 ) {
+			output = new PreviewFrameSink(output, "Stars", w, h, animation.totalFrameCount, previewInterval);
+		}
+		
+		FramePipeline pipeline = new FramePipeline(frameRenderers, w*h);
+		if( framesPerChunk > 0 ) {
+			int superframeLength = animation.superframeLength();
+			int chunkSize = (framesPerChunk + superframeLength - 1) / superframeLength * superframeLength;
+			FrameClaims claims = new FrameClaims(new File(outputDir, "claims"), chunkSize, FrameClaims.defaultWorkerId());
+			claims.run(pipeline, firstFrame, endFrame, output);
+			output.close();
+			claims.releaseAll();
+		} else {
+			pipeline.run(firstFrame, endFrame, output);
+			output.close();
 		}
+		if( statsLog != null ) statsLog.close();
+		layerExecutor.shutdown();
+		if( traversalPool != null ) traversalPool.shutdown();
 	}
 }
 
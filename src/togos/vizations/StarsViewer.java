@@ -0,0 +1,414 @@
+package togos.vizations;
+
+import java.awt.Color;
+import java.awt.Frame;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import togos.vizations.Stars.Animation;
+import togos.vizations.Stars.RenderBuffer;
+import togos.vizations.Stars.StarRenderer;
+import togos.vizations.math.Mat4f;
+import togos.vizations.math.Vec4f;
+
+/**
+ * Real-time viewer for Stars scenes, for checking camera paths and
+ * scenes without waiting for offline renders.
+ *
+ * The camera starts out following the animation's path; moving it
+ * with the keyboard or mouse lets it fly freely until P is pressed.
+ * W/S or up/down move forward and back, A/D or left/right sideways,
+ * Q/E down and up; dragging the mouse looks around; the mouse wheel or
+ * +/- change speed, and shift makes moves 10 times faster.  Space
+ * pauses and resumes time, and escape quits.
+ *
+ * Frames are drawn at one of a ladder of quality levels (see QUALITIES)
+ * varying resolution, microframes per layer, and the pixel size below
+ * which subtrees are collapsed into splats.  While anything's changing,
+ * the level is adjusted to keep frames within frameBudgetNanos.  When
+ * the camera is still and time is paused, each frame is drawn one
+ * level better than the last, up to the best there is, so a rough
+ * frame shows up right away and is then refined.
+ *
+ * Layers are all drawn fresh for every frame; the offline renderer's
+ * reuse of far layers across several frames relies on knowing where
+ * the camera will be, which a free camera doesn't.
+ */
+public class StarsViewer
+{
+	static class Quality {
+		/** Frames are drawn at 1/resolutionDivisor of the window's resolution in each direction */
+		final int resolutionDivisor;
+		/** Layers' samples per frame are scaled by this (but are at least 1) */
+		final float microframeScale;
+		/** See StarRenderer.splatDiameter */
+		final float splatDiameter;
+		
+		public Quality( int resolutionDivisor, float microframeScale, float splatDiameter ) {
+			this.resolutionDivisor = resolutionDivisor;
+			this.microframeScale = microframeScale;
+			this.splatDiameter = splatDiameter;
+		}
+		
+		@Override public String toString() {
+			return "1/"+resolutionDivisor+" resolution, microframes x"+microframeScale+", splat diameter "+splatDiameter;
+		}
+	}
+	
+	/** From worst to best */
+	static final Quality[] QUALITIES = {
+		new Quality(4, 0.5f, 4),
+		new Quality(4, 0.5f, 2),
+		new Quality(2, 0.5f, 2),
+		new Quality(2, 0.5f, 1),
+		new Quality(1, 0.5f, 1),
+		new Quality(1, 1, 1),
+		new Quality(1, 4, 1),
+		new Quality(1, 16, 1),
+	};
+	/** Best level that frames get while things are moving; the same as offline renders */
+	static final int BEST_ADAPTIVE_LEVEL = 5;
+	/** How long measurements of a level's frame time are trusted for, in frames */
+	static final int MEASUREMENT_LIFETIME = 60;
+	/** Rate at which animation frames go by when time isn't paused */
+	static final float FRAMES_PER_SECOND = 30;
+	
+	/**
+	 * The base animation with the viewer's camera and a quality
+	 * level's sample counts, with every layer drawn fresh for each frame
+	 */
+	class ViewerAnimation extends Animation {
+		public ViewerAnimation( Animation base, Quality q ) {
+			super( base.scene, base.compiledScene );
+			dt = base.dt;
+			totalFrameCount = base.totalFrameCount;
+			exposure = base.exposure;
+			gamma = base.gamma;
+			faintCull = base.faintCull;
+			layers.clear();
+			for( LayeredRenderer.Layer bl : base.layers ) {
+				LayeredRenderer.Layer layer = new LayeredRenderer.Layer( bl.nearZ, bl.farZ,
+					Math.max(1, Math.round(bl.samplesPerFrame*q.microframeScale)), 1 );
+				layer.streaked = bl.streaked;
+				layers.add(layer);
+			}
+		}
+		
+		@Override public Camera camera( float time, Camera dest ) {
+			return dest.set(renderCamera);
+		}
+	}
+	
+	final Animation animation;
+	final int w, h;
+	final ExecutorService executor;
+	final LayeredRenderer.LayerCache layerCache = new LayeredRenderer.LayerCache(1);
+	/** Created as they're first needed */
+	final LayeredRenderer[] renderers = new LayeredRenderer[QUALITIES.length];
+	final BufferedImage[] images = new BufferedImage[QUALITIES.length];
+	final int[][] argbBuffers = new int[QUALITIES.length][];
+	long frameBudgetNanos = 33000000;
+	
+	/** Where frames are drawn from; the same for all of a frame's layers */
+	final Camera renderCamera = new Camera();
+	
+	// Camera controls; everything below is guarded by synchronizing on this
+	final Set<Integer> keysDown = new HashSet<Integer>();
+	final Camera camera = new Camera();
+	float yaw, pitch;
+	/** World units per second */
+	float speed = 500;
+	boolean followPath = true, paused = false;
+	double frame = 0;
+	int lastMouseX, lastMouseY;
+	
+	// Adaptive quality
+	int level = 0;
+	/** Last measured frame time of each level, or 0 if unknown */
+	final long[] levelNanos = new long[QUALITIES.length];
+	final int[] levelMeasuredAt = new int[QUALITIES.length];
+	int framesRendered;
+	
+	public StarsViewer( Animation animation, int w, int h, ExecutorService executor ) {
+		this.animation = animation;
+		this.w = w;
+		this.h = h;
+		this.executor = executor;
+		animation.camera(0, camera);
+	}
+	
+	protected LayeredRenderer renderer( int level ) {
+		if( renderers[level] == null ) {
+			final Quality q = QUALITIES[level];
+			final int rw = Math.max(1, w/q.resolutionDivisor), rh = Math.max(1, h/q.resolutionDivisor);
+			renderers[level] = new LayeredRenderer( new ViewerAnimation(animation, q), layerCache, executor,
+				new LayeredRenderer.StarRendererFactory() {
+					@Override public StarRenderer create( int w, int h ) {
+						FlatStarRenderer renderer = new StreakStarRenderer(w, h);
+						renderer.splatDiameter = q.splatDiameter;
+						renderer.impostors = new ImpostorCache(16, 16L<<20);
+						return renderer;
+					}
+				}, rw, rh );
+			images[level] = new BufferedImage(rw, rh, BufferedImage.TYPE_INT_ARGB);
+			argbBuffers[level] = new int[rw*rh];
+		}
+		return renderers[level];
+	}
+	
+	/** Draw a frame at the given level from renderCamera into images[level] */
+	public BufferedImage render( int level, int frame ) throws InterruptedException {
+		LayeredRenderer renderer = renderer(level);
+		RenderBuffer frameData = renderer.renderFrame(frame);
+		int[] argb = argbBuffers[level];
+		frameData.toRGB(argb, animation.gamma);
+		BufferedImage image = images[level];
+		synchronized( image ) {
+			image.setRGB(0, 0, image.getWidth(), image.getHeight(), argb, 0, image.getWidth());
+		}
+		return image;
+	}
+	
+	/**
+	 * Adjust level after a frame that took the given time to draw at it,
+	 * going down if that was over budget, and up if the next level's
+	 * last known time (or if it's not known, twice this one) is under.
+	 */
+	protected void adapt( long nanos ) {
+		levelNanos[level] = nanos;
+		levelMeasuredAt[level] = framesRendered;
+		if( nanos > frameBudgetNanos ) {
+			if( level > 0 ) --level;
+		} else if( level < BEST_ADAPTIVE_LEVEL ) {
+			int next = level + 1;
+			boolean known = levelNanos[next] != 0 && framesRendered - levelMeasuredAt[next] < MEASUREMENT_LIFETIME;
+			if( (known ? levelNanos[next] : 2*nanos) <= frameBudgetNanos ) ++level;
+		}
+	}
+	
+	protected static boolean sameView( Camera a, Camera b ) {
+		return a.x == b.x && a.y == b.y && a.z == b.z &&
+			a.orientation.w == b.orientation.w && a.orientation.x == b.orientation.x &&
+			a.orientation.y == b.orientation.y && a.orientation.z == b.orientation.z;
+	}
+	
+	protected boolean keyDown( int... keyCodes ) {
+		for( int k : keyCodes ) if( keysDown.contains(k) ) return true;
+		return false;
+	}
+	
+	/** Apply the controls over the given amount of time */
+	protected synchronized void update( float seconds ) {
+		if( !paused ) frame += seconds*FRAMES_PER_SECOND;
+		if( frame >= animation.totalFrameCount ) frame = 0;
+		
+		float forward = 0, right = 0, down = 0;
+		if( keyDown(KeyEvent.VK_W, KeyEvent.VK_UP) ) forward += 1;
+		if( keyDown(KeyEvent.VK_S, KeyEvent.VK_DOWN) ) forward -= 1;
+		if( keyDown(KeyEvent.VK_D, KeyEvent.VK_RIGHT) ) right += 1;
+		if( keyDown(KeyEvent.VK_A, KeyEvent.VK_LEFT) ) right -= 1;
+		if( keyDown(KeyEvent.VK_Q) ) down += 1;
+		if( keyDown(KeyEvent.VK_E) ) down -= 1;
+		if( forward != 0 || right != 0 || down != 0 ) {
+			followPath = false;
+			float distance = speed*seconds*(keyDown(KeyEvent.VK_SHIFT) ? 10 : 1);
+			Vec4f move = new Mat4f().setRotation(camera.orientation).transform(
+				new Vec4f(right*distance, down*distance, forward*distance, 0), new Vec4f());
+			camera.setPosition( camera.x + move.x, camera.y + move.y, camera.z + move.z );
+		}
+		
+		if( followPath ) {
+			animation.camera( ((int)frame + 0.5f)*animation.dt, camera );
+		} else {
+			camera.setYawPitch(yaw, pitch);
+		}
+	}
+	
+	protected synchronized void look( int mouseX, int mouseY ) {
+		if( followPath ) {
+			// The path looks straight ahead, so start turning from there
+			followPath = false;
+			yaw = pitch = 0;
+		}
+		yaw += (mouseX - lastMouseX)*0.005f;
+		pitch -= (mouseY - lastMouseY)*0.005f;
+		pitch = Math.max(-1.5f, Math.min(1.5f, pitch));
+		lastMouseX = mouseX;
+		lastMouseY = mouseY;
+	}
+	
+	public void run( String title ) throws InterruptedException {
+		final Frame window = new Frame(title);
+		final ImageCanvas canvas = new ImageCanvas();
+		canvas.setBackground(Color.BLACK);
+		canvas.setImage(new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB));
+		window.add(canvas);
+		window.pack();
+		window.addWindowListener(new WindowAdapter() {
+			@Override public void windowClosing( WindowEvent e ) {
+				window.dispose();
+				System.exit(0);
+			}
+		});
+		canvas.addKeyListener(new KeyAdapter() {
+			@Override public void keyPressed( KeyEvent e ) {
+				synchronized( StarsViewer.this ) {
+					keysDown.add(e.getKeyCode());
+					switch( e.getKeyCode() ) {
+					case KeyEvent.VK_SPACE: paused = !paused; break;
+					case KeyEvent.VK_P: followPath = !followPath; break;
+					case KeyEvent.VK_EQUALS: case KeyEvent.VK_ADD: speed *= 2; break;
+					case KeyEvent.VK_MINUS: case KeyEvent.VK_SUBTRACT: speed /= 2; break;
+					case KeyEvent.VK_ESCAPE: System.exit(0);
+					}
+				}
+			}
+			@Override public void keyReleased( KeyEvent e ) {
+				synchronized( StarsViewer.this ) {
+					keysDown.remove(e.getKeyCode());
+				}
+			}
+		});
+		MouseAdapter mouse = new MouseAdapter() {
+			@Override public void mousePressed( MouseEvent e ) {
+				synchronized( StarsViewer.this ) {
+					lastMouseX = e.getX();
+					lastMouseY = e.getY();
+				}
+			}
+			@Override public void mouseDragged( MouseEvent e ) {
+				look( e.getX(), e.getY() );
+			}
+			@Override public void mouseWheelMoved( MouseWheelEvent e ) {
+				synchronized( StarsViewer.this ) {
+					speed *= (float)Math.pow(1.25, -e.getWheelRotation());
+				}
+			}
+		};
+		canvas.addMouseListener(mouse);
+		canvas.addMouseMotionListener(mouse);
+		canvas.addMouseWheelListener(mouse);
+		window.setVisible(true);
+		canvas.requestFocus();
+		
+		Camera lastCamera = new Camera();
+		int lastFrame = -1;
+		// Level of the last frame drawn
+		int shownLevel = level;
+		long lastUpdate = System.nanoTime();
+		while( true ) {
+			long now = System.nanoTime();
+			int frameNumber;
+			synchronized( this ) {
+				update( (now - lastUpdate)/1e9f );
+				renderCamera.set(camera);
+				frameNumber = (int)frame;
+			}
+			lastUpdate = now;
+			
+			boolean still = frameNumber == lastFrame && sameView(renderCamera, lastCamera);
+			int renderLevel;
+			if( still ) {
+				if( shownLevel == QUALITIES.length-1 ) {
+					Thread.sleep(10);
+					continue;
+				}
+				// Refine what's been shown, regardless of budget
+				renderLevel = shownLevel + 1;
+			} else {
+				renderLevel = level;
+			}
+			
+			long start = System.nanoTime();
+			BufferedImage image = render(renderLevel, frameNumber);
+			long nanos = System.nanoTime() - start;
+			++framesRendered;
+			if( !still ) adapt(nanos);
+			shownLevel = renderLevel;
+			lastCamera.set(renderCamera);
+			lastFrame = frameNumber;
+			
+			canvas.setImage(image);
+			window.setTitle(String.format("%s - frame %d%s, %.1f ms, %s",
+				title, frameNumber, paused ? " (paused)" : "", nanos/1e6, QUALITIES[renderLevel]));
+		}
+	}
+	
+	static final String USAGE =
+		"Usage: StarsViewer [options]\n" +
+		"Options:\n" +
+		"  -size <w>x<h>        ; window size (default 640x360)\n" +
+		"  -scene <file>        ; view a scene file (see SceneFile) instead of the built-in galaxy\n" +
+		"  -procedural          ; view a procedurally generated galaxy (see GalaxyGenerator)\n" +
+		"  -budget <ms>         ; time to aim to draw each frame in while moving (default 33)\n" +
+		"  -threads <n>         ; rendering threads (default number of processors)\n" +
+		"Controls:\n" +
+		"  W/S, A/D, Q/E or arrow keys ; move (hold shift to go faster)\n" +
+		"  mouse drag           ; look around\n" +
+		"  mouse wheel or +/-   ; change speed\n" +
+		"  P                    ; follow the animation's camera path, or stop\n" +
+		"  space                ; pause or resume time\n" +
+		"  escape               ; quit";
+	
+	public static void main( String[] args ) throws InterruptedException, IOException {
+		int w = 640, h = 360;
+		File sceneFile = null;
+		boolean procedural = false;
+		float budgetMillis = 33;
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		try {
+			for( int i=0; i<args.length; ++i ) {
+				String arg = args[i];
+				if( "-procedural".equals(arg) ) {
+					procedural = true;
+					continue;
+				} else if( "-?".equals(arg) || "-h".equals(arg) || "--help".equals(arg) ) {
+					System.out.println(USAGE);
+					return;
+				}
+				if( !arg.startsWith("-") || i+1 == args.length ) {
+					throw new IllegalArgumentException("Unrecognized argument: "+arg);
+				}
+				String value = args[++i];
+				if( "-size".equals(arg) ) {
+					String[] parts = value.split("x");
+					if( parts.length != 2 ) throw new IllegalArgumentException("Bad value for -size: '"+value+"'");
+					w = Stars.parseInt(arg, parts[0]);
+					h = Stars.parseInt(arg, parts[1]);
+				} else if( "-scene".equals(arg) ) {
+					sceneFile = new File(value);
+				} else if( "-budget".equals(arg) ) {
+					budgetMillis = Stars.parseFloat(arg, value);
+				} else if( "-threads".equals(arg) ) {
+					threadCount = Stars.parseInt(arg, value);
+				} else {
+					throw new IllegalArgumentException("Unrecognized argument: "+arg);
+				}
+			}
+		} catch( IllegalArgumentException e ) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		
+		Animation animation =
+			sceneFile != null ? new Animation(SceneFile.load(sceneFile)) :
+			procedural ? new Animation(new GalaxyGenerator().root()) :
+			new Animation(Stars.buildGalaxy());
+		StarsViewer viewer = new StarsViewer(animation, w, h, Executors.newFixedThreadPool(threadCount));
+		viewer.frameBudgetNanos = (long)(budgetMillis*1e6);
+		viewer.run("Stars");
+	}
+}
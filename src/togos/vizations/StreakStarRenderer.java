@@ -0,0 +1,232 @@
+package togos.vizations;
+
+import togos.vizations.Stars.StarNode;
+import togos.vizations.math.Mat4f;
+
+/**
+ * FlatStarRenderer that can draw motion blur in a single traversal.
+ *
+ * drawStreaked walks the tree once, keeping each node's transform at
+ * both the opening and closing of the shutter.  Subtrees that would be
+ * splatted are instead drawn as streaks along the straight line between
+ * their two positions: a row of stamps no more than a pixel (or for
+ * big solid nodes, a small fraction of their diameter) apart, each
+ * with an equal share of the node's light, so the total light drawn
+ * is the same as that of a stationary splat.  Stamps that fall
+ * outside the draw range are dropped, so streaks are clipped by range
+ * the same way separately drawn samples would be.
+ *
+ * Paths are approximated by their chords, so shutter intervals should
+ * be short compared to the fastest orbits in view; split the interval
+ * into several drawStreaked calls if they aren't.  Impostors aren't
+ * used, since sprites are only good for one moment.
+ */
+class StreakStarRenderer extends FlatStarRenderer
+{
+	/** Upper limit on stamps per streak, so that nodes passing right by the camera don't take forever */
+	static final int MAX_STAMPS = 256;
+	/** Stamps of discs more than a pixel across are spaced up to this fraction of their diameter apart */
+	static final float MAX_STAMP_SPACING = 1f/16;
+	
+	/** Transforms at the opening of the shutter; xfStack has those at the closing */
+	final Mat4f[] openXfStack = new Mat4f[xfStack.length];
+	final OrbitEvaluator openOrbits = new OrbitEvaluator();
+	
+	protected StreakStarRenderer( int w, int h, PixelLayout layout, boolean allocate ) {
+		super(w, h, layout, allocate);
+		for( int i=0; i<openXfStack.length; ++i ) openXfStack[i] = new Mat4f();
+	}
+	
+	public StreakStarRenderer( int w, int h, PixelLayout layout ) {
+		this( w, h, layout, true );
+	}
+	
+	public StreakStarRenderer( int w, int h ) {
+		this( w, h, PixelLayout.PLANAR );
+	}
+	
+	/**
+	 * Use the current camera transform as that for the opening
+	 * of the shutter.  Call initCamera for the opening time, then this,
+	 * then initCamera for the closing time before drawStreaked.
+	 */
+	public void saveShutterOpenCamera() {
+		openXfStack[0].set(xfStack[0]);
+	}
+	
+	public void drawStreaked( float openTime, float closeTime, StarNode n ) {
+		drawStreaked( openTime, closeTime, compiled(n) );
+	}
+	
+	public void drawStreaked( float openTime, float closeTime, CompiledScene scene ) {
+		resolve();
+		drawNodeStreaked( openTime, closeTime, scene, scene.rootNode );
+	}
+	
+	/** Range of the current path, as fractions of the shutter interval, that's still to be drawn */
+	protected float clipStart, clipEnd;
+	
+	/**
+	 * Narrow the clip range to where a function that goes linearly
+	 * from f0 to f1 over the shutter interval is >= 0.
+	 * @return false if there's nothing left of it
+	 */
+	protected boolean clip( float f0, float f1 ) {
+		if( f0 < 0 && f1 < 0 ) return false;
+		if( f0 < 0 ) clipStart = Math.max(clipStart, f0/(f0-f1));
+		if( f1 < 0 ) clipEnd = Math.min(clipEnd, f0/(f0-f1));
+		return clipStart < clipEnd;
+	}
+	
+	/**
+	 * Cull node, whose transforms are at the top of the stacks, using
+	 * a sphere around it at both ends of the interval.
+	 * @return true if it was culled
+	 */
+	protected final boolean cullStreaked( CompiledScene scene, int node, float radius ) {
+		Mat4f xf0 = openXfStack[xfIndex], xf1 = xfStack[xfIndex];
+		float dx = xf1.m03 - xf0.m03, dy = xf1.m13 - xf0.m13, dz = xf1.m23 - xf0.m23;
+		float boundRadius = radius + (float)Math.sqrt(dx*dx + dy*dy + dz*dz)/2;
+		float cx = xf0.m03 + dx/2, cy = xf0.m13 + dy/2, cz = xf0.m23 + dz/2;
+		if( cz + boundRadius <= nearZ ) { ++stats.culledNear; return true; }
+		if( cz - boundRadius >=  farZ ) { ++stats.culledFar;  return true; }
+		
+		// Visible points are on the inner side of the four planes through
+		// the camera and the screen edges, e.g. k*x + frustumLeft*z >= 0 for the left
+		float k = focalLength;
+		if( k*cx + frustumLeft*cz <= -boundRadius*frustumLeftNorm ||
+			frustumRight*cz - k*cx <= -boundRadius*frustumRightNorm ||
+			k*cy + frustumTop*cz <= -boundRadius*frustumTopNorm ||
+			frustumBottom*cz - k*cy <= -boundRadius*frustumBottomNorm
+		) {
+			++stats.culledScreen;
+			return true;
+		}
+		
+		// Stamps share the node's light, so it's only tested as a whole,
+		// and could be anywhere along its path
+		if( faintLight <= 0 ) return false;
+		float lum = Math.max(scene.lumR.get(node), Math.max(scene.lumG.get(node), scene.lumB.get(node)));
+		float light = faintBound( Math.min(xf0.m23, xf1.m23), radius, lum );
+		return light <= faintLight && spendFaint( light, cx, cy, cz, boundRadius );
+	}
+	
+	static final int FORK_NODE_STREAKED = 2;
+	static final int FORK_VISIBLE_STREAKED = 3;
+	
+	protected final void drawNodeStreaked( float t0, float t1, CompiledScene scene, int node ) {
+		if( forking && fork( FORK_NODE_STREAKED, scene, node ) ) return;
+		Mat4f xf0 = openXfStack[xfIndex], xf1 = xfStack[xfIndex];
+		++stats.nodesVisited;
+		float radius = scene.radius.get(node);
+		boolean solid = scene.solid.get(node) != 0;
+		if( cullStreaked( scene, node, radius ) ) return;
+		
+		// Same splat-or-descend rule as drawShallow, at whichever end is closer
+		float dx = xf1.m03 - xf0.m03, dy = xf1.m13 - xf0.m13, dz = xf1.m23 - xf0.m23;
+		float k = focalLength;
+		float closestZ = Math.min(xf0.m23, xf1.m23);
+		boolean inFront = closestZ > 0;
+		float pixelDiam = k/(closestZ+radius)*radius*2;
+		if( inFront && pixelDiam <= splatDiameter || solid ) {
+			// Clip the path to where drawShallow wouldn't cull it for depth,
+			// leaving only the part that's in front of the camera
+			clipStart = 0; clipEnd = 1;
+			float minZ = solid ? nearZ : nearZ - radius, maxZ = farZ + radius;
+			if( !clip(xf0.m23 - minZ, xf1.m23 - minZ) ) { ++stats.culledNear; return; }
+			if( !Float.isInfinite(maxZ) && !clip(maxZ - xf0.m23, maxZ - xf1.m23) ) { ++stats.culledFar; return; }
+			
+			float maxPixelDiam = k/(Math.min(xf0.m23 + clipStart*dz, xf0.m23 + clipEnd*dz)+radius)*radius*2;
+			// ...and then to where it'd be on screen, so no stamps are wasted;
+			// screen x = centerX + k*x/z >= -margin iff k*x + (centerX+margin)*z >= 0, etc.
+			float left = centerX + maxPixelDiam + 1, right = w - centerX + maxPixelDiam + 1;
+			float top = centerY + maxPixelDiam + 1, bottom = h - centerY + maxPixelDiam + 1;
+			if( !clip(k*xf0.m03 + left*xf0.m23, k*xf1.m03 + left*xf1.m23) ||
+				!clip(right*xf0.m23 - k*xf0.m03, right*xf1.m23 - k*xf1.m03) ||
+				!clip(k*xf0.m13 + top*xf0.m23, k*xf1.m13 + top*xf1.m23) ||
+				!clip(bottom*xf0.m23 - k*xf0.m13, bottom*xf1.m23 - k*xf1.m13)
+			) {
+				++stats.culledScreen;
+				return;
+			}
+			
+			float sa = clipStart, sb = clipEnd;
+			float x0 = xf0.m03 + sa*dx, y0 = xf0.m13 + sa*dy, z0 = xf0.m23 + sa*dz;
+			float x1 = xf0.m03 + sb*dx, y1 = xf0.m13 + sb*dy, z1 = xf0.m23 + sb*dz;
+			// Big discs overlap enough that their stamps can be further apart
+			float spacing = Math.max(1, maxPixelDiam*MAX_STAMP_SPACING);
+			float sdx = k*(x1/z1 - x0/z0), sdy = k*(y1/z1 - y0/z0);
+			int stamps = Math.min(MAX_STAMPS, 1 + (int)Math.ceil(Math.sqrt(sdx*sdx + sdy*sdy)/spacing));
+			
+			// Each stamp stands for an equal part of the time spent on the clipped path
+			float lumScale = (sb - sa)/stamps;
+			float lumR = scene.lumR.get(node)*lumScale, lumG = scene.lumG.get(node)*lumScale, lumB = scene.lumB.get(node)*lumScale;
+			// Stamps that miss aren't culled subtrees, so shouldn't count as such
+			long culledNear = stats.culledNear, culledFar = stats.culledFar, culledScreen = stats.culledScreen;
+			for( int i=0; i<stamps; ++i ) {
+				float s = (i+0.5f)/stamps;
+				drawShallow( x0 + s*(x1-x0), y0 + s*(y1-y0), z0 + s*(z1-z0), radius, lumR, lumG, lumB, solid );
+			}
+			stats.culledNear = culledNear; stats.culledFar = culledFar; stats.culledScreen = culledScreen;
+			return;
+		}
+		
+		if( scene.procedural != null && scene.procedural[node] != null ) {
+			ProceduralCache.Expansion e = procedural.get(scene.procedural[node]);
+			drawChildrenStreaked( t0, t1, e.scene, e.openOrbits, e.orbits, e.scene.rootNode );
+		} else {
+			drawChildrenStreaked( t0, t1, scene, openOrbits, flatOrbits, node );
+		}
+	}
+	
+	/**
+	 * drawVisible, but streaked from t0 to t1 as by drawStreaked,
+	 * with the cameras set up as for that
+	 */
+	public void drawVisibleStreaked( float t0, float t1 ) {
+		resolve();
+		if( visibleCount > 0 ) drawVisibleStreaked( t0, t1, 0 );
+	}
+	
+	/** @return the index just past entry's subtree */
+	protected int drawVisibleStreaked( float t0, float t1, int entry ) {
+		if( forking && fork( FORK_VISIBLE_STREAKED, visibleScene, entry ) ) return visibleEnd[entry];
+		CompiledScene scene = visibleScene;
+		int node = visibleNode[entry];
+		switch( visibleKind[entry] ) {
+		case VISIBLE_DRAW:
+			drawNodeStreaked( t0, t1, scene, node );
+			return visibleEnd[entry];
+		case VISIBLE_TEST:
+			++stats.nodesVisited;
+			if( cullStreaked( scene, node, scene.radius.get(node) ) ) return visibleEnd[entry];
+			break;
+		default:
+			++stats.nodesVisited;
+		}
+		
+		++xfIndex;
+		for( int e=entry+1, end=visibleEnd[entry]; e<end; ) {
+			int b = visibleBinding[e];
+			openOrbits.evaluate( b, scene.orbitalPhase.get(b), scene.orbitalSpeed.get(b), t0 );
+			orbitTransform( xfIndex, openOrbits.sin, openOrbits.cos, scene.orbitalDistance.get(b), openXfStack[xfIndex-1], openXfStack[xfIndex] );
+			flatOrbits.evaluate( b, scene.orbitalPhase.get(b), scene.orbitalSpeed.get(b), t1 );
+			orbitTransform( xfIndex, flatOrbits.sin, flatOrbits.cos, scene.orbitalDistance.get(b), xfStack[xfIndex-1], xfStack[xfIndex] );
+			e = drawVisibleStreaked( t0, t1, e );
+		}
+		--xfIndex;
+		return visibleEnd[entry];
+	}
+	
+	protected final void drawChildrenStreaked( float t0, float t1, CompiledScene scene, OrbitEvaluator orbits0, OrbitEvaluator orbits1, int node ) {
+		++xfIndex;
+		for( int b=scene.bindingStart.get(node), end=scene.bindingStart.get(node+1); b<end; ++b ) {
+			orbits0.evaluate( b, scene.orbitalPhase.get(b), scene.orbitalSpeed.get(b), t0 );
+			orbitTransform( xfIndex, orbits0.sin, orbits0.cos, scene.orbitalDistance.get(b), openXfStack[xfIndex-1], openXfStack[xfIndex] );
+			orbits1.evaluate( b, scene.orbitalPhase.get(b), scene.orbitalSpeed.get(b), t1 );
+			orbitTransform( xfIndex, orbits1.sin, orbits1.cos, scene.orbitalDistance.get(b), xfStack[xfIndex-1], xfStack[xfIndex] );
+			drawNodeStreaked( t0, t1, scene, scene.childNode.get(b) );
+		}
+		--xfIndex;
+	}
+}
@@ -0,0 +1,128 @@
+package togos.vizations;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Writes a PNG a few rows at a time, so that images far bigger than
+ * memory can be encoded as they're rendered.  ImageIO needs the whole
+ * image up front, so this does its own (simple) encoding: 8-bit RGB,
+ * no filtering, one zlib stream split into IDAT chunks.
+ *
+ * As with AsyncPNGWriter, the file is written under a temporary name
+ * and renamed once complete.
+ */
+class StreamingPNGWriter implements PosterRenderer.RowSink
+{
+	static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	/** IDAT chunks are written once this much compressed data has built up */
+	static final int CHUNK_SIZE = 1 << 16;
+	
+	/** Collects compressed data and writes it out as IDAT chunks */
+	class ChunkStream extends ByteArrayOutputStream {
+		@Override public void write( byte[] b, int off, int len ) {
+			super.write(b, off, len);
+			if( size() >= CHUNK_SIZE ) flushChunk();
+		}
+		
+		@Override public void write( int b ) {
+			super.write(b);
+			if( size() >= CHUNK_SIZE ) flushChunk();
+		}
+		
+		protected void flushChunk() {
+			if( size() == 0 ) return;
+			try {
+				writeChunk("IDAT", buf, 0, size());
+			} catch( IOException e ) {
+				ioError = e;
+			}
+			reset();
+		}
+	}
+	
+	final File file, tempFile;
+	final int w, h;
+	final DataOutputStream out;
+	final ChunkStream compressed = new ChunkStream();
+	final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	final DeflaterOutputStream imageData = new DeflaterOutputStream(compressed, deflater, CHUNK_SIZE);
+	final byte[] row;
+	final CRC32 crc = new CRC32();
+	int rowsWritten;
+	/** ByteArrayOutputStream can't throw IOExceptions, so ChunkStream leaves them here */
+	IOException ioError;
+	
+	public StreamingPNGWriter( File file, int w, int h ) throws IOException {
+		this.file = file;
+		this.tempFile = new File(file.getPath()+".temp");
+		this.w = w;
+		this.h = h;
+		// Filter type byte, then 3 bytes per pixel
+		this.row = new byte[1 + 3*w];
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), CHUNK_SIZE));
+		out.write(SIGNATURE);
+		
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream hdr = new DataOutputStream(header);
+		hdr.writeInt(w);
+		hdr.writeInt(h);
+		hdr.writeByte(8); // Bits per channel
+		hdr.writeByte(2); // Truecolor
+		hdr.writeByte(0); // Deflate
+		hdr.writeByte(0); // Adaptive filtering (but always filter type 0)
+		hdr.writeByte(0); // Not interlaced
+		writeChunk("IHDR", header.toByteArray(), 0, header.size());
+	}
+	
+	protected void writeChunk( String type, byte[] data, int off, int len ) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		out.writeInt(len);
+		out.write(typeBytes);
+		out.write(data, off, len);
+		crc.reset();
+		crc.update(typeBytes);
+		crc.update(data, off, len);
+		out.writeInt((int)crc.getValue());
+	}
+	
+	@Override public void putRows( int y0, int rowCount, RenderBuffer rows, int[] argb ) throws IOException {
+		if( y0 != rowsWritten ) throw new IllegalStateException("Rows must be written in order; expected row "+rowsWritten+", got "+y0);
+		for( int y=0; y<rowCount; ++y ) {
+			for( int x=0, i=y*w, j=1; x<w; ++x, ++i ) {
+				int c = argb[i];
+				row[j++] = (byte)(c >> 16);
+				row[j++] = (byte)(c >>  8);
+				row[j++] = (byte)(c      );
+			}
+			imageData.write(row);
+		}
+		rowsWritten += rowCount;
+		if( ioError != null ) throw ioError;
+	}
+	
+	@Override public void close() throws IOException {
+		try {
+			if( rowsWritten != h ) throw new IOException("Only "+rowsWritten+" of "+h+" rows were written to "+file);
+			imageData.finish();
+			compressed.flushChunk();
+			if( ioError != null ) throw ioError;
+			writeChunk("IEND", new byte[0], 0, 0);
+		} finally {
+			deflater.end();
+			out.close();
+		}
+		if( !tempFile.renameTo(file) ) {
+			throw new IOException("Failed to rename "+tempFile+" to "+file);
+		}
+	}
+}
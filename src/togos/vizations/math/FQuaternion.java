@@ -4,6 +4,39 @@ public final class FQuaternion
 {
 	public float w, x, y, z;
 	
+	public FQuaternion identity() {
+		return set(1, 0, 0, 0);
+	}
+	
+	public FQuaternion set( float w, float x, float y, float z ) {
+		this.w = w; this.x = x; this.y = y; this.z = z;
+		return this;
+	}
+	
+	public FQuaternion set( FQuaternion q ) {
+		return set(q.w, q.x, q.y, q.z);
+	}
+	
+	/** Rotation by angle radians about the normalized axis ax,ay,az */
+	public FQuaternion setAxisAngle( float ax, float ay, float az, float angle ) {
+		float sin = (float)Math.sin(angle/2);
+		return set((float)Math.cos(angle/2), ax*sin, ay*sin, az*sin);
+	}
+	
+	/** Inverse, for normalized quaternions */
+	public FQuaternion conjugate( FQuaternion q ) {
+		return set(q.w, -q.x, -q.y, -q.z);
+	}
+	
+	/** this = a * b, i.e. rotation by b and then by a.  this may be a or b. */
+	public FQuaternion multiply( FQuaternion a, FQuaternion b ) {
+		return set(
+			a.w*b.w - a.x*b.x - a.y*b.y - a.z*b.z,
+			a.w*b.x + a.x*b.w + a.y*b.z - a.z*b.y,
+			a.w*b.y - a.x*b.z + a.y*b.w + a.z*b.x,
+			a.w*b.z + a.x*b.y - a.y*b.x + a.z*b.w);
+	}
+	
 	public boolean isNormalized() {
 		double l = w*w + x*x + y*y + z*z;
 		return l > 0.99999 && l < 1.00001;
@@ -0,0 +1,178 @@
+package togos.vizations.math;
+
+/**
+ * 4x4 matrix for transforming column vectors, with translation in the
+ * rightmost column.  Fields are named mRowColumn.
+ *
+ * Equivalent to a 4x4 FMatrix (m12 is fmatrix.get(2,1)), but with
+ * unrolled operations that never allocate.  Destinations may be
+ * the same object as operands.
+ */
+public final class Mat4f
+{
+	public float m00, m01, m02, m03;
+	public float m10, m11, m12, m13;
+	public float m20, m21, m22, m23;
+	public float m30, m31, m32, m33;
+	
+	public Mat4f() {
+		identity();
+	}
+	
+	public Mat4f identity() {
+		m00 = 1; m01 = 0; m02 = 0; m03 = 0;
+		m10 = 0; m11 = 1; m12 = 0; m13 = 0;
+		m20 = 0; m21 = 0; m22 = 1; m23 = 0;
+		m30 = 0; m31 = 0; m32 = 0; m33 = 1;
+		return this;
+	}
+	
+	public Mat4f set( Mat4f a ) {
+		m00 = a.m00; m01 = a.m01; m02 = a.m02; m03 = a.m03;
+		m10 = a.m10; m11 = a.m11; m12 = a.m12; m13 = a.m13;
+		m20 = a.m20; m21 = a.m21; m22 = a.m22; m23 = a.m23;
+		m30 = a.m30; m31 = a.m31; m32 = a.m32; m33 = a.m33;
+		return this;
+	}
+	
+	public Mat4f set( FMatrix a ) {
+		assert a.w == 4 && a.h == 4;
+		m00 = a.get(0,0); m01 = a.get(1,0); m02 = a.get(2,0); m03 = a.get(3,0);
+		m10 = a.get(0,1); m11 = a.get(1,1); m12 = a.get(2,1); m13 = a.get(3,1);
+		m20 = a.get(0,2); m21 = a.get(1,2); m22 = a.get(2,2); m23 = a.get(3,2);
+		m30 = a.get(0,3); m31 = a.get(1,3); m32 = a.get(2,3); m33 = a.get(3,3);
+		return this;
+	}
+	
+	public void store( FMatrix dest ) {
+		assert dest.w == 4 && dest.h == 4;
+		dest.put(0,0,m00); dest.put(1,0,m01); dest.put(2,0,m02); dest.put(3,0,m03);
+		dest.put(0,1,m10); dest.put(1,1,m11); dest.put(2,1,m12); dest.put(3,1,m13);
+		dest.put(0,2,m20); dest.put(1,2,m21); dest.put(2,2,m22); dest.put(3,2,m23);
+		dest.put(0,3,m30); dest.put(1,3,m31); dest.put(2,3,m32); dest.put(3,3,m33);
+	}
+	
+	/** Set to a pure translation */
+	public Mat4f setTranslation( float x, float y, float z ) {
+		identity();
+		m03 = x; m13 = y; m23 = z;
+		return this;
+	}
+	
+	/** Set to a pure rotation, that of the normalized quaternion q */
+	public Mat4f setRotation( FQuaternion q ) {
+		float xx = q.x*q.x, yy = q.y*q.y, zz = q.z*q.z;
+		float xy = q.x*q.y, xz = q.x*q.z, yz = q.y*q.z;
+		float wx = q.w*q.x, wy = q.w*q.y, wz = q.w*q.z;
+		m00 = 1 - 2*(yy + zz); m01 =     2*(xy - wz); m02 =     2*(xz + wy); m03 = 0;
+		m10 =     2*(xy + wz); m11 = 1 - 2*(xx + zz); m12 =     2*(yz - wx); m13 = 0;
+		m20 =     2*(xz - wy); m21 =     2*(yz + wx); m22 = 1 - 2*(xx + yy); m23 = 0;
+		m30 = 0; m31 = 0; m32 = 0; m33 = 1;
+		return this;
+	}
+	
+	/**
+	 * this = this * translation(x,y,z), i.e. translate in this
+	 * matrix's local space.  Only touches the translation column.
+	 */
+	public Mat4f translate( float x, float y, float z ) {
+		m03 = m00*x + m01*y + m02*z + m03;
+		m13 = m10*x + m11*y + m12*z + m13;
+		m23 = m20*x + m21*y + m22*z + m23;
+		m33 = m30*x + m31*y + m32*z + m33;
+		return this;
+	}
+	
+	/** this = a * b */
+	public Mat4f multiply( Mat4f a, Mat4f b ) {
+		float r00 = a.m00*b.m00 + a.m01*b.m10 + a.m02*b.m20 + a.m03*b.m30;
+		float r01 = a.m00*b.m01 + a.m01*b.m11 + a.m02*b.m21 + a.m03*b.m31;
+		float r02 = a.m00*b.m02 + a.m01*b.m12 + a.m02*b.m22 + a.m03*b.m32;
+		float r03 = a.m00*b.m03 + a.m01*b.m13 + a.m02*b.m23 + a.m03*b.m33;
+		float r10 = a.m10*b.m00 + a.m11*b.m10 + a.m12*b.m20 + a.m13*b.m30;
+		float r11 = a.m10*b.m01 + a.m11*b.m11 + a.m12*b.m21 + a.m13*b.m31;
+		float r12 = a.m10*b.m02 + a.m11*b.m12 + a.m12*b.m22 + a.m13*b.m32;
+		float r13 = a.m10*b.m03 + a.m11*b.m13 + a.m12*b.m23 + a.m13*b.m33;
+		float r20 = a.m20*b.m00 + a.m21*b.m10 + a.m22*b.m20 + a.m23*b.m30;
+		float r21 = a.m20*b.m01 + a.m21*b.m11 + a.m22*b.m21 + a.m23*b.m31;
+		float r22 = a.m20*b.m02 + a.m21*b.m12 + a.m22*b.m22 + a.m23*b.m32;
+		float r23 = a.m20*b.m03 + a.m21*b.m13 + a.m22*b.m23 + a.m23*b.m33;
+		float r30 = a.m30*b.m00 + a.m31*b.m10 + a.m32*b.m20 + a.m33*b.m30;
+		float r31 = a.m30*b.m01 + a.m31*b.m11 + a.m32*b.m21 + a.m33*b.m31;
+		float r32 = a.m30*b.m02 + a.m31*b.m12 + a.m32*b.m22 + a.m33*b.m32;
+		float r33 = a.m30*b.m03 + a.m31*b.m13 + a.m32*b.m23 + a.m33*b.m33;
+		m00 = r00; m01 = r01; m02 = r02; m03 = r03;
+		m10 = r10; m11 = r11; m12 = r12; m13 = r13;
+		m20 = r20; m21 = r21; m22 = r22; m23 = r23;
+		m30 = r30; m31 = r31; m32 = r32; m33 = r33;
+		return this;
+	}
+	
+	/**
+	 * this = a * b, assuming both have a bottom row of 0,0,0,1
+	 * (i.e. are rotation/scale + translation).
+	 */
+	public Mat4f composeAffine( Mat4f a, Mat4f b ) {
+		float r00 = a.m00*b.m00 + a.m01*b.m10 + a.m02*b.m20;
+		float r01 = a.m00*b.m01 + a.m01*b.m11 + a.m02*b.m21;
+		float r02 = a.m00*b.m02 + a.m01*b.m12 + a.m02*b.m22;
+		float r03 = a.m00*b.m03 + a.m01*b.m13 + a.m02*b.m23 + a.m03;
+		float r10 = a.m10*b.m00 + a.m11*b.m10 + a.m12*b.m20;
+		float r11 = a.m10*b.m01 + a.m11*b.m11 + a.m12*b.m21;
+		float r12 = a.m10*b.m02 + a.m11*b.m12 + a.m12*b.m22;
+		float r13 = a.m10*b.m03 + a.m11*b.m13 + a.m12*b.m23 + a.m13;
+		float r20 = a.m20*b.m00 + a.m21*b.m10 + a.m22*b.m20;
+		float r21 = a.m20*b.m01 + a.m21*b.m11 + a.m22*b.m21;
+		float r22 = a.m20*b.m02 + a.m21*b.m12 + a.m22*b.m22;
+		float r23 = a.m20*b.m03 + a.m21*b.m13 + a.m22*b.m23 + a.m23;
+		m00 = r00; m01 = r01; m02 = r02; m03 = r03;
+		m10 = r10; m11 = r11; m12 = r12; m13 = r13;
+		m20 = r20; m21 = r21; m22 = r22; m23 = r23;
+		m30 = 0; m31 = 0; m32 = 0; m33 = 1;
+		return this;
+	}
+	
+	/** dest = this * v */
+	public Vec4f transform( Vec4f v, Vec4f dest ) {
+		float x = m00*v.x + m01*v.y + m02*v.z + m03*v.w;
+		float y = m10*v.x + m11*v.y + m12*v.z + m13*v.w;
+		float z = m20*v.x + m21*v.y + m22*v.z + m23*v.w;
+		float w = m30*v.x + m31*v.y + m32*v.z + m33*v.w;
+		return dest.set(x, y, z, w);
+	}
+	
+	/**
+	 * Transform count points (w = 1) stored in parallel arrays, starting
+	 * at index offset.  The bottom row is assumed to be 0,0,0,1.
+	 * Output arrays may be the same as input arrays.
+	 */
+	public void transformPoints(
+		float[] xs, float[] ys, float[] zs,
+		float[] destX, float[] destY, float[] destZ,
+		int offset, int count
+	) {
+		for( int i=offset, end=offset+count; i<end; ++i ) {
+			float x = xs[i], y = ys[i], z = zs[i];
+			destX[i] = m00*x + m01*y + m02*z + m03;
+			destY[i] = m10*x + m11*y + m12*z + m13;
+			destZ[i] = m20*x + m21*y + m22*z + m23;
+		}
+	}
+	
+	/**
+	 * Like transformPoints, but for directions (w = 0), so translation
+	 * is ignored.
+	 */
+	public void transformVectors(
+		float[] xs, float[] ys, float[] zs,
+		float[] destX, float[] destY, float[] destZ,
+		int offset, int count
+	) {
+		for( int i=offset, end=offset+count; i<end; ++i ) {
+			float x = xs[i], y = ys[i], z = zs[i];
+			destX[i] = m00*x + m01*y + m02*z;
+			destY[i] = m10*x + m11*y + m12*z;
+			destZ[i] = m20*x + m21*y + m22*z;
+		}
+	}
+}
@@ -58,6 +58,21 @@ public class MatrixMath
 		assert q.isNormalized();
 		assert dest.w >= 3 && dest.h >= 3;
 		
-		// TODO
+		// https://en.wikipedia.org/wiki/Quaternions_and_spatial_rotation#Quaternion-derived_rotation_matrix
+		float xx = q.x*q.x, yy = q.y*q.y, zz = q.z*q.z;
+		float xy = q.x*q.y, xz = q.x*q.z, yz = q.y*q.z;
+		float wx = q.w*q.x, wy = q.w*q.y, wz = q.w*q.z;
+		
+		dest.put(0, 0, 1 - 2*(yy + zz));
+		dest.put(1, 0,     2*(xy - wz));
+		dest.put(2, 0,     2*(xz + wy));
+		
+		dest.put(0, 1,     2*(xy + wz));
+		dest.put(1, 1, 1 - 2*(xx + zz));
+		dest.put(2, 1,     2*(yz - wx));
+		
+		dest.put(0, 2,     2*(xz - wy));
+		dest.put(1, 2,     2*(yz + wx));
+		dest.put(2, 2, 1 - 2*(xx + yy));
 	}
 }
@@ -0,0 +1,33 @@
+package togos.vizations.math;
+
+public final class Vec4f
+{
+	public float x, y, z, w;
+	
+	public Vec4f() { }
+	
+	public Vec4f( float x, float y, float z, float w ) {
+		set(x, y, z, w);
+	}
+	
+	public Vec4f set( float x, float y, float z, float w ) {
+		this.x = x; this.y = y; this.z = z; this.w = w;
+		return this;
+	}
+	
+	public Vec4f set( Vec4f v ) {
+		return set(v.x, v.y, v.z, v.w);
+	}
+	
+	public Vec4f add( Vec4f a, Vec4f b ) {
+		return set(a.x+b.x, a.y+b.y, a.z+b.z, a.w+b.w);
+	}
+	
+	public Vec4f scale( Vec4f a, float s ) {
+		return set(a.x*s, a.y*s, a.z*s, a.w*s);
+	}
+	
+	public float dot( Vec4f v ) {
+		return x*v.x + y*v.y + z*v.z + w*v.w;
+	}
+}
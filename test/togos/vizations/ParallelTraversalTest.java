@@ -0,0 +1,80 @@
+package togos.vizations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import togos.vizations.LayeredRenderer.Layer;
+import togos.vizations.Stars.Animation;
+
+/**
+ * Checks that drawing layers with a ParallelTraversal gives exactly the
+ * pixels a single renderer does, for both the built-in and procedural
+ * galaxies, streaked and not, with one sample per frame and several.
+ * Run with java -ea; exits non-zero on failure.
+ */
+public class ParallelTraversalTest
+{
+	static final int W = 320, H = 180;
+	
+	static StreakStarRenderer renderer() {
+		StreakStarRenderer r = new StreakStarRenderer(W, H);
+		r.impostors = new ImpostorCache(16, 64L<<20);
+		// ParallelTraversal evaluates orbits without stepping, so the
+		// serial renderer has to too to give the same positions
+		r.flatOrbits.stepping = r.openOrbits.stepping = r.visibleOrbits.stepping = r.orbits.stepping = false;
+		r.procedural.steppingOrbits = false;
+		return r;
+	}
+	
+	static boolean samePixels( StreakStarRenderer a, StreakStarRenderer b ) {
+		a.resolve();
+		b.resolve();
+		for( int i=0; i<W*H; ++i ) {
+			if( Float.floatToIntBits(a.r[i]) != Float.floatToIntBits(b.r[i]) ||
+				Float.floatToIntBits(a.g[i]) != Float.floatToIntBits(b.g[i]) ||
+				Float.floatToIntBits(a.b[i]) != Float.floatToIntBits(b.b[i])
+			) return false;
+		}
+		return true;
+	}
+	
+	static boolean check( String name, Animation animation, ParallelTraversal parallel ) {
+		boolean ok = true;
+		// The animation's own layers, and the same depth ranges again
+		// with several samples and streaking switched
+		List<Layer> layers = new ArrayList<Layer>(animation.layers);
+		for( Layer l : animation.layers ) {
+			Layer other = new Layer(l.nearZ, l.farZ, 4, 1);
+			other.streaked = !l.streaked;
+			layers.add(other);
+		}
+		for( int frame : new int[] { 0, 1000 } ) {
+			float time = (frame+0.5f)*animation.dt;
+			for( int i=0; i<layers.size(); ++i ) {
+				Layer layer = layers.get(i);
+				StreakStarRenderer serial = renderer(), split = renderer();
+				LayeredRenderer.drawLayer(animation, layer, time, serial, null);
+				LayeredRenderer.drawLayer(animation, layer, time, split, parallel);
+				boolean same = samePixels(serial, split);
+				System.out.println((same ? "ok    " : "FAIL  ")+name+", frame "+frame+", layer "+i+
+					" ("+layer.samplesPerFrame+" samples"+(layer.streaked ? ", streaked" : "")+")");
+				ok &= same;
+			}
+		}
+		return ok;
+	}
+	
+	public static void main( String[] args ) {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		ParallelTraversal parallel = new ParallelTraversal(pool, W, H);
+		boolean ok = true;
+		try {
+			ok &= check("built-in galaxy", new Animation(Stars.buildGalaxy()), parallel);
+			ok &= check("procedural galaxy", new Animation(new GalaxyGenerator().root()), parallel);
+		} finally {
+			pool.shutdown();
+		}
+		if( !ok ) System.exit(1);
+	}
+}
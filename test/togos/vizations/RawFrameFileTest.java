@@ -0,0 +1,98 @@
+package togos.vizations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import togos.vizations.Stars.RenderBuffer;
+
+/**
+ * Checks that a RawFrameFile can be reopened to resume a render:
+ * frames written before, whether or not the file was closed properly,
+ * are reported by hasFrame and keep their data, others aren't, and a
+ * file for a different render is refused.
+ * Run with java -ea; exits non-zero on failure.
+ */
+public class RawFrameFileTest
+{
+	static final int W = 8, H = 4, FRAMES = 5;
+	static final RawFrameFormat FORMAT = RawFrameFormat.ARGB32;
+	
+	static boolean check( String name, boolean ok ) {
+		System.out.println((ok ? "ok    " : "FAIL  ")+name);
+		return ok;
+	}
+	
+	static int pixel( int frame, int i ) {
+		return 0xFF000000 | (frame << 16) | i;
+	}
+	
+	static void putFrame( RawFrameFile rff, int frame ) throws IOException {
+		int[] argb = new int[W*H];
+		for( int i=0; i<argb.length; ++i ) argb[i] = pixel(frame, i);
+		rff.putFrame(frame, new RenderBuffer(W, H), argb);
+	}
+	
+	static boolean hasFrames( RawFrameFile rff, boolean... expected ) {
+		for( int f=0; f<FRAMES; ++f ) if( rff.hasFrame(f) != expected[f] ) return false;
+		return true;
+	}
+	
+	/** Read a frame's data straight from the file, after it's closed */
+	static boolean frameIntact( File file, int frame ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer data = ByteBuffer.allocate((int)FORMAT.frameSize(W, H)).order(ByteOrder.LITTLE_ENDIAN);
+			long offset = RawFrameFile.dataOffset(FRAMES) + frame*FORMAT.frameSize(W, H);
+			while( data.hasRemaining() ) {
+				if( raf.getChannel().read(data, offset + data.position()) < 0 ) return false;
+			}
+			for( int i=0; i<W*H; ++i ) if( data.getInt(i*4) != pixel(frame, i) ) return false;
+			return true;
+		} finally {
+			raf.close();
+		}
+	}
+	
+	public static void main( String[] args ) throws IOException {
+		File file = File.createTempFile("RawFrameFileTest", ".vzraw");
+		file.delete();
+		boolean ok = true;
+		try {
+			RawFrameFile rff = RawFrameFile.open(file, FORMAT, W, H, FRAMES);
+			ok &= check("new file has no frames", hasFrames(rff, false, false, false, false, false));
+			putFrame(rff, 1);
+			putFrame(rff, 3);
+			ok &= check("written frames are found", hasFrames(rff, false, true, false, true, false));
+			rff.close();
+			ok &= check("frame 1 data intact", frameIntact(file, 1));
+			ok &= check("frame 3 data intact", frameIntact(file, 3));
+			
+			rff = RawFrameFile.open(file, FORMAT, W, H, FRAMES);
+			ok &= check("reopened file has frames written before", hasFrames(rff, false, true, false, true, false));
+			putFrame(rff, 0);
+			// As if the process died: no close, so nothing's forced to disk,
+			// but what was written is still there for the next process
+			rff.raf.close();
+			
+			rff = RawFrameFile.open(file, FORMAT, W, H, FRAMES);
+			ok &= check("frames from an interrupted run are found", hasFrames(rff, true, true, false, true, false));
+			rff.close();
+			ok &= check("frame 0 data intact", frameIntact(file, 0));
+			ok &= check("frame 1 data intact after resuming", frameIntact(file, 1));
+			
+			boolean refused = false;
+			try {
+				RawFrameFile.open(file, FORMAT, W, H+1, FRAMES).close();
+			} catch( IOException e ) {
+				refused = true;
+			}
+			ok &= check("file for different frames refused", refused);
+		} finally {
+			file.delete();
+		}
+		if( !ok ) System.exit(1);
+	}
+}
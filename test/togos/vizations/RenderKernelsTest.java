@@ -0,0 +1,135 @@
+package togos.vizations;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that the vector RenderKernels give bit-identical results to
+ * the scalar ones, for every kernel, over ranges starting and ending
+ * on and off vector boundaries, and with awkward values (negative,
+ * over 1, infinite, NaN) mixed in.  Compile src, src-vector and this
+ * with --add-modules jdk.incubator.vector and run with that and -ea;
+ * exits non-zero on failure.  Without the vector kernels there's
+ * nothing to compare, which counts as a failure too, so that a broken
+ * vector build doesn't pass unnoticed.
+ */
+public class RenderKernelsTest
+{
+	interface Kernel {
+		public void run( RenderKernels k, Data d, int start, int end );
+	}
+	
+	static final int N = 200;
+	static final float[] AWKWARD = {
+		0, -0f, -1, 1, 0.99999f, 1.00001f, 1e-20f, 1e20f, -1e20f,
+		Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NaN, Float.MIN_VALUE
+	};
+	
+	/** Everything a kernel reads or writes, for N pixels */
+	static class Data {
+		final float[] r, g, b;
+		final float[][] layerR = new float[4][], layerG = new float[4][], layerB = new float[4][];
+		final float[] rgb;
+		final float[][] layers = new float[4][];
+		final int[] argb = new int[N];
+		
+		Data( long seed ) {
+			Random rand = new Random(seed);
+			r = plane(rand, N);
+			g = plane(rand, N);
+			b = plane(rand, N);
+			for( int l=0; l<4; ++l ) {
+				layerR[l] = plane(rand, N);
+				layerG[l] = plane(rand, N);
+				layerB[l] = plane(rand, N);
+				layers[l] = plane(rand, N*3);
+			}
+			rgb = plane(rand, N*3);
+		}
+		
+		/** Mostly ordinary values, with some awkward ones */
+		static float[] plane( Random rand, int n ) {
+			float[] plane = new float[n];
+			for( int i=0; i<n; ++i ) {
+				plane[i] = rand.nextInt(8) == 0 ? AWKWARD[rand.nextInt(AWKWARD.length)] : rand.nextFloat()*0.5f;
+			}
+			return plane;
+		}
+		
+		boolean sameAs( Data o ) {
+			for( int l=0; l<4; ++l ) {
+				if( !Arrays.equals(layerR[l], o.layerR[l]) || !Arrays.equals(layerG[l], o.layerG[l]) ||
+					!Arrays.equals(layerB[l], o.layerB[l]) || !Arrays.equals(layers[l], o.layers[l])
+				) return false;
+			}
+			return Arrays.equals(argb, o.argb);
+		}
+	}
+	
+	static final float[] WEIGHTS = { 1, 0.5f, 0.25f, 0 };
+	static final byte[] GAMMA_TABLE = RenderKernels.gammaTable(2.2f);
+	
+	static boolean check( String name, Kernel kernel, RenderKernels vector ) {
+		int failures = 0;
+		for( int start=0; start<40; ++start ) {
+			for( int end=start; end<=N; end += 7 ) {
+				Data expected = new Data(start), actual = new Data(start);
+				kernel.run(RenderKernels.SCALAR, expected, start, end);
+				kernel.run(vector, actual, start, end);
+				if( !actual.sameAs(expected) ) {
+					if( failures == 0 ) System.out.println("FAIL  "+name+" over ["+start+","+end+")");
+					++failures;
+				}
+			}
+		}
+		if( failures == 0 ) System.out.println("ok    "+name);
+		return failures == 0;
+	}
+	
+	public static void main( String[] args ) {
+		RenderKernels vector = RenderKernels.load("vector");
+		if( vector == RenderKernels.SCALAR ) {
+			System.out.println("FAIL  vector kernels unavailable");
+			System.exit(1);
+		}
+		System.out.println("Comparing scalar kernels to "+vector.getName());
+		boolean ok = true;
+		ok &= check("clear", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.clear(d.layerR[3], d.layerG[3], d.layerB[3], start, end); }
+		}, vector);
+		ok &= check("copy", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.copy(d.layerR[0], d.layerG[0], d.layerB[0], d.layerR[3], d.layerG[3], d.layerB[3], start, end); }
+		}, vector);
+		ok &= check("addScaled", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.addScaled(d.layerR[1], d.layerG[1], d.layerB[1], 0.3f, d.layerR[3], d.layerG[3], d.layerB[3], start, end); }
+		}, vector);
+		ok &= check("multiply", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.multiply(d.layerR[3], d.layerG[3], d.layerB[3], 0.3f, start, end); }
+		}, vector);
+		ok &= check("composite", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.composite(d.r, d.g, d.b, d.layerR, d.layerG, d.layerB, WEIGHTS, 1.5f, d.argb, start, end); }
+		}, vector);
+		ok &= check("compositeGamma", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.compositeGamma(d.r, d.g, d.b, d.layerR, d.layerG, d.layerB, WEIGHTS, 1.5f, GAMMA_TABLE, d.argb, start, end); }
+		}, vector);
+		ok &= check("clear (interleaved)", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.clear(d.layers[3], start*3, end*3); }
+		}, vector);
+		ok &= check("copy (interleaved)", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.copy(d.layers[0], d.layers[3], start*3, end*3); }
+		}, vector);
+		ok &= check("addScaled (interleaved)", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.addScaled(d.layers[1], 0.3f, d.layers[3], start*3, end*3); }
+		}, vector);
+		ok &= check("multiply (interleaved)", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.multiply(d.layers[3], 0.3f, start*3, end*3); }
+		}, vector);
+		ok &= check("compositeInterleaved", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.compositeInterleaved(d.rgb, d.layers, WEIGHTS, 1.5f, d.argb, start, end); }
+		}, vector);
+		ok &= check("compositeInterleavedGamma", new Kernel() {
+			@Override public void run( RenderKernels k, Data d, int start, int end ) { k.compositeInterleavedGamma(d.rgb, d.layers, WEIGHTS, 1.5f, GAMMA_TABLE, d.argb, start, end); }
+		}, vector);
+		if( !ok ) System.exit(1);
+	}
+}
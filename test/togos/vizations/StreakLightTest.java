@@ -0,0 +1,100 @@
+package togos.vizations;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import togos.vizations.Stars.CompoundNode;
+import togos.vizations.Stars.FColor;
+import togos.vizations.Stars.SolidNode;
+import togos.vizations.Stars.StarNode;
+import togos.vizations.Stars.StarNodeBinding;
+
+/**
+ * Checks that StreakStarRenderer draws as much light for a node moving
+ * across the frame as FlatStarRenderer does for it standing still.
+ * Run with java -ea; exits non-zero on failure.
+ */
+public class StreakLightTest
+{
+	static final int W = 320, H = 180;
+	
+	static double totalLight( float[] plane ) {
+		double total = 0;
+		for( float v : plane ) total += v;
+		return total;
+	}
+	
+	static boolean check( String name, double expected, double actual, double tolerance ) {
+		boolean ok = Math.abs(actual - expected) <= expected * tolerance;
+		System.out.println((ok ? "ok    " : "FAIL  ")+name+": "+expected+" still, "+actual+" streaked");
+		return ok;
+	}
+	
+	/**
+	 * Stationary splats get more or less light depending on where they
+	 * fall relative to pixel boundaries, the way the scanline loop that
+	 * SplatFootprints replaced gave it to them, so the light of a streak
+	 * is compared to the average over its path, not to either end.
+	 */
+	static double stillLight( StarNode node, float x0, float x1, int positions ) {
+		double total = 0;
+		FlatStarRenderer still = new FlatStarRenderer(W, H);
+		for( int i=0; i<positions; ++i ) {
+			still.clear();
+			still.initCamera(x0 + (x1-x0)*(i+0.5f)/positions, 0, -10);
+			still.draw(0, node);
+			still.resolve();
+			total += totalLight(still.r);
+		}
+		return total / positions;
+	}
+	
+	/**
+	 * Draw node from 10 units away, streaked with the camera moving dx
+	 * units sideways while the shutter's open.
+	 */
+	static double streakedLight( StarNode node, float dx ) {
+		StreakStarRenderer streaked = new StreakStarRenderer(W, H);
+		streaked.initCamera(-dx/2, 0, -10);
+		streaked.saveShutterOpenCamera();
+		streaked.initCamera(dx/2, 0, -10);
+		streaked.drawStreaked(0, 0, node);
+		return totalLight(streaked.r);
+	}
+	
+	static boolean checkNode( String name, StarNode node, float dx, double tolerance ) {
+		return check(name, stillLight(node, -dx/2, dx/2, 1000), streakedLight(node, dx), tolerance);
+	}
+	
+	/** Lots of stars at random places within a few units of the origin */
+	static StarNode starField( int count, float starRadius ) {
+		Random rand = new Random(1234);
+		Set<StarNodeBinding> stars = new HashSet<StarNodeBinding>();
+		FColor white = new FColor(1, 1, 1);
+		for( int i=0; i<count; ++i ) {
+			stars.add(new StarNodeBinding(
+				rand.nextFloat()*2-1, rand.nextFloat()*2-1, rand.nextFloat()*2-1,
+				rand.nextFloat()*4, rand.nextFloat(), 0,
+				new SolidNode(starRadius, white)));
+		}
+		return CompoundNode.aggregate(stars);
+	}
+	
+	public static void main( String[] args ) {
+		FColor white = new FColor(1, 1, 1);
+		boolean ok = true;
+		// A unit at 10 away is about 10 pixels across.  A streak of no
+		// length is a single stamp, exactly a still splat.
+		ok &= checkNode("still sub-pixel star", new SolidNode(0.02f, white), 0, 1e-6);
+		ok &= checkNode("still disc", new SolidNode(0.3f, white), 0, 1e-6);
+		// A single sub-pixel star's streak can be off by a few percent,
+		// depending on how its stamps line up with pixels, but that
+		// evens out over many
+		ok &= checkNode("sub-pixel stars, short streaks", starField(500, 0.02f), 0.5f, 0.01);
+		ok &= checkNode("sub-pixel stars, long streaks", starField(500, 0.02f), 10f, 0.01);
+		ok &= checkNode("few-pixel discs", starField(100, 0.3f), 4f, 0.01);
+		ok &= checkNode("big disc", new SolidNode(2f, white), 3f, 0.01);
+		if( !ok ) System.exit(1);
+	}
+}